@@ -0,0 +1,33 @@
+package se.magnus.api.composite.product;
+
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Progress of an asynchronous composite write, completed when the core services have processed all of its events.
+ */
+@Getter
+@RequiredArgsConstructor
+public class OperationStatus {
+
+    public enum Status {PENDING, COMPLETED, FAILED}
+
+    private final String operationId;
+    private final Status status;
+    private final int expectedEvents;
+    private final int processedEvents;
+    private final int failedEvents;
+    private final List<String> errors;
+
+    public OperationStatus() {
+        this.operationId = null;
+        this.status = null;
+        this.expectedEvents = 0;
+        this.processedEvents = 0;
+        this.failedEvents = 0;
+        this.errors = Collections.emptyList();
+    }
+}
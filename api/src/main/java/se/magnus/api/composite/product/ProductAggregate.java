@@ -1,5 +1,6 @@
 package se.magnus.api.composite.product;
 
+import com.fasterxml.jackson.annotation.JsonInclude;
 import lombok.Builder;
 import lombok.Getter;
 import lombok.RequiredArgsConstructor;
@@ -9,6 +10,7 @@ import java.util.List;
 @Getter
 @RequiredArgsConstructor
 @Builder
+@JsonInclude(JsonInclude.Include.NON_NULL)
 public class ProductAggregate {
     private final int productId;
     private final String name;
@@ -16,6 +18,9 @@ public class ProductAggregate {
     private final List<RecommendationSummary> recommendations;
     private final List<ReviewSummary> reviews;
     private final ServiceAddresses serviceAddresses;
+    // only set when requested through the fields parameter
+    private final Integer recommendationCount;
+    private final Integer reviewCount;
 
     public ProductAggregate(){
         this.productId = 0;
@@ -24,5 +29,11 @@ public class ProductAggregate {
         this.recommendations = null;
         this.reviews = null;
         this.serviceAddresses = null;
+        this.recommendationCount = null;
+        this.reviewCount = null;
+    }
+
+    public ProductAggregate(int productId, String name, int weight, List<RecommendationSummary> recommendations, List<ReviewSummary> reviews, ServiceAddresses serviceAddresses) {
+        this(productId, name, weight, recommendations, reviews, serviceAddresses, null, null);
     }
 }
@@ -0,0 +1,40 @@
+package se.magnus.api.composite.product;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+
+/**
+ * One item of a streamed product aggregate: first the base product, then its recommendations and reviews as they arrive.
+ */
+@Getter
+@RequiredArgsConstructor
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class ProductAggregateItem {
+
+    public enum Type {PRODUCT, RECOMMENDATION, REVIEW}
+
+    private final Type type;
+    private final ProductAggregate product;
+    private final RecommendationSummary recommendation;
+    private final ReviewSummary review;
+
+    public ProductAggregateItem() {
+        this.type = null;
+        this.product = null;
+        this.recommendation = null;
+        this.review = null;
+    }
+
+    public static ProductAggregateItem product(ProductAggregate product) {
+        return new ProductAggregateItem(Type.PRODUCT, product, null, null);
+    }
+
+    public static ProductAggregateItem recommendation(RecommendationSummary recommendation) {
+        return new ProductAggregateItem(Type.RECOMMENDATION, null, recommendation, null);
+    }
+
+    public static ProductAggregateItem review(ReviewSummary review) {
+        return new ProductAggregateItem(Type.REVIEW, null, null, review);
+    }
+}
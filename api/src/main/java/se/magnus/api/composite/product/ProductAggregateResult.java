@@ -0,0 +1,31 @@
+package se.magnus.api.composite.product;
+
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+
+/**
+ * One item of a batch composite response, either the aggregate or the error that prevented it from being built.
+ */
+@Getter
+@RequiredArgsConstructor
+public class ProductAggregateResult {
+    private final int productId;
+    private final int status;
+    private final ProductAggregate product;
+    private final String message;
+
+    public ProductAggregateResult() {
+        this.productId = 0;
+        this.status = 0;
+        this.product = null;
+        this.message = null;
+    }
+
+    public static ProductAggregateResult ok(ProductAggregate product) {
+        return new ProductAggregateResult(product.getProductId(), 200, product, null);
+    }
+
+    public static ProductAggregateResult error(int productId, int status, String message) {
+        return new ProductAggregateResult(productId, status, null, message);
+    }
+}
@@ -4,9 +4,13 @@ import io.swagger.annotations.Api;
 import io.swagger.annotations.ApiOperation;
 import io.swagger.annotations.ApiResponse;
 import io.swagger.annotations.ApiResponses;
+import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 
+import java.util.List;
+
 @Api(produces = "REST API for composite product information.")
 public interface ProductCompositeService {
 
@@ -25,9 +29,37 @@ public interface ProductCompositeService {
     Mono<ProductAggregate> getCompositeProduct(
             @PathVariable int productId,
             @RequestParam(value = "delay", required = false, defaultValue = "0") int delay, // 응답 지연 Param
-            @RequestParam(value = "faultPercent", required = false, defaultValue = "0") int faultPercent // 예외 발생 비율 Param
+            @RequestParam(value = "faultPercent", required = false, defaultValue = "0") int faultPercent, // 예외 발생 비율 Param
+            @RequestParam(value = "fields", required = false) List<String> fields // 응답에 포함할 필드 Param, 필요한 backend 만 호출
     );
 
+    @ApiOperation(
+            value = "${api.product-composite.get-composite-product-stream.description}",
+            notes = "${api.product-composite.get-composite-product-stream.notes}"
+    )
+    @ApiResponses(
+            value = {
+                    @ApiResponse(code = 400, message = "Bad Request, invalid format of the request. See response message for more information."),
+                    @ApiResponse(code = 404, message = "Not found, the specified id does not exist."),
+                    @ApiResponse(code = 422, message = "Unprocessable entity, input parameters caused the processing to fails. See response message for more information.")
+            }
+    )
+    @GetMapping(value = "/product-composite/{productId}", produces = {"application/x-ndjson", "text/event-stream"})
+    Flux<ProductAggregateItem> getCompositeProductStream(@PathVariable int productId);
+
+    @ApiOperation(
+            value = "${api.product-composite.get-composite-products.description}",
+            notes = "${api.product-composite.get-composite-products.notes}"
+    )
+    @ApiResponses(
+            value = {
+                    @ApiResponse(code = 400, message = "Bad Request, invalid format of the request. See response message for more information."),
+                    @ApiResponse(code = 422, message = "Unprocessable entity, input parameters caused the processing to fails. See response message for more information.")
+            }
+    )
+    @GetMapping(value = "/product-composite", params = "ids", produces = {"application/json", "application/x-ndjson"})
+    Flux<ProductAggregateResult> getCompositeProducts(@RequestParam(value = "ids") List<Integer> productIds);
+
     @ApiOperation(
             value = "${api.product-composite.create-composite-product.description}",
             notes = "${api.product-composite.create-composite-product.notes}")
@@ -38,7 +70,36 @@ public interface ProductCompositeService {
     @PostMapping(
             value    = "/product-composite",
             consumes = "application/json")
-    Mono<Void> createCompositeProduct(@RequestBody ProductAggregate body);
+    Mono<Void> createCompositeProduct(
+        @RequestHeader(value = "Idempotency-Key", required = false) String idempotencyKey,
+        @RequestBody ProductAggregate body);
+
+    @ApiOperation(
+            value = "${api.product-composite.create-composite-product-async.description}",
+            notes = "${api.product-composite.create-composite-product-async.notes}")
+    @ApiResponses(value = {
+            @ApiResponse(code = 400, message = "Bad Request, invalid format of the request. See response message for more information."),
+            @ApiResponse(code = 422, message = "Unprocessable entity, input parameters caused the processing to fail. See response message for more information.")
+    })
+    @PostMapping(
+            value    = "/product-composite",
+            params   = "async=true",
+            consumes = "application/json",
+            produces = "application/json")
+    Mono<ResponseEntity<OperationStatus>> createCompositeProductAsync(
+        @RequestHeader(value = "Idempotency-Key", required = false) String idempotencyKey,
+        @RequestBody ProductAggregate body);
+
+    @ApiOperation(
+            value = "${api.product-composite.get-operation-status.description}",
+            notes = "${api.product-composite.get-operation-status.notes}")
+    @ApiResponses(value = {
+            @ApiResponse(code = 404, message = "Not found, the operation is unknown or expired.")
+    })
+    @GetMapping(
+            value    = "/product-composite/operations/{operationId}",
+            produces = "application/json")
+    Mono<OperationStatus> getOperationStatus(@PathVariable String operationId);
 
     @ApiOperation(
             value = "${api.product-composite.delete-composite-product.description}",
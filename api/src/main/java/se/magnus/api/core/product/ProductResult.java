@@ -0,0 +1,31 @@
+package se.magnus.api.core.product;
+
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+
+/**
+ * One item of a multi-get response, either the product or the reason it is missing.
+ */
+@Getter
+@RequiredArgsConstructor
+public class ProductResult {
+    private final int productId;
+    private final int status;
+    private final Product product;
+    private final String message;
+
+    public ProductResult() {
+        this.productId = 0;
+        this.status = 0;
+        this.product = null;
+        this.message = null;
+    }
+
+    public static ProductResult ok(Product product) {
+        return new ProductResult(product.getProductId(), 200, product, null);
+    }
+
+    public static ProductResult notFound(int productId) {
+        return new ProductResult(productId, 404, null, "No product found for productId: " + productId);
+    }
+}
@@ -1,8 +1,11 @@
 package se.magnus.api.core.product;
 
 import org.springframework.web.bind.annotation.*;
+import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 
+import java.util.List;
+
 public interface ProductService {
 
     /**
@@ -10,19 +13,27 @@ public interface ProductService {
      * @param productId
      * @return Mono<Product>
      */
-    @GetMapping(value = "/product/{productId}", produces = "application/json")
+    @GetMapping(value = "/product/{productId}", produces = {"application/json", "application/x-jackson-smile"})
     Mono<Product> getProduct(
             @PathVariable int productId,
             @RequestParam(value = "delay", required = false, defaultValue = "0") int delay, // 응답 지연 Param
             @RequestParam(value = "faultPercent", required = false, defaultValue = "0") int faultPercent // 예외 발생 비율 Param
     );
 
+    /**
+     *
+     * @param ids
+     * @return Flux<ProductResult>, one result per distinct id, the found products first as they are read, then the ids that are not found
+     */
+    @GetMapping(value = "/product", params = "ids", produces = {"application/json", "application/x-ndjson", "text/event-stream", "application/stream+x-jackson-smile"})
+    Flux<ProductResult> getProducts(@RequestParam(value = "ids") List<Integer> ids);
+
     @PostMapping(
             value = "/product",
             consumes = "application/json",
             produces = "application/json")
-    Product createProduct(@RequestBody Product body);
+    Mono<Product> createProduct(@RequestBody Product body);
 
     @DeleteMapping(value = "/product/{productId}")
-    void deleteProduct(@PathVariable int productId);
+    Mono<Void> deleteProduct(@PathVariable int productId);
 }
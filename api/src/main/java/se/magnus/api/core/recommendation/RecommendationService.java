@@ -2,18 +2,30 @@ package se.magnus.api.core.recommendation;
 
 import org.springframework.web.bind.annotation.*;
 import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.util.List;
 
 public interface RecommendationService {
 
-    @GetMapping(value = "/recommendation", produces = "application/json")
+    @GetMapping(value = "/recommendation", produces = {"application/json", "application/x-ndjson", "text/event-stream", "application/stream+x-jackson-smile"})
     Flux<Recommendation> getRecommendations(@RequestParam int productId);
 
+    @GetMapping(value = "/recommendation", params = "productIds", produces = {"application/json", "application/x-ndjson", "text/event-stream", "application/stream+x-jackson-smile"})
+    Flux<Recommendation> getRecommendations(@RequestParam(value = "productIds") List<Integer> productIds);
+
     @PostMapping(value = "/recommendation",
             produces = "application/json",
             consumes = "application/json"
     )
-    Recommendation createRecommendation(@RequestBody Recommendation body);
+    Mono<Recommendation> createRecommendation(@RequestBody Recommendation body);
+
+    @PostMapping(value = "/recommendations",
+            produces = "application/json",
+            consumes = "application/json"
+    )
+    Flux<Recommendation> createRecommendations(@RequestBody List<Recommendation> body);
 
     @DeleteMapping(value = "/recommendation")
-    void deleteRecommendations(@RequestParam int productId);
+    Mono<Void> deleteRecommendations(@RequestParam int productId);
 }
@@ -2,19 +2,32 @@ package se.magnus.api.core.review;
 
 import org.springframework.web.bind.annotation.*;
 import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.util.List;
 
 public interface ReviewService {
 
-    @GetMapping(value = "/review", produces = "application/json")
+    @GetMapping(value = "/review", produces = {"application/json", "application/x-ndjson", "text/event-stream", "application/stream+x-jackson-smile"})
     Flux<Review> getReviews(@RequestParam int productId);
 
+    @GetMapping(value = "/review", params = "productIds", produces = {"application/json", "application/x-ndjson", "text/event-stream", "application/stream+x-jackson-smile"})
+    Flux<Review> getReviews(@RequestParam(value = "productIds") List<Integer> productIds);
+
     @PostMapping(
             value = "/review",
             consumes = "application/json",
             produces = "application/json"
     )
-    Review createReview(@RequestBody Review body);
+    Mono<Review> createReview(@RequestBody Review body);
+
+    @PostMapping(
+            value = "/reviews",
+            consumes = "application/json",
+            produces = "application/json"
+    )
+    Flux<Review> createReviews(@RequestBody List<Review> body);
 
     @DeleteMapping(value = "/review", produces = "application/json")
-    void deleteReviews(@RequestParam int productId);
+    Mono<Void> deleteReviews(@RequestParam int productId);
 }
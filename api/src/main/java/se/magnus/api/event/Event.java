@@ -6,6 +6,24 @@ public class Event<K, T> {
 
     public enum Type {CREATE, DELETE}
 
+    /**
+     * Message header marking events that carry a list of entities, e.g. all reviews of a product, as data.
+     */
+    public static final String BATCH_HEADER = "batch";
+
+    /**
+     * Message headers of events that belong to a tracked, asynchronous write operation, with the total number of events
+     * of the operation. Both are echoed back in the {@link OperationAck} of the event.
+     */
+    public static final String OPERATION_ID_HEADER = "operationId";
+    public static final String OPERATION_EVENTS_HEADER = "operationEvents";
+
+    /**
+     * Message header identifying an event within its operation. Also echoed back in the {@link OperationAck}, so the
+     * acknowledgement of a redelivered event is counted once.
+     */
+    public static final String EVENT_ID_HEADER = "eventId";
+
     private Event.Type eventType;
 
     private K key;
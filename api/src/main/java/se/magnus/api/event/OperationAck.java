@@ -0,0 +1,72 @@
+package se.magnus.api.event;
+
+import java.time.LocalDateTime;
+
+/**
+ * Published by a core service when it has processed, or finally failed to process, an event of a tracked operation.
+ */
+public class OperationAck {
+
+    public enum Status {PROCESSED, FAILED}
+
+    private String operationId;
+    private String eventId;
+    private int expectedEvents;
+    private Status status;
+    private String service;
+    private String message;
+
+    private LocalDateTime ackCreatedAt;
+
+    public OperationAck() {
+        this.operationId = null;
+        this.eventId = null;
+        this.expectedEvents = 0;
+        this.status = null;
+        this.service = null;
+        this.message = null;
+        this.ackCreatedAt = null;
+    }
+
+    public OperationAck(String operationId, int expectedEvents, Status status, String service, String message) {
+        this(operationId, null, expectedEvents, status, service, message);
+    }
+
+    public OperationAck(String operationId, String eventId, int expectedEvents, Status status, String service, String message) {
+        this.operationId = operationId;
+        this.eventId = eventId;
+        this.expectedEvents = expectedEvents;
+        this.status = status;
+        this.service = service;
+        this.message = message;
+        this.ackCreatedAt = LocalDateTime.now();
+    }
+
+    public String getOperationId() {
+        return operationId;
+    }
+
+    public String getEventId() {
+        return eventId;
+    }
+
+    public int getExpectedEvents() {
+        return expectedEvents;
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+
+    public String getService() {
+        return service;
+    }
+
+    public String getMessage() {
+        return message;
+    }
+
+    public LocalDateTime getAckCreatedAt() {
+        return ackCreatedAt;
+    }
+}
@@ -0,0 +1,39 @@
+package se.magnus.api.grpc;
+
+import io.grpc.MethodDescriptor;
+import se.magnus.api.core.product.Product;
+import se.magnus.api.core.recommendation.Recommendation;
+import se.magnus.api.core.review.Review;
+
+/**
+ * The gRPC read methods of the core services, used for service to service calls next to their REST APIs.
+ * The list methods stream their elements from the server.
+ */
+public final class CoreServiceMethods {
+
+    public static final String PRODUCT_SERVICE = "se.magnus.api.ProductService";
+    public static final String RECOMMENDATION_SERVICE = "se.magnus.api.RecommendationService";
+    public static final String REVIEW_SERVICE = "se.magnus.api.ReviewService";
+
+    public static final MethodDescriptor<ProductRequest, Product> GET_PRODUCT =
+            method(PRODUCT_SERVICE, "GetProduct", MethodDescriptor.MethodType.UNARY, Product.class);
+
+    public static final MethodDescriptor<ProductRequest, Recommendation> GET_RECOMMENDATIONS =
+            method(RECOMMENDATION_SERVICE, "GetRecommendations", MethodDescriptor.MethodType.SERVER_STREAMING, Recommendation.class);
+
+    public static final MethodDescriptor<ProductRequest, Review> GET_REVIEWS =
+            method(REVIEW_SERVICE, "GetReviews", MethodDescriptor.MethodType.SERVER_STREAMING, Review.class);
+
+    private CoreServiceMethods() {
+    }
+
+    private static <T> MethodDescriptor<ProductRequest, T> method(String service, String name, MethodDescriptor.MethodType type, Class<T> responseType) {
+        return MethodDescriptor.<ProductRequest, T>newBuilder()
+                .setType(type)
+                .setFullMethodName(MethodDescriptor.generateFullMethodName(service, name))
+                .setRequestMarshaller(new SmileMarshaller<>(ProductRequest.class))
+                .setResponseMarshaller(new SmileMarshaller<>(responseType))
+                .setSafe(true)
+                .build();
+    }
+}
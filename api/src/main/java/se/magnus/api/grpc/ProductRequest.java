@@ -0,0 +1,21 @@
+package se.magnus.api.grpc;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+/**
+ * Request of the gRPC read methods of the core services, delay and faultPercent are only used by getProduct.
+ */
+@Getter
+@AllArgsConstructor
+public class ProductRequest {
+    private int productId;
+    private int delay;
+    private int faultPercent;
+
+    public ProductRequest() {
+        this.productId = 0;
+        this.delay = 0;
+        this.faultPercent = 0;
+    }
+}
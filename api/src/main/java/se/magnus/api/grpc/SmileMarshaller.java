@@ -0,0 +1,45 @@
+package se.magnus.api.grpc;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import io.grpc.MethodDescriptor;
+import io.grpc.Status;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Marshals the api classes as Smile, the binary form of JSON, so the gRPC methods reuse their Jackson mappings
+ * instead of a second set of generated protobuf messages.
+ */
+public class SmileMarshaller<T> implements MethodDescriptor.Marshaller<T> {
+
+    private static final ObjectMapper MAPPER = new ObjectMapper(new SmileFactory())
+            .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+
+    private final Class<T> type;
+
+    public SmileMarshaller(Class<T> type) {
+        this.type = type;
+    }
+
+    @Override
+    public InputStream stream(T value) {
+        try {
+            return new ByteArrayInputStream(MAPPER.writeValueAsBytes(value));
+        } catch (IOException ex) {
+            throw Status.INTERNAL.withDescription("Failed to marshal a " + type.getSimpleName()).withCause(ex).asRuntimeException();
+        }
+    }
+
+    @Override
+    public T parse(InputStream stream) {
+        try {
+            return MAPPER.readValue(stream, type);
+        } catch (IOException ex) {
+            throw Status.INTERNAL.withDescription("Failed to parse a " + type.getSimpleName()).withCause(ex).asRuntimeException();
+        }
+    }
+}
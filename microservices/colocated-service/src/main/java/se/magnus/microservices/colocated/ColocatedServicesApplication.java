@@ -0,0 +1,65 @@
+package se.magnus.microservices.colocated;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.WebApplicationType;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+import se.magnus.api.core.product.ProductService;
+import se.magnus.api.core.recommendation.RecommendationService;
+import se.magnus.api.core.review.ReviewService;
+import se.magnus.microservices.colocated.binder.InMemoryBinderConfiguration;
+import se.magnus.microservices.composite.product.ProductCompositeServiceApplication;
+import se.magnus.microservices.composite.product.services.ColocatedServices;
+import se.magnus.microservices.core.product.ProductServiceApplication;
+import se.magnus.microservices.core.recommendation.RecommendationServiceApplication;
+import se.magnus.microservices.core.review.ReviewServiceApplication;
+
+import java.util.Arrays;
+import java.util.stream.Stream;
+
+/**
+ * Runs the core services and the composite service in one JVM, for small sites where all of them run on one box.
+ *
+ * Each service runs in its own application context with its own configuration, fetched from the config server with the
+ * colocated profile added. Only the composite service serves HTTP. It reads through the core service beans directly,
+ * see {@link ColocatedServices}, and the events go through the in-memory binder, see {@link InMemoryBinderConfiguration},
+ * so neither Eureka nor a message broker is needed. The distributed deployment is not affected.
+ */
+@Slf4j
+public class ColocatedServicesApplication {
+
+    private static final String PROFILE = "colocated";
+
+    public static void main(String[] args) {
+        ConfigurableApplicationContext product = run(ProductServiceApplication.class, "product", args);
+        ConfigurableApplicationContext recommendation = run(RecommendationServiceApplication.class, "recommendation", args);
+        ConfigurableApplicationContext review = run(ReviewServiceApplication.class, "review", args);
+
+        ColocatedServices colocatedServices = new ColocatedServices(
+                product.getBean(ProductService.class),
+                recommendation.getBean(RecommendationService.class),
+                review.getBean(ReviewService.class));
+
+        new SpringApplicationBuilder(ProductCompositeServiceApplication.class)
+                .profiles(PROFILE)
+                .initializers(context -> context.getBeanFactory().registerSingleton("colocatedServices", colocatedServices))
+                .run(withApplicationName("product-composite", args));
+
+        log.info("Started the product, recommendation, review and product-composite services in one JVM");
+    }
+
+    private static ConfigurableApplicationContext run(Class<?> application, String name, String[] args) {
+        return new SpringApplicationBuilder(application)
+                .profiles(PROFILE)
+                .web(WebApplicationType.NONE)
+                .run(withApplicationName(name, args));
+    }
+
+    /**
+     * The bootstrap.yml of all services are on the classpath, so the name of each service is given as a command line argument,
+     * which takes precedence over all of them.
+     */
+    private static String[] withApplicationName(String name, String[] args) {
+        return Stream.concat(Arrays.stream(args), Stream.of("--spring.application.name=" + name)).toArray(String[]::new);
+    }
+}
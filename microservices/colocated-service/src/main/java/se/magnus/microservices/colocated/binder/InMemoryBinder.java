@@ -0,0 +1,34 @@
+package se.magnus.microservices.colocated.binder;
+
+import org.springframework.cloud.stream.binder.AbstractMessageChannelBinder;
+import org.springframework.cloud.stream.binder.ConsumerProperties;
+import org.springframework.cloud.stream.binder.ProducerProperties;
+import org.springframework.cloud.stream.provisioning.ConsumerDestination;
+import org.springframework.cloud.stream.provisioning.ProducerDestination;
+import org.springframework.integration.core.MessageProducer;
+import org.springframework.messaging.MessageChannel;
+import org.springframework.messaging.MessageHandler;
+
+/**
+ * Binds the channels of the services running in one JVM to the shared {@link InMemoryDestinations}.
+ * The consumer properties maxAttempts and backOff* apply as with the broker binders.
+ */
+public class InMemoryBinder extends AbstractMessageChannelBinder<ConsumerProperties, ProducerProperties, InMemoryProvisioner> {
+
+    private final InMemoryDestinations destinations;
+
+    public InMemoryBinder(InMemoryProvisioner provisioner, InMemoryDestinations destinations) {
+        super(new String[0], provisioner);
+        this.destinations = destinations;
+    }
+
+    @Override
+    protected MessageHandler createProducerMessageHandler(ProducerDestination destination, ProducerProperties producerProperties, MessageChannel errorChannel) {
+        return message -> destinations.send(destination.getName(), message);
+    }
+
+    @Override
+    protected MessageProducer createConsumerEndpoint(ConsumerDestination destination, String group, ConsumerProperties properties) {
+        return new InMemoryConsumerEndpoint(destinations, destination.getName(), group, buildRetryTemplate(properties));
+    }
+}
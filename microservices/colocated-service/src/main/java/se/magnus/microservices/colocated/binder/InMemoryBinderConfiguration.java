@@ -0,0 +1,21 @@
+package se.magnus.microservices.colocated.binder;
+
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+/**
+ * Binder named memory in META-INF/spring.binders, selected with spring.cloud.stream.defaultBinder: memory.
+ */
+@Configuration
+public class InMemoryBinderConfiguration {
+
+    @Bean
+    public InMemoryProvisioner inMemoryProvisioner() {
+        return new InMemoryProvisioner();
+    }
+
+    @Bean
+    public InMemoryBinder inMemoryBinder(InMemoryProvisioner provisioner) {
+        return new InMemoryBinder(provisioner, InMemoryDestinations.INSTANCE);
+    }
+}
@@ -0,0 +1,66 @@
+package se.magnus.microservices.colocated.binder;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.integration.IntegrationMessageHeaderAccessor;
+import org.springframework.integration.endpoint.MessageProducerSupport;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.support.MessageBuilder;
+import org.springframework.retry.support.RetryTemplate;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Consumes the messages of one destination for a group. Messages are processed one at a time in the order they were sent,
+ * on a thread of the endpoint, so the sender is not blocked by the processing. Failed messages are retried with the retry
+ * template of the binding and then dropped, since there is no dead letter queue.
+ */
+@Slf4j
+public class InMemoryConsumerEndpoint extends MessageProducerSupport {
+
+    private final InMemoryDestinations destinations;
+    private final String destination;
+    private final String group;
+    private final RetryTemplate retryTemplate;
+    private ExecutorService executor;
+    private String subscribedGroup;
+
+    public InMemoryConsumerEndpoint(InMemoryDestinations destinations, String destination, String group, RetryTemplate retryTemplate) {
+        this.destinations = destinations;
+        this.destination = destination;
+        this.group = group;
+        this.retryTemplate = retryTemplate;
+    }
+
+    @Override
+    protected void doStart() {
+        executor = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "in-memory-" + destination);
+            thread.setDaemon(true);
+            return thread;
+        });
+        subscribedGroup = destinations.subscribe(destination, group, this);
+    }
+
+    @Override
+    protected void doStop() {
+        destinations.unsubscribe(destination, subscribedGroup, this);
+        executor.shutdown();
+    }
+
+    void deliver(Message<?> message) {
+        executor.execute(() -> {
+            try {
+                retryTemplate.execute(context -> {
+                    sendMessage(MessageBuilder.fromMessage(message)
+                            .setHeader(IntegrationMessageHeaderAccessor.DELIVERY_ATTEMPT, new AtomicInteger(context.getRetryCount() + 1))
+                            .build());
+                    return null;
+                });
+            } catch (RuntimeException ex) {
+                log.warn("Failed to process a message of destination {}, drops it: {}", destination, ex.toString());
+            }
+        });
+    }
+}
@@ -0,0 +1,69 @@
+package se.magnus.microservices.colocated.binder;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.messaging.Message;
+
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The destinations shared by the application contexts of the services running in one JVM.
+ *
+ * Like a broker, a message sent to a destination is delivered once to every consumer group, to one of its consumers in turn,
+ * and consumers without a group form a group of their own. Messages sent while a group has no consumers are dropped,
+ * there is no durable queue.
+ */
+@Slf4j
+public class InMemoryDestinations {
+
+    public static final InMemoryDestinations INSTANCE = new InMemoryDestinations();
+
+    private final Map<String, Map<String, Group>> destinations = new ConcurrentHashMap<>();
+
+    public void send(String destination, Message<?> message) {
+        Map<String, Group> groups = destinations.get(destination);
+        if(groups == null || groups.isEmpty()){
+            log.debug("No consumers of destination {}, drops the message", destination);
+            return;
+        }
+
+        groups.values().forEach(group -> group.deliver(message));
+    }
+
+    /**
+     * Returns the group name the consumer was subscribed with, a generated one if it has no group.
+     */
+    String subscribe(String destination, String group, InMemoryConsumerEndpoint consumer) {
+        String groupName = group == null || group.isEmpty() ? "anonymous." + UUID.randomUUID() : group;
+        destinations.computeIfAbsent(destination, name -> new ConcurrentHashMap<>())
+                .computeIfAbsent(groupName, name -> new Group())
+                .consumers.add(consumer);
+        return groupName;
+    }
+
+    void unsubscribe(String destination, String group, InMemoryConsumerEndpoint consumer) {
+        Map<String, Group> groups = destinations.get(destination);
+        if(groups == null) return;
+
+        groups.computeIfPresent(group, (name, g) -> {
+            g.consumers.remove(consumer);
+            return g.consumers.isEmpty() ? null : g;
+        });
+    }
+
+    private static class Group {
+        private final List<InMemoryConsumerEndpoint> consumers = new CopyOnWriteArrayList<>();
+        private final AtomicInteger next = new AtomicInteger();
+
+        void deliver(Message<?> message) {
+            Object[] current = consumers.toArray();
+            if(current.length == 0) return;
+
+            ((InMemoryConsumerEndpoint) current[Math.floorMod(next.getAndIncrement(), current.length)]).deliver(message);
+        }
+    }
+}
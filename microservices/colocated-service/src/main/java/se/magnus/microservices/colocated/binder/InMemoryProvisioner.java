@@ -0,0 +1,33 @@
+package se.magnus.microservices.colocated.binder;
+
+import org.springframework.cloud.stream.binder.ConsumerProperties;
+import org.springframework.cloud.stream.binder.ProducerProperties;
+import org.springframework.cloud.stream.provisioning.ConsumerDestination;
+import org.springframework.cloud.stream.provisioning.ProducerDestination;
+import org.springframework.cloud.stream.provisioning.ProvisioningProvider;
+
+/**
+ * In-memory destinations need no provisioning, they are identified by their names only and are not partitioned.
+ */
+public class InMemoryProvisioner implements ProvisioningProvider<ConsumerProperties, ProducerProperties> {
+
+    @Override
+    public ProducerDestination provisionProducerDestination(String name, ProducerProperties properties) {
+        return new ProducerDestination() {
+            @Override
+            public String getName() {
+                return name;
+            }
+
+            @Override
+            public String getNameForPartition(int partition) {
+                return name;
+            }
+        };
+    }
+
+    @Override
+    public ConsumerDestination provisionConsumerDestination(String name, String group, ConsumerProperties properties) {
+        return () -> name;
+    }
+}
@@ -0,0 +1,78 @@
+package se.magnus.microservices.colocated;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.integration.IntegrationMessageHeaderAccessor;
+import org.springframework.integration.channel.DirectChannel;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.support.MessageBuilder;
+import org.springframework.retry.support.RetryTemplate;
+import se.magnus.microservices.colocated.binder.InMemoryConsumerEndpoint;
+import se.magnus.microservices.colocated.binder.InMemoryDestinations;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+public class InMemoryBinderTests {
+
+    private final InMemoryDestinations destinations = new InMemoryDestinations();
+    private final List<InMemoryConsumerEndpoint> endpoints = new ArrayList<>();
+
+    @AfterEach
+    public void tearDown(){
+        endpoints.forEach(InMemoryConsumerEndpoint::stop);
+    }
+
+    @Test
+    public void eachGroupGetsEveryMessageOnce() throws InterruptedException {
+        BlockingQueue<Message<?>> first = new LinkedBlockingQueue<>();
+        BlockingQueue<Message<?>> second = new LinkedBlockingQueue<>();
+        BlockingQueue<Message<?>> anonymous = new LinkedBlockingQueue<>();
+        subscribe("products", "productsGroup", first::add, RetryTemplate.builder().maxAttempts(1).build());
+        subscribe("products", "productsGroup", second::add, RetryTemplate.builder().maxAttempts(1).build());
+        subscribe("products", null, anonymous::add, RetryTemplate.builder().maxAttempts(1).build());
+
+        destinations.send("products", MessageBuilder.withPayload("1").build());
+        destinations.send("products", MessageBuilder.withPayload("2").build());
+        destinations.send("reviews", MessageBuilder.withPayload("3").build());
+
+        assertEquals("1", first.poll(1, TimeUnit.SECONDS).getPayload());
+        assertEquals("2", second.poll(1, TimeUnit.SECONDS).getPayload());
+        assertEquals("1", anonymous.poll(1, TimeUnit.SECONDS).getPayload());
+        assertEquals("2", anonymous.poll(1, TimeUnit.SECONDS).getPayload());
+        assertNull(first.poll(100, TimeUnit.MILLISECONDS));
+        assertNull(anonymous.poll(100, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void failedMessagesAreRetried() throws InterruptedException {
+        BlockingQueue<Message<?>> processed = new LinkedBlockingQueue<>();
+        AtomicInteger calls = new AtomicInteger();
+        subscribe("reviews", "reviewsGroup", message -> {
+            if(calls.incrementAndGet() < 3) throw new RuntimeException("Failed attempt " + calls.get());
+            processed.add(message);
+        }, RetryTemplate.builder().maxAttempts(3).fixedBackoff(10).build());
+
+        destinations.send("reviews", MessageBuilder.withPayload("1").build());
+
+        Message<?> message = processed.poll(1, TimeUnit.SECONDS);
+        assertEquals(3, ((AtomicInteger) message.getHeaders().get(IntegrationMessageHeaderAccessor.DELIVERY_ATTEMPT)).get());
+    }
+
+    private void subscribe(String destination, String group, java.util.function.Consumer<Message<?>> handler, RetryTemplate retryTemplate) {
+        DirectChannel channel = new DirectChannel();
+        channel.subscribe(handler::accept);
+
+        InMemoryConsumerEndpoint endpoint = new InMemoryConsumerEndpoint(destinations, destination, group, retryTemplate);
+        endpoint.setOutputChannel(channel);
+        endpoint.start();
+        endpoints.add(endpoint);
+    }
+}
@@ -5,7 +5,7 @@ import org.springframework.boot.autoconfigure.SpringBootApplication;
 import org.springframework.context.annotation.ComponentScan;
 
 @SpringBootApplication
-@ComponentScan("se.magnus")
+@ComponentScan({"se.magnus.microservices.composite.product", "se.magnus.util"})
 public class ProductCompositeServiceApplication {
 
     public static void main(String[] args) {
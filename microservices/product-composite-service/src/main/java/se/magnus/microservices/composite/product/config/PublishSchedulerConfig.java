@@ -0,0 +1,25 @@
+package se.magnus.microservices.composite.product.config;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.stereotype.Component;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+
+@Component
+@Slf4j
+public class PublishSchedulerConfig {
+
+    @Value("${app.event-publishing.threadPoolSize:10}")
+    private Integer threadPoolSize;
+
+    @Value("${app.event-publishing.taskQueueSize:100}")
+    private Integer taskQueueSize;
+
+    @Bean
+    public Scheduler publishEventScheduler(){
+        log.info("Creates a publishEventScheduler with threadPoolSize = {}, taskQueueSize = {}", threadPoolSize, taskQueueSize);
+        return Schedulers.newBoundedElastic(threadPoolSize, taskQueueSize, "publish-pool");
+    }
+}
@@ -0,0 +1,48 @@
+package se.magnus.microservices.composite.product.config;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Component;
+import org.springframework.web.server.ServerWebExchange;
+import org.springframework.web.server.WebFilter;
+import org.springframework.web.server.WebFilterChain;
+import reactor.core.publisher.Mono;
+import se.magnus.microservices.composite.product.services.ServerTiming;
+
+/**
+ * Adds a Server-Timing header to the responses, splitting the time spent across the backends and the aggregation,
+ * when enabled by app.server-timing.enabled.
+ *
+ * Streamed responses, e.g. NDJSON, get no header. They are committed with their first element, before most of the
+ * work is done, so the timings would be incomplete.
+ */
+@Component
+public class ServerTimingWebFilter implements WebFilter {
+
+    private final boolean enabled;
+
+    public ServerTimingWebFilter(@Value("${app.server-timing.enabled:false}") boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    @Override
+    public Mono<Void> filter(ServerWebExchange exchange, WebFilterChain chain) {
+        if(!enabled) return chain.filter(exchange);
+
+        ServerTiming timing = new ServerTiming();
+        exchange.getResponse().beforeCommit(() -> {
+            if(!isStreaming(exchange.getResponse().getHeaders().getContentType())) {
+                exchange.getResponse().getHeaders().add(ServerTiming.HEADER, timing.toHeaderValue());
+            }
+            return Mono.empty();
+        });
+        return chain.filter(exchange).contextWrite(timing::putInto);
+    }
+
+    private boolean isStreaming(MediaType contentType) {
+        if(contentType == null) return false;
+        return MediaType.APPLICATION_NDJSON.isCompatibleWith(contentType)
+                || MediaType.TEXT_EVENT_STREAM.isCompatibleWith(contentType)
+                || contentType.getSubtype().startsWith("stream+");
+    }
+}
@@ -3,7 +3,11 @@ package se.magnus.microservices.composite.product.config;
 import org.springframework.cloud.client.loadbalancer.LoadBalanced;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.web.reactive.function.client.ClientRequest;
+import org.springframework.web.reactive.function.client.ExchangeFilterFunction;
 import org.springframework.web.reactive.function.client.WebClient;
+import reactor.core.publisher.Mono;
+import se.magnus.util.http.Deadline;
 
 @Configuration
 public class WebClientConfig {
@@ -11,7 +15,20 @@ public class WebClientConfig {
     @LoadBalanced
     @Bean
     public WebClient.Builder loadBalancedWebClientBuilder(){
-        final WebClient.Builder builder = WebClient.builder();
+        final WebClient.Builder builder = WebClient.builder()
+                .filter(deadlinePropagation());
         return builder;
     }
+
+    /**
+     * Propagates the remaining budget of the request's deadline, if any, to the called service.
+     */
+    private ExchangeFilterFunction deadlinePropagation() {
+        return (request, next) -> Mono.deferContextual(context -> next.exchange(
+                Deadline.fromContext(context)
+                        .map(deadline -> ClientRequest.from(request)
+                                .header(Deadline.HEADER, String.valueOf(deadline.remainingMillis()))
+                                .build())
+                        .orElse(request)));
+    }
 }
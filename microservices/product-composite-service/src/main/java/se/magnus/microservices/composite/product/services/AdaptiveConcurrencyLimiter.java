@@ -0,0 +1,190 @@
+package se.magnus.microservices.composite.product.services;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.web.reactive.function.client.WebClientRequestException;
+import org.springframework.web.reactive.function.client.WebClientResponseException;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import se.magnus.util.exceptions.ServiceUnavailableException;
+import se.magnus.util.grpc.GrpcErrors;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Per backend bulkhead with an AIMD limit on the number of concurrent calls, tuned from the observed latency.
+ *
+ * The limit grows by one per limit's worth of calls while the latency stays within rttTolerance times the no-load latency,
+ * i.e. the lowest recently observed latency, and is multiplied by backoffRatio on slower calls, timeouts and server errors,
+ * including the UNAVAILABLE, DEADLINE_EXCEEDED and RESOURCE_EXHAUSTED statuses of gRPC calls.
+ * Calls over the limit fail fast with a ServiceUnavailableException.
+ */
+@Component
+@Slf4j
+public class AdaptiveConcurrencyLimiter {
+
+    private final MeterRegistry meterRegistry;
+    private final boolean enabled;
+    private final int initialLimit;
+    private final int minLimit;
+    private final int maxLimit;
+    private final double backoffRatio;
+    private final double rttTolerance;
+    private final Map<String, Limit> limits = new ConcurrentHashMap<>();
+
+    public AdaptiveConcurrencyLimiter(
+            MeterRegistry meterRegistry,
+            @Value("${app.concurrency-limit.enabled:true}") boolean enabled,
+            @Value("${app.concurrency-limit.initialLimit:20}") int initialLimit,
+            @Value("${app.concurrency-limit.minLimit:2}") int minLimit,
+            @Value("${app.concurrency-limit.maxLimit:200}") int maxLimit,
+            @Value("${app.concurrency-limit.backoffRatio:0.9}") double backoffRatio,
+            @Value("${app.concurrency-limit.rttTolerance:2.0}") double rttTolerance) {
+
+        this.meterRegistry = meterRegistry;
+        this.enabled = enabled;
+        this.initialLimit = initialLimit;
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.backoffRatio = backoffRatio;
+        this.rttTolerance = rttTolerance;
+    }
+
+    public <T> Mono<T> limit(String backend, Mono<T> call) {
+        if(!enabled) return call;
+
+        return Mono.defer(() -> {
+            Permit permit = tryAcquire(backend);
+            if(permit == null) return Mono.error(rejected(backend));
+
+            return call
+                    .doOnSuccess(value -> permit.complete())
+                    .doOnError(permit::error)
+                    .doOnCancel(permit::cancel);
+        });
+    }
+
+    public <T> Flux<T> limit(String backend, Flux<T> call) {
+        if(!enabled) return call;
+
+        return Flux.defer(() -> {
+            Permit permit = tryAcquire(backend);
+            if(permit == null) return Flux.error(rejected(backend));
+
+            return call
+                    .doOnComplete(permit::complete)
+                    .doOnError(permit::error)
+                    .doOnCancel(permit::cancel);
+        });
+    }
+
+    private Permit tryAcquire(String backend) {
+        Limit limit = getLimit(backend);
+        return limit.tryAcquire() ? new Permit(limit) : null;
+    }
+
+    private ServiceUnavailableException rejected(String backend) {
+        rejectedCounter(backend).increment();
+        log.debug("Rejects call to {}, concurrency limit reached", backend);
+        return new ServiceUnavailableException("Too many concurrent calls to " + backend + ", try again later");
+    }
+
+    private boolean isOverload(Throwable error) {
+        return error instanceof TimeoutException
+                || error instanceof WebClientRequestException
+                || (error instanceof WebClientResponseException && ((WebClientResponseException) error).getStatusCode().is5xxServerError())
+                || GrpcErrors.isOverload(error);
+    }
+
+    private Limit getLimit(String backend) {
+        return limits.computeIfAbsent(backend, key -> {
+            Limit limit = new Limit(initialLimit);
+            Gauge.builder("product.composite.concurrency.limit", limit, l -> l.limit)
+                    .description("Current concurrency limit of the calls to the backend")
+                    .tag("backend", key)
+                    .register(meterRegistry);
+            Gauge.builder("product.composite.concurrency.in-flight", limit.inFlight, AtomicInteger::get)
+                    .description("Calls in flight to the backend")
+                    .tag("backend", key)
+                    .register(meterRegistry);
+            return limit;
+        });
+    }
+
+    private Counter rejectedCounter(String backend) {
+        return Counter.builder("product.composite.concurrency.rejected")
+                .description("Calls rejected by the concurrency limit of the backend")
+                .tag("backend", backend)
+                .register(meterRegistry);
+    }
+
+    private class Permit {
+        private final Limit limit;
+        private final long start = System.nanoTime();
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        Permit(Limit limit) {
+            this.limit = limit;
+        }
+
+        void complete() {
+            if(released.compareAndSet(false, true)) limit.release(System.nanoTime() - start, false);
+        }
+
+        void error(Throwable error) {
+            if(released.compareAndSet(false, true)) limit.release(System.nanoTime() - start, isOverload(error));
+        }
+
+        void cancel() {
+            if(released.compareAndSet(false, true)) limit.releaseWithoutSample();
+        }
+    }
+
+    private class Limit {
+        private final AtomicInteger inFlight = new AtomicInteger();
+        private volatile double limit;
+        private double rttNoLoadNanos;
+
+        Limit(int initialLimit) {
+            this.limit = initialLimit;
+        }
+
+        boolean tryAcquire() {
+            while(true){
+                int current = inFlight.get();
+                if(current >= (int) limit) return false;
+                if(inFlight.compareAndSet(current, current + 1)) return true;
+            }
+        }
+
+        void releaseWithoutSample() {
+            inFlight.decrementAndGet();
+        }
+
+        synchronized void release(long rttNanos, boolean overload) {
+            int inFlightBefore = inFlight.getAndDecrement();
+
+            if(rttNoLoadNanos == 0 || rttNanos < rttNoLoadNanos){
+                rttNoLoadNanos = rttNanos;
+            } else {
+                // let the no-load latency follow a permanently slower backend
+                rttNoLoadNanos += (rttNanos - rttNoLoadNanos) * 0.01;
+            }
+
+            if(overload || rttNanos > rttNoLoadNanos * rttTolerance){
+                limit = Math.max(minLimit, limit * backoffRatio);
+            } else if(inFlightBefore * 2 >= limit){
+                // only grow a limit that is actually used
+                limit = Math.min(maxLimit, limit + 1.0 / limit);
+            }
+        }
+    }
+}
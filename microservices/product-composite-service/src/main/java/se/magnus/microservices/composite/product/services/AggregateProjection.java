@@ -0,0 +1,96 @@
+package se.magnus.microservices.composite.product.services;
+
+import se.magnus.api.composite.product.ProductAggregate;
+import se.magnus.util.exceptions.InvalidInputException;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The optional fields of a product aggregate requested through the fields parameter, on top of the always included
+ * base product fields productId, name and weight. Backends whose data is not needed by any requested field are not called.
+ */
+public final class AggregateProjection {
+
+    enum Field {
+        RECOMMENDATIONS("recommendations"),
+        RECOMMENDATION_COUNT("recommendationCount"),
+        REVIEWS("reviews"),
+        REVIEW_COUNT("reviewCount"),
+        SERVICE_ADDRESSES("serviceAddresses");
+
+        private final String paramName;
+
+        Field(String paramName) {
+            this.paramName = paramName;
+        }
+    }
+
+    private static final AggregateProjection DEFAULT = new AggregateProjection(EnumSet.of(Field.RECOMMENDATIONS, Field.REVIEWS, Field.SERVICE_ADDRESSES));
+
+    private final Set<Field> fields;
+
+    private AggregateProjection(Set<Field> fields) {
+        this.fields = fields;
+    }
+
+    /**
+     * Parses the fields parameter, no fields gives the default aggregate with recommendations, reviews and service addresses.
+     */
+    public static AggregateProjection of(List<String> fieldNames) {
+        if(fieldNames == null || fieldNames.isEmpty()) return DEFAULT;
+
+        Set<Field> fields = EnumSet.noneOf(Field.class);
+        for(String fieldName : fieldNames){
+            String name = fieldName.trim();
+            if(name.isEmpty() || name.equals("productId") || name.equals("name") || name.equals("weight")) continue;
+
+            fields.add(Arrays.stream(Field.values())
+                    .filter(f -> f.paramName.equals(name))
+                    .findFirst()
+                    .orElseThrow(() -> new InvalidInputException("Invalid field: " + name)));
+        }
+        return new AggregateProjection(fields);
+    }
+
+    public boolean needsRecommendations() {
+        return fields.contains(Field.RECOMMENDATIONS) || fields.contains(Field.RECOMMENDATION_COUNT);
+    }
+
+    public boolean needsReviews() {
+        return fields.contains(Field.REVIEWS) || fields.contains(Field.REVIEW_COUNT);
+    }
+
+    public boolean needsAllBackends() {
+        return needsRecommendations() && needsReviews();
+    }
+
+    public boolean isDefault() {
+        return fields.equals(DEFAULT.fields);
+    }
+
+    /**
+     * Returns the aggregate with only the requested fields set, the others are left out of the JSON response.
+     */
+    public ProductAggregate apply(ProductAggregate aggregate) {
+        if(isDefault()) return aggregate;
+
+        return ProductAggregate.builder()
+                .productId(aggregate.getProductId())
+                .name(aggregate.getName())
+                .weight(aggregate.getWeight())
+                .recommendations(fields.contains(Field.RECOMMENDATIONS) ? aggregate.getRecommendations() : null)
+                .recommendationCount(fields.contains(Field.RECOMMENDATION_COUNT) ? sizeOf(aggregate.getRecommendations()) : null)
+                .reviews(fields.contains(Field.REVIEWS) ? aggregate.getReviews() : null)
+                .reviewCount(fields.contains(Field.REVIEW_COUNT) ? sizeOf(aggregate.getReviews()) : null)
+                .serviceAddresses(fields.contains(Field.SERVICE_ADDRESSES) ? aggregate.getServiceAddresses() : null)
+                .build();
+    }
+
+    private static Integer sizeOf(List<?> items) {
+        return (items == null ? Collections.emptyList() : items).size();
+    }
+}
@@ -0,0 +1,95 @@
+package se.magnus.microservices.composite.product.services;
+
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.stereotype.Component;
+import org.springframework.web.reactive.function.client.WebClientResponseException;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.SignalType;
+import reactor.util.context.ContextView;
+import se.magnus.util.exceptions.InvalidInputException;
+import se.magnus.util.exceptions.NotFoundException;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Times the calls to the backends with Micrometer timers, with percentile histograms, tagged by backend, outcome and status.
+ * The durations are also added to the request's {@link ServerTiming}, if any.
+ */
+@Component
+public class BackendCallMetrics {
+
+    private static final String TIMER_NAME = "product.composite.backend.requests";
+
+    private final MeterRegistry meterRegistry;
+
+    public BackendCallMetrics(MeterRegistry meterRegistry) {
+        this.meterRegistry = meterRegistry;
+    }
+
+    public <T> Mono<T> time(String backend, Mono<T> call) {
+        return Mono.deferContextual(context -> {
+            long start = System.nanoTime();
+            AtomicReference<Throwable> error = new AtomicReference<>();
+            return call
+                    .doOnError(error::set)
+                    .doFinally(signal -> record(backend, signal, error.get(), System.nanoTime() - start, context));
+        });
+    }
+
+    public <T> Flux<T> time(String backend, Flux<T> call) {
+        return Flux.deferContextual(context -> {
+            long start = System.nanoTime();
+            AtomicReference<Throwable> error = new AtomicReference<>();
+            return call
+                    .doOnError(error::set)
+                    .doFinally(signal -> record(backend, signal, error.get(), System.nanoTime() - start, context));
+        });
+    }
+
+    private void record(String backend, SignalType signal, Throwable error, long durationNanos, ContextView context) {
+        Timer.builder(TIMER_NAME)
+                .description("Calls from the composite service to the backend services")
+                .tag("backend", backend)
+                .tag("outcome", getOutcome(signal, error))
+                .tag("status", getStatus(signal, error))
+                .publishPercentileHistogram()
+                .register(meterRegistry)
+                .record(durationNanos, TimeUnit.NANOSECONDS);
+
+        ServerTiming.fromContext(context).ifPresent(timing -> timing.record(backend, durationNanos));
+    }
+
+    private String getOutcome(SignalType signal, Throwable error) {
+        if(signal == SignalType.CANCEL) return "CANCELLED";
+        if(error == null) return "SUCCESS";
+        if(error instanceof TimeoutException) return "TIMEOUT";
+        if(error instanceof NotFoundException || error instanceof InvalidInputException) return "CLIENT_ERROR";
+        if(error instanceof WebClientResponseException){
+            return ((WebClientResponseException) error).getStatusCode().is4xxClientError() ? "CLIENT_ERROR" : "SERVER_ERROR";
+        }
+        if(error instanceof StatusRuntimeException){
+            Status.Code code = ((StatusRuntimeException) error).getStatus().getCode();
+            if(code == Status.Code.DEADLINE_EXCEEDED) return "TIMEOUT";
+            if(code == Status.Code.CANCELLED) return "CANCELLED";
+            return code == Status.Code.INVALID_ARGUMENT || code == Status.Code.NOT_FOUND ? "CLIENT_ERROR" : "SERVER_ERROR";
+        }
+        return "UNKNOWN";
+    }
+
+    private String getStatus(SignalType signal, Throwable error) {
+        if(signal == SignalType.CANCEL) return "NONE";
+        if(error == null) return "2xx";
+        if(error instanceof NotFoundException) return "404";
+        if(error instanceof InvalidInputException) return "422";
+        if(error instanceof WebClientResponseException) return String.valueOf(((WebClientResponseException) error).getRawStatusCode());
+        // gRPC calls are tagged with the name of their status code, e.g. UNAVAILABLE
+        if(error instanceof StatusRuntimeException) return ((StatusRuntimeException) error).getStatus().getCode().name();
+        return "NONE";
+    }
+}
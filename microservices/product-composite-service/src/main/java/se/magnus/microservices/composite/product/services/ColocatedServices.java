@@ -0,0 +1,19 @@
+package se.magnus.microservices.composite.product.services;
+
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+import se.magnus.api.core.product.ProductService;
+import se.magnus.api.core.recommendation.RecommendationService;
+import se.magnus.api.core.review.ReviewService;
+
+/**
+ * The core services running in the same JVM, registered as a bean by the co-located launcher. When present,
+ * the {@link ProductCompositeIntegration} reads through them directly instead of over HTTP or gRPC.
+ */
+@Getter
+@RequiredArgsConstructor
+public class ColocatedServices {
+    private final ProductService productService;
+    private final RecommendationService recommendationService;
+    private final ReviewService reviewService;
+}
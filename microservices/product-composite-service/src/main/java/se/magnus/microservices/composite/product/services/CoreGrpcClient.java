@@ -0,0 +1,146 @@
+package se.magnus.microservices.composite.product.services;
+
+import io.grpc.CallOptions;
+import io.grpc.ClientCall;
+import io.grpc.ManagedChannel;
+import io.grpc.ManagedChannelBuilder;
+import io.grpc.MethodDescriptor;
+import io.grpc.stub.ClientCallStreamObserver;
+import io.grpc.stub.ClientCalls;
+import io.grpc.stub.ClientResponseObserver;
+import io.grpc.stub.StreamObserver;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.FluxSink;
+import reactor.core.publisher.Mono;
+import reactor.util.context.ContextView;
+import se.magnus.api.core.product.Product;
+import se.magnus.api.core.recommendation.Recommendation;
+import se.magnus.api.core.review.Review;
+import se.magnus.api.grpc.CoreServiceMethods;
+import se.magnus.api.grpc.ProductRequest;
+import se.magnus.util.grpc.GrpcErrors;
+import se.magnus.util.http.Deadline;
+
+import javax.annotation.PreDestroy;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reads from the core services over gRPC, used by the {@link ProductCompositeIntegration} when app.grpc.client.enabled is set.
+ *
+ * Each core service gets one channel, that keeps persistent HTTP/2 connections to all addresses its target resolves to
+ * and spreads the calls over them round robin. The channels connect on their first call. Cancelling a subscription,
+ * e.g. on a timeout, cancels the call, and the calls carry the deadline of the request.
+ */
+@Component
+@Slf4j
+public class CoreGrpcClient {
+
+    private final ManagedChannel productChannel;
+    private final ManagedChannel recommendationChannel;
+    private final ManagedChannel reviewChannel;
+
+    public CoreGrpcClient(
+            @Value("${app.grpc.client.productTarget:localhost:8001}") String productTarget,
+            @Value("${app.grpc.client.recommendationTarget:localhost:8002}") String recommendationTarget,
+            @Value("${app.grpc.client.reviewTarget:localhost:8003}") String reviewTarget,
+            @Value("${app.grpc.client.keepAliveSec:30}") long keepAliveSec) {
+
+        this.productChannel = createChannel(productTarget, keepAliveSec);
+        this.recommendationChannel = createChannel(recommendationTarget, keepAliveSec);
+        this.reviewChannel = createChannel(reviewTarget, keepAliveSec);
+    }
+
+    public Mono<Product> getProduct(int productId, int delay, int faultPercent) {
+        return Mono.create(sink -> {
+            ClientCall<ProductRequest, Product> call = productChannel.newCall(CoreServiceMethods.GET_PRODUCT, getCallOptions(sink.contextView()));
+            sink.onCancel(() -> call.cancel("Cancelled by the caller", null));
+            ClientCalls.asyncUnaryCall(call, new ProductRequest(productId, delay, faultPercent), new StreamObserver<Product>() {
+                @Override
+                public void onNext(Product product) {
+                    sink.success(product);
+                }
+
+                @Override
+                public void onError(Throwable ex) {
+                    sink.error(GrpcErrors.fromStatusException(ex));
+                }
+
+                @Override
+                public void onCompleted() {
+                    sink.success();
+                }
+            });
+        });
+    }
+
+    public Flux<Recommendation> getRecommendations(int productId) {
+        return serverStreamingCall(recommendationChannel, CoreServiceMethods.GET_RECOMMENDATIONS, productId);
+    }
+
+    public Flux<Review> getReviews(int productId) {
+        return serverStreamingCall(reviewChannel, CoreServiceMethods.GET_REVIEWS, productId);
+    }
+
+    /**
+     * Messages are requested from the call as the subscriber requests them, so the server is held back by the flow
+     * control of the call instead of filling an unbounded buffer of the sink.
+     */
+    private <T> Flux<T> serverStreamingCall(ManagedChannel channel, MethodDescriptor<ProductRequest, T> method, int productId) {
+        return Flux.create((FluxSink<T> sink) -> {
+            ClientCall<ProductRequest, T> call = channel.newCall(method, getCallOptions(sink.contextView()));
+            sink.onCancel(() -> call.cancel("Cancelled by the caller", null));
+            ClientCalls.asyncServerStreamingCall(call, new ProductRequest(productId, 0, 0), new ClientResponseObserver<ProductRequest, T>() {
+                @Override
+                public void beforeStart(ClientCallStreamObserver<ProductRequest> requestStream) {
+                    requestStream.disableAutoRequestWithInitial(0);
+                }
+
+                @Override
+                public void onNext(T value) {
+                    sink.next(value);
+                }
+
+                @Override
+                public void onError(Throwable ex) {
+                    sink.error(GrpcErrors.fromStatusException(ex));
+                }
+
+                @Override
+                public void onCompleted() {
+                    sink.complete();
+                }
+            });
+            // the call is started now, the demand requested so far is passed on at once
+            sink.onRequest(n -> call.request((int) Math.min(n, Integer.MAX_VALUE)));
+        });
+    }
+
+    /**
+     * Calls get the remaining budget of the request's deadline if any, as the X-Deadline-Ms header of the HTTP calls.
+     * The core service cancels the call when the deadline is exceeded.
+     */
+    private CallOptions getCallOptions(ContextView context) {
+        return Deadline.fromContext(context)
+                .map(deadline -> CallOptions.DEFAULT.withDeadlineAfter(deadline.remainingMillis(), TimeUnit.MILLISECONDS))
+                .orElse(CallOptions.DEFAULT);
+    }
+
+    private ManagedChannel createChannel(String target, long keepAliveSec) {
+        log.info("Creates a gRPC channel to {}", target);
+        return ManagedChannelBuilder.forTarget(target)
+                .defaultLoadBalancingPolicy("round_robin")
+                .keepAliveTime(keepAliveSec, TimeUnit.SECONDS)
+                .usePlaintext()
+                .build();
+    }
+
+    @PreDestroy
+    public void close() {
+        productChannel.shutdown();
+        recommendationChannel.shutdown();
+        reviewChannel.shutdown();
+    }
+}
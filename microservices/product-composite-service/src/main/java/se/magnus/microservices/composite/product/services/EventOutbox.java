@@ -0,0 +1,279 @@
+package se.magnus.microservices.composite.product.services;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageChannel;
+import org.springframework.messaging.support.MessageBuilder;
+import org.springframework.stereotype.Component;
+import reactor.core.Disposable;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+import reactor.util.function.Tuple2;
+import reactor.util.function.Tuples;
+import se.magnus.api.event.Event;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * Local, file based, append-only outbox for the events of the composite write operations.
+ *
+ * All events of one write operation are appended to outbox.log as JSON lines in a single, forced write, so a write is
+ * acknowledged as soon as it is durable and is either relayed completely or not at all. A relay thread sends the
+ * pending events in order and in batches of app.outbox.relayBatchSize, waits for the broker confirms of the whole batch,
+ * and then records the relayed position in outbox.offset. Failed batches are retried on the next relay run, so events are
+ * relayed at least once. The log is truncated when everything in it has been relayed.
+ */
+@Component
+@Slf4j
+public class EventOutbox {
+
+    private static final byte NEWLINE = '\n';
+    private static final int MAX_READ_BYTES = 16 * 1024 * 1024;
+
+    private final ObjectMapper objectMapper;
+    private final EventPublisher eventPublisher;
+    private final ProductCompositeIntegration.MessageSources messageSources;
+    private final Scheduler publishEventScheduler;
+    private final boolean enabled;
+    private final Path logFile;
+    private final Path offsetFile;
+    private final int relayBatchSize;
+    private final Duration relayInterval;
+    private final Scheduler relayScheduler = Schedulers.newBoundedElastic(1, Integer.MAX_VALUE, "outbox-relay");
+    private final AtomicBoolean relayScheduled = new AtomicBoolean();
+    private final Object relayLock = new Object();
+    private Disposable periodicRelay;
+    private FileChannel file;
+    private long relayedOffset;
+    private boolean closed;
+
+    public EventOutbox(
+            ObjectMapper objectMapper,
+            EventPublisher eventPublisher,
+            ProductCompositeIntegration.MessageSources messageSources,
+            @Qualifier("publishEventScheduler") Scheduler publishEventScheduler,
+            MeterRegistry meterRegistry,
+            @Value("${app.outbox.enabled:false}") boolean enabled,
+            @Value("${app.outbox.directory:${java.io.tmpdir}/product-composite-outbox}") String directory,
+            @Value("${app.outbox.relayBatchSize:500}") int relayBatchSize,
+            @Value("${app.outbox.relayIntervalMs:1000}") long relayIntervalMs) {
+
+        this.objectMapper = objectMapper;
+        this.eventPublisher = eventPublisher;
+        this.messageSources = messageSources;
+        this.publishEventScheduler = publishEventScheduler;
+        this.enabled = enabled;
+        this.logFile = Paths.get(directory, "outbox.log");
+        this.offsetFile = Paths.get(directory, "outbox.offset");
+        this.relayBatchSize = relayBatchSize;
+        this.relayInterval = Duration.ofMillis(relayIntervalMs);
+
+        Gauge.builder("product.composite.outbox.pending", this, outbox -> outbox.getPendingBytes())
+                .description("Bytes in the outbox not yet relayed to the broker")
+                .baseUnit("bytes")
+                .register(meterRegistry);
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    @PostConstruct
+    public void open() throws IOException {
+        if(!enabled) return;
+
+        Files.createDirectories(logFile.getParent());
+        file = FileChannel.open(logFile, CREATE, READ, WRITE);
+        long storedOffset = Files.exists(offsetFile) ? Long.parseLong(new String(Files.readAllBytes(offsetFile), StandardCharsets.UTF_8).trim()) : 0;
+        // an offset beyond the end of the log is never valid, the records it points past can not be in the log
+        relayedOffset = Math.min(storedOffset, file.size());
+        truncateIncompleteRecord();
+        log.info("Opened the outbox {}, {} bytes to relay", logFile, getPendingBytes());
+
+        periodicRelay = relayScheduler.schedulePeriodically(this::relayAll, 0, relayInterval.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Waits for a running relay to complete its batch, so it is not sent again after a restart.
+     */
+    @PreDestroy
+    public void close() throws IOException {
+        synchronized (relayLock) {
+            closed = true;
+            if(periodicRelay != null) periodicRelay.dispose();
+            relayScheduler.dispose();
+            if(file != null) file.close();
+        }
+    }
+
+    /**
+     * Appends the records in one write, the returned Mono completes when they are forced to disk.
+     */
+    public Mono<Void> append(List<OutboxRecord> records) {
+        return Mono.<Void>fromRunnable(() -> {
+                    ByteArrayOutputStream lines = new ByteArrayOutputStream();
+                    try {
+                        for(OutboxRecord record : records){
+                            lines.write(objectMapper.writeValueAsBytes(record));
+                            lines.write(NEWLINE);
+                        }
+                        write(lines.toByteArray());
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                })
+                .subscribeOn(publishEventScheduler)
+                .doOnSuccess(v -> scheduleRelay());
+    }
+
+    private synchronized void write(byte[] lines) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(lines);
+        long position = file.size();
+        while(buffer.hasRemaining()){
+            position += file.write(buffer, position);
+        }
+        file.force(false);
+    }
+
+    private void scheduleRelay() {
+        if(relayScheduled.compareAndSet(false, true)){
+            relayScheduler.schedule(() -> {
+                relayScheduled.set(false);
+                relayAll();
+            });
+        }
+    }
+
+    private void relayAll() {
+        try {
+            while(relay() > 0);
+        } catch (RuntimeException e) {
+            log.warn("Failed to relay outbox events, will retry in {} ms: {}", relayInterval.toMillis(), e.toString());
+        }
+    }
+
+    /**
+     * Relays the next batch of pending records and returns the number of relayed records.
+     */
+    public int relay() {
+        synchronized (relayLock) {
+            return closed ? 0 : relayBatch();
+        }
+    }
+
+    private int relayBatch() {
+        try {
+            long size = file.size();
+            if(relayedOffset >= size) return 0;
+
+            ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(size - relayedOffset, MAX_READ_BYTES));
+            file.read(buffer, relayedOffset);
+
+            List<Tuple2<MessageChannel, Message<?>>> messages = new ArrayList<>();
+            byte[] bytes = buffer.array();
+            int start = 0;
+            for(int i = 0; i < buffer.position() && messages.size() < relayBatchSize; i++){
+                if(bytes[i] != NEWLINE) continue;
+                OutboxRecord record = objectMapper.readValue(bytes, start, i - start, OutboxRecord.class);
+                messages.add(Tuples.of(getChannel(record.getBinding()), toMessage(record)));
+                start = i + 1;
+            }
+
+            if(messages.isEmpty()) return 0;
+
+            eventPublisher.publishInOrder(messages).block();
+            commit(relayedOffset + start);
+            log.debug("Relayed {} outbox events", messages.size());
+            return messages.size();
+
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private synchronized void commit(long offset) throws IOException {
+        if(offset >= file.size()){
+            // everything is relayed, start over with an empty log. The offset is reset first, a crash before the
+            // truncate then only relays the log once more, while a stale offset would skip the next appended records
+            writeOffset(0);
+            file.truncate(0);
+            file.force(true);
+            relayedOffset = 0;
+            return;
+        }
+        writeOffset(offset);
+        relayedOffset = offset;
+    }
+
+    private void writeOffset(long offset) throws IOException {
+        Files.write(offsetFile, Long.toString(offset).getBytes(StandardCharsets.UTF_8),
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE, StandardOpenOption.SYNC);
+    }
+
+    /**
+     * Drops a partly written last record, left by a crash during an append that was never acknowledged.
+     */
+    private void truncateIncompleteRecord() throws IOException {
+        long size = file.size();
+        ByteBuffer last = ByteBuffer.allocate(1);
+        while(size > relayedOffset){
+            last.clear();
+            file.read(last, size - 1);
+            if(last.get(0) == NEWLINE) break;
+            size--;
+        }
+        if(size < file.size()){
+            log.warn("Drops {} bytes of an incomplete outbox record", file.size() - size);
+            file.truncate(size);
+        }
+    }
+
+    private long getPendingBytes() {
+        try {
+            return file == null ? 0 : file.size() - relayedOffset;
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    private MessageChannel getChannel(String binding) {
+        switch (binding){
+            case ProductCompositeIntegration.MessageSources.OUTPUT_PRODUCTS: return messageSources.outputProducts();
+            case ProductCompositeIntegration.MessageSources.OUTPUT_RECOMMENDATIONS: return messageSources.outputRecommendations();
+            case ProductCompositeIntegration.MessageSources.OUTPUT_REVIEWS: return messageSources.outputReviews();
+            default: throw new IllegalStateException("Unknown output binding in the outbox: " + binding);
+        }
+    }
+
+    private Message<?> toMessage(OutboxRecord record) {
+        MessageBuilder<Event<Integer, Object>> builder = MessageBuilder.withPayload(record.getEvent());
+        if(record.getHeaders() != null) record.getHeaders().forEach(builder::setHeader);
+        return builder.build();
+    }
+}
@@ -0,0 +1,114 @@
+package se.magnus.microservices.composite.product.services;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.amqp.rabbit.connection.CorrelationData;
+import org.springframework.amqp.support.AmqpHeaders;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageChannel;
+import org.springframework.messaging.support.MessageBuilder;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
+import reactor.util.function.Tuple2;
+import se.magnus.util.exceptions.ServiceUnavailableException;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Publishes events without blocking the caller's thread, the binder's blocking send runs on the publishEventScheduler.
+ *
+ * With app.event-publishing.awaitConfirms, the returned Mono completes only when RabbitMQ has confirmed the message,
+ * which requires publisher confirms on the connection and useConfirmHeader on the producer bindings.
+ * Kafka bindings get the same guarantee from producer.sync.
+ */
+@Component
+@Slf4j
+public class EventPublisher {
+
+    private final Scheduler publishEventScheduler;
+    private final boolean awaitConfirms;
+    private final Duration confirmTimeout;
+    private final int maxInFlight;
+
+    public EventPublisher(
+            @Qualifier("publishEventScheduler") Scheduler publishEventScheduler,
+            @Value("${app.event-publishing.awaitConfirms:false}") boolean awaitConfirms,
+            @Value("${app.event-publishing.confirmTimeoutMs:5000}") long confirmTimeoutMs,
+            @Value("${app.event-publishing.maxInFlight:16}") int maxInFlight) {
+
+        this.publishEventScheduler = publishEventScheduler;
+        this.awaitConfirms = awaitConfirms;
+        this.confirmTimeout = Duration.ofMillis(confirmTimeoutMs);
+        this.maxInFlight = maxInFlight;
+    }
+
+    public Mono<Void> publish(MessageChannel channel, Message<?> message) {
+        if(!awaitConfirms) return send(channel, message);
+
+        return Mono.defer(() -> {
+            CorrelationData correlation = new CorrelationData();
+            return send(channel, correlate(message, correlation))
+                    .then(confirmed(correlation));
+        });
+    }
+
+    /**
+     * Sends the messages one by one, in order, on the publishEventScheduler and then waits for all confirms at once.
+     */
+    public Mono<Void> publishInOrder(List<Tuple2<MessageChannel, Message<?>>> messages) {
+        return Mono
+                .fromCallable(() -> {
+                    List<CorrelationData> correlations = new ArrayList<>();
+                    for(Tuple2<MessageChannel, Message<?>> message : messages){
+                        Message<?> toSend = message.getT2();
+                        if(awaitConfirms){
+                            CorrelationData correlation = new CorrelationData();
+                            correlations.add(correlation);
+                            toSend = correlate(toSend, correlation);
+                        }
+                        if(!message.getT1().send(toSend)) throw new ServiceUnavailableException("Failed to send message to " + message.getT1());
+                    }
+                    return correlations;
+                })
+                .subscribeOn(publishEventScheduler)
+                .flatMap(correlations -> Flux.fromIterable(correlations).flatMap(this::confirmed).then());
+    }
+
+    /**
+     * Publishes the messages with at most app.event-publishing.maxInFlight of them waiting for a confirm at a time.
+     */
+    public Mono<Void> publishAll(MessageChannel channel, List<Message<?>> messages) {
+        return Flux.fromIterable(messages)
+                .flatMap(message -> publish(channel, message), maxInFlight)
+                .then();
+    }
+
+    private Message<?> correlate(Message<?> message, CorrelationData correlation) {
+        return MessageBuilder.fromMessage(message)
+                .setHeader(AmqpHeaders.PUBLISH_CONFIRM_CORRELATION, correlation)
+                .build();
+    }
+
+    private Mono<Void> confirmed(CorrelationData correlation) {
+        return Mono.fromFuture(correlation.getFuture().completable())
+                .timeout(confirmTimeout, Mono.error(() -> new ServiceUnavailableException("No publisher confirm within " + confirmTimeout.toMillis() + " ms")))
+                .flatMap(confirm -> {
+                    if(!confirm.isAck()) return Mono.error(new ServiceUnavailableException("Message not confirmed by the broker: " + confirm.getReason()));
+                    if(correlation.getReturned() != null) return Mono.error(new ServiceUnavailableException("Message returned by the broker: " + correlation.getReturned().getReplyText()));
+                    return Mono.empty();
+                });
+    }
+
+    private Mono<Void> send(MessageChannel channel, Message<?> message) {
+        return Mono.fromCallable(() -> channel.send(message))
+                .subscribeOn(publishEventScheduler)
+                .flatMap(sent -> sent
+                        ? Mono.<Void>empty()
+                        : Mono.error(new ServiceUnavailableException("Failed to send message to " + channel)));
+    }
+}
@@ -0,0 +1,121 @@
+package se.magnus.microservices.composite.product.services;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.distribution.ValueAtPercentile;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+
+/**
+ * Hedges idempotent reads: if the first call has not answered within the configured latency percentile of the backend,
+ * a second call is sent, that the load balancer routes to the next instance. The first call to answer wins and the
+ * other one is cancelled.
+ *
+ * The hedge delay is taken from the observed time to first answer, clamped to [minDelayMs, maxDelayMs],
+ * and is maxDelayMs until minSamples calls have been observed.
+ */
+@Component
+@Slf4j
+public class HedgingPolicy {
+
+    private static final String PRIMARY = "primary";
+    private static final String HEDGE = "hedge";
+
+    private final MeterRegistry meterRegistry;
+    private final boolean enabled;
+    private final double percentile;
+    private final long minDelayMs;
+    private final long maxDelayMs;
+    private final long minSamples;
+
+    public HedgingPolicy(
+            MeterRegistry meterRegistry,
+            @Value("${app.hedging.enabled:false}") boolean enabled,
+            @Value("${app.hedging.percentile:0.95}") double percentile,
+            @Value("${app.hedging.minDelayMs:20}") long minDelayMs,
+            @Value("${app.hedging.maxDelayMs:500}") long maxDelayMs,
+            @Value("${app.hedging.minSamples:20}") long minSamples) {
+
+        this.meterRegistry = meterRegistry;
+        this.enabled = enabled;
+        this.percentile = percentile;
+        this.minDelayMs = minDelayMs;
+        this.maxDelayMs = maxDelayMs;
+        this.minSamples = minSamples;
+    }
+
+    public <T> Flux<T> hedge(String backend, Supplier<Flux<T>> call) {
+        if(!enabled) return call.get();
+
+        return Flux.defer(() -> {
+            Duration delay = getDelay(backend);
+            long start = System.nanoTime();
+            AtomicBoolean hedged = new AtomicBoolean();
+            AtomicReference<String> winner = new AtomicReference<>();
+
+            Flux<T> primary = call.get()
+                    .doOnEach(signal -> answered(backend, winner, PRIMARY, start));
+            Flux<T> hedge = Mono.delay(delay)
+                    .doOnNext(tick -> {
+                        hedged.set(true);
+                        log.debug("No answer from {} within {} ms, sends a hedged request", backend, delay.toMillis());
+                    })
+                    .thenMany(Flux.defer(call))
+                    // a failed hedge, e.g. rejected by the concurrency limit, leaves the answer to the first call
+                    .onErrorResume(error -> Flux.never())
+                    .doOnEach(signal -> answered(backend, winner, HEDGE, start));
+
+            Runnable countCall = () -> {
+                if(winner.get() != null) countCall(backend, !hedged.get() ? "not_hedged" : winner.get() + "_won");
+            };
+            return Flux.firstWithSignal(primary, hedge)
+                    .doOnTerminate(countCall)
+                    .doOnCancel(countCall);
+        });
+    }
+
+    private void answered(String backend, AtomicReference<String> winner, String source, long start) {
+        if(winner.compareAndSet(null, source)){
+            getLatencyTimer(backend).record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    private Duration getDelay(String backend) {
+        Timer timer = getLatencyTimer(backend);
+        ValueAtPercentile[] percentiles = timer.takeSnapshot().percentileValues();
+        if(timer.count() < minSamples || percentiles.length == 0) return Duration.ofMillis(maxDelayMs);
+
+        long delayMs = (long) percentiles[0].value(TimeUnit.MILLISECONDS);
+        return Duration.ofMillis(Math.max(minDelayMs, Math.min(maxDelayMs, delayMs)));
+    }
+
+    private Timer getLatencyTimer(String backend) {
+        return Timer.builder("product.composite.hedging.latency")
+                .description("Time to the first answer of hedged backend calls")
+                .tag("backend", backend)
+                .publishPercentiles(percentile)
+                .register(meterRegistry);
+    }
+
+    /**
+     * The hedge rate is the share of calls with another outcome than not_hedged, the win rate the share of hedge_won among those.
+     */
+    private void countCall(String backend, String outcome) {
+        Counter.builder("product.composite.hedging.calls")
+                .description("Hedged backend calls by outcome")
+                .tag("backend", backend)
+                .tag("outcome", outcome)
+                .register(meterRegistry)
+                .increment();
+    }
+}
@@ -0,0 +1,111 @@
+package se.magnus.microservices.composite.product.services;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Mono;
+import se.magnus.util.exceptions.InvalidInputException;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.function.Supplier;
+
+/**
+ * Remembers the results of writes sent with an Idempotency-Key, so a client retrying a write gets the first result back
+ * instead of publishing the events again.
+ *
+ * A retry arriving while the first write is still publishing shares its result. A failed write is forgotten, so it can be
+ * retried with the same key. Reusing a key for another request body is rejected. Keys expire after ttlSec.
+ */
+@Component
+@Slf4j
+public class IdempotencyStore {
+
+    private final MeterRegistry meterRegistry;
+    private final ObjectMapper mapper;
+    private final Cache<String, Entry> entries;
+
+    public IdempotencyStore(
+            MeterRegistry meterRegistry,
+            ObjectMapper mapper,
+            @Value("${app.idempotency.maxSize:100000}") long maxSize,
+            @Value("${app.idempotency.ttlSec:86400}") long ttlSec) {
+
+        this.meterRegistry = meterRegistry;
+        this.mapper = mapper;
+        this.entries = Caffeine.newBuilder()
+                .maximumSize(maxSize)
+                .expireAfterWrite(Duration.ofSeconds(ttlSec))
+                .recordStats()
+                .build();
+
+        CaffeineCacheMetrics.monitor(meterRegistry, entries, "idempotency");
+    }
+
+    /**
+     * Runs the write once per operation and key, without a key the write is always run.
+     */
+    @SuppressWarnings("unchecked")
+    public <T> Mono<T> execute(String operation, String idempotencyKey, Object request, Supplier<Mono<T>> write) {
+        if(idempotencyKey == null || idempotencyKey.isEmpty()) return Mono.defer(write);
+
+        return Mono.defer(() -> {
+            String key = operation + ":" + idempotencyKey;
+            byte[] fingerprint = fingerprint(request);
+
+            Entry created = new Entry(key, fingerprint, write);
+            Entry entry = entries.asMap().putIfAbsent(key, created);
+            if(entry == null){
+                countRequest(operation, "executed");
+                return (Mono<T>) created.result;
+            }
+
+            if(!Arrays.equals(entry.fingerprint, fingerprint)){
+                countRequest(operation, "rejected");
+                return Mono.error(new InvalidInputException("Idempotency-Key " + idempotencyKey + " was already used for another request"));
+            }
+
+            log.debug("Replays the result of {} for Idempotency-Key {}", operation, idempotencyKey);
+            countRequest(operation, "replayed");
+            return (Mono<T>) entry.result;
+        });
+    }
+
+    private byte[] fingerprint(Object request) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(mapper.writeValueAsBytes(request));
+        } catch (JsonProcessingException | NoSuchAlgorithmException ex) {
+            throw new IllegalStateException("Failed to fingerprint the request", ex);
+        }
+    }
+
+    private void countRequest(String operation, String outcome) {
+        Counter.builder("product.composite.idempotency.requests")
+                .description("Writes sent with an Idempotency-Key by outcome")
+                .tag("operation", operation)
+                .tag("outcome", outcome)
+                .register(meterRegistry)
+                .increment();
+    }
+
+    private class Entry {
+        private final byte[] fingerprint;
+        private final Mono<?> result;
+
+        Entry(String key, byte[] fingerprint, Supplier<? extends Mono<?>> write) {
+            this.fingerprint = fingerprint;
+            this.result = Mono.defer(write)
+                    .doOnError(ex -> entries.asMap().remove(key, this))
+                    .cache();
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package se.magnus.microservices.composite.product.services;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.cloud.stream.annotation.EnableBinding;
+import org.springframework.cloud.stream.annotation.Input;
+import org.springframework.cloud.stream.annotation.StreamListener;
+import org.springframework.messaging.SubscribableChannel;
+import se.magnus.api.event.Event;
+import se.magnus.api.event.OperationAck;
+
+/**
+ * Consumes the product, recommendation and review events to keep the {@link ProductAggregateCache} and the
+ * {@link ProductAggregateReadModel} up to date,
+ * and the operation acknowledgements of the core services for the {@link OperationTracker}.
+ * The bindings use no consumer group, so every instance of the composite service receives every event.
+ */
+@EnableBinding(MessageProcessor.MessageSinks.class)
+@Slf4j
+public class MessageProcessor {
+
+    private final ProductAggregateCache productAggregateCache;
+    private final ProductAggregateReadModel productAggregateReadModel;
+    private final OperationTracker operationTracker;
+
+    public MessageProcessor(ProductAggregateCache productAggregateCache, ProductAggregateReadModel productAggregateReadModel, OperationTracker operationTracker) {
+        this.productAggregateCache = productAggregateCache;
+        this.productAggregateReadModel = productAggregateReadModel;
+        this.operationTracker = operationTracker;
+    }
+
+    public interface MessageSinks {
+        String INPUT_PRODUCTS = "input-products";
+        String INPUT_RECOMMENDATIONS = "input-recommendations";
+        String INPUT_REVIEWS = "input-reviews";
+        String INPUT_OPERATION_ACKS = "input-operation-acks";
+
+        @Input(INPUT_PRODUCTS)
+        SubscribableChannel inputProducts();
+        @Input(INPUT_RECOMMENDATIONS)
+        SubscribableChannel inputRecommendations();
+        @Input(INPUT_REVIEWS)
+        SubscribableChannel inputReviews();
+        @Input(INPUT_OPERATION_ACKS)
+        SubscribableChannel inputOperationAcks();
+    }
+
+    @StreamListener(target = MessageSinks.INPUT_PRODUCTS)
+    public void processProductEvent(Event<Integer, Object> event){
+        if(evict("product", event)) productAggregateReadModel.applyProductEvent(event);
+    }
+
+    @StreamListener(target = MessageSinks.INPUT_RECOMMENDATIONS)
+    public void processRecommendationEvent(Event<Integer, Object> event){
+        if(evict("recommendation", event)) productAggregateReadModel.applyRecommendationEvent(event);
+    }
+
+    @StreamListener(target = MessageSinks.INPUT_REVIEWS)
+    public void processReviewEvent(Event<Integer, Object> event){
+        if(evict("review", event)) productAggregateReadModel.applyReviewEvent(event);
+    }
+
+    @StreamListener(target = MessageSinks.INPUT_OPERATION_ACKS)
+    public void processOperationAck(OperationAck ack){
+        if(ack.getOperationId() == null){
+            log.warn("Got an operation ack without operationId from {}, ignores it", ack.getService());
+            return;
+        }
+        operationTracker.acknowledge(ack);
+    }
+
+    private boolean evict(String source, Event<Integer, Object> event) {
+        if(event.getKey() == null){
+            log.warn("Got a {} event without key, created at {}, ignores it", source, event.getEventCreatedAt());
+            return false;
+        }
+
+        log.debug("Got a {} {} event for productId: {}, evicts the cached aggregate", source, event.getEventType(), event.getKey());
+        productAggregateCache.evict(event.getKey());
+        return true;
+    }
+}
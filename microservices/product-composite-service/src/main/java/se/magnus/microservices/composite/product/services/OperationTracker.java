@@ -0,0 +1,115 @@
+package se.magnus.microservices.composite.product.services;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Mono;
+import se.magnus.api.composite.product.OperationStatus;
+import se.magnus.api.event.OperationAck;
+import se.magnus.util.exceptions.NotFoundException;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * Tracks the asynchronous composite writes by counting the acknowledgements the core services publish for their events.
+ *
+ * The acknowledgements are consumed by every instance, see {@link MessageProcessor}, and carry the expected number of events,
+ * so any instance can report on an operation once its first acknowledgement has arrived. Operations expire after ttlSec.
+ *
+ * Events can be delivered more than once, e.g. when relayed from the outbox, so only the first acknowledgement of each
+ * event id is counted. A redelivered create that fails on a duplicate key does not turn a completed operation into a failed one.
+ */
+@Component
+@Slf4j
+public class OperationTracker {
+
+    private final Cache<String, Operation> operations;
+    private final int maxErrors;
+
+    public OperationTracker(
+            MeterRegistry meterRegistry,
+            @Value("${app.operations.maxSize:100000}") long maxSize,
+            @Value("${app.operations.ttlSec:3600}") long ttlSec,
+            @Value("${app.operations.maxErrors:10}") int maxErrors) {
+
+        this.maxErrors = maxErrors;
+        this.operations = Caffeine.newBuilder()
+                .maximumSize(maxSize)
+                .expireAfterWrite(Duration.ofSeconds(ttlSec))
+                .recordStats()
+                .build();
+
+        CaffeineCacheMetrics.monitor(meterRegistry, operations, "operations");
+    }
+
+    public String newOperationId() {
+        return UUID.randomUUID().toString();
+    }
+
+    public OperationStatus start(String operationId, int expectedEvents) {
+        Operation operation = operations.get(operationId, id -> new Operation(id));
+        synchronized (operation) {
+            operation.expectedEvents = expectedEvents;
+            return operation.toStatus();
+        }
+    }
+
+    public void acknowledge(OperationAck ack) {
+        Operation operation = operations.get(ack.getOperationId(), id -> new Operation(id));
+        synchronized (operation) {
+            if(ack.getEventId() != null && !operation.acknowledgedEvents.add(ack.getEventId())){
+                log.debug("Operation {}: ignores repeated acknowledgement of event {} from {}", operation.operationId, ack.getEventId(), ack.getService());
+                return;
+            }
+            operation.expectedEvents = ack.getExpectedEvents();
+            if(ack.getStatus() == OperationAck.Status.FAILED){
+                operation.failedEvents++;
+                if(operation.errors.size() < maxErrors) operation.errors.add(ack.getService() + ": " + ack.getMessage());
+            } else {
+                operation.processedEvents++;
+            }
+            log.debug("Operation {}: {} processed, {} failed of {} events", operation.operationId, operation.processedEvents, operation.failedEvents, operation.expectedEvents);
+        }
+        // write again to restart the time to live
+        operations.put(operation.operationId, operation);
+    }
+
+    public Mono<OperationStatus> getStatus(String operationId) {
+        Operation operation = operations.getIfPresent(operationId);
+        if(operation == null) return Mono.error(new NotFoundException("No operation found for operationId: " + operationId));
+
+        synchronized (operation) {
+            return Mono.just(operation.toStatus());
+        }
+    }
+
+    private static class Operation {
+        private final String operationId;
+        private final List<String> errors = new ArrayList<>();
+        private final Set<String> acknowledgedEvents = new HashSet<>();
+        private int expectedEvents;
+        private int processedEvents;
+        private int failedEvents;
+
+        Operation(String operationId) {
+            this.operationId = operationId;
+        }
+
+        OperationStatus toStatus() {
+            OperationStatus.Status status;
+            if(expectedEvents == 0 || processedEvents + failedEvents < expectedEvents) status = OperationStatus.Status.PENDING;
+            else status = failedEvents > 0 ? OperationStatus.Status.FAILED : OperationStatus.Status.COMPLETED;
+
+            return new OperationStatus(operationId, status, expectedEvents, processedEvents, failedEvents, new ArrayList<>(errors));
+        }
+    }
+}
@@ -0,0 +1,20 @@
+package se.magnus.microservices.composite.product.services;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import se.magnus.api.event.Event;
+
+import java.util.Map;
+
+/**
+ * An event waiting in the {@link EventOutbox} to be relayed to the output binding with the given name.
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class OutboxRecord {
+    private String binding;
+    private Map<String, String> headers;
+    private Event<Integer, Object> event;
+}
@@ -0,0 +1,74 @@
+package se.magnus.microservices.composite.product.services;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Mono;
+import se.magnus.api.composite.product.ProductAggregate;
+
+import java.time.Duration;
+
+/**
+ * Size bounded, in-process read-through cache of product aggregates keyed by productId.
+ *
+ * Entries are evicted when a product, recommendation or review event for the productId is consumed, see {@link MessageProcessor}.
+ * Since the core services consume the same events in parallel, a read racing the write can re-cache the old state,
+ * so each eviction is repeated after a short delay and entries also expire after a fixed time as a last resort.
+ *
+ * With app.aggregate-cache.applyEvents the {@link ProductAggregateReadModel} takes the place of this cache.
+ */
+@Component
+@Slf4j
+public class ProductAggregateCache {
+
+    private final boolean enabled;
+    private final Duration evictionDelay;
+    private final Cache<Integer, ProductAggregate> cache;
+
+    public ProductAggregateCache(
+            MeterRegistry meterRegistry,
+            @Value("#{${app.aggregate-cache.enabled:true} and !${app.aggregate-cache.applyEvents:false}}") boolean enabled,
+            @Value("${app.aggregate-cache.maxSize:10000}") long maxSize,
+            @Value("${app.aggregate-cache.expireAfterWriteSec:300}") long expireAfterWriteSec,
+            @Value("${app.aggregate-cache.evictionDelayMs:1000}") long evictionDelayMs) {
+
+        this.enabled = enabled;
+        this.evictionDelay = Duration.ofMillis(evictionDelayMs);
+        this.cache = Caffeine.newBuilder()
+                .maximumSize(maxSize)
+                .expireAfterWrite(Duration.ofSeconds(expireAfterWriteSec))
+                .recordStats()
+                .build();
+
+        CaffeineCacheMetrics.monitor(meterRegistry, cache, "product-aggregate");
+        log.info("Created a product aggregate cache, enabled: {}, maxSize: {}, expireAfterWriteSec: {}", enabled, maxSize, expireAfterWriteSec);
+    }
+
+    /**
+     * Returns the cached aggregate for the productId, or an empty Mono on a cache miss.
+     */
+    public Mono<ProductAggregate> get(int productId) {
+        if(!enabled) return Mono.empty();
+
+        return Mono.fromSupplier(() -> cache.getIfPresent(productId))
+                .doOnNext(aggregate -> log.debug("Found product aggregate for productId: {} in the cache", productId));
+    }
+
+    public void put(int productId, ProductAggregate aggregate) {
+        if(!enabled) return;
+
+        cache.put(productId, aggregate);
+    }
+
+    public void evict(int productId) {
+        if(!enabled) return;
+
+        log.debug("Evicts product aggregate for productId: {} from the cache", productId);
+        cache.invalidate(productId);
+        Mono.delay(evictionDelay).subscribe(tick -> cache.invalidate(productId));
+    }
+}
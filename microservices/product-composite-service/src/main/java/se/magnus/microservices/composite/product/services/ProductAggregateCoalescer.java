@@ -0,0 +1,103 @@
+package se.magnus.microservices.composite.product.services;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Mono;
+import se.magnus.api.composite.product.ProductAggregate;
+
+import java.time.Duration;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Single-flight layer for product aggregate reads: concurrent callers for the same productId attach to one shared
+ * upstream Mono instead of starting a fan-out each. The shared Mono is forgotten as soon as it terminates, so results
+ * are never reused by later callers, that is left to the {@link ProductAggregateCache}.
+ *
+ * The number of coalesced calls is counted in total and, for the most recently hot productIds, per key.
+ * The per key counts are available on the actuator endpoint /actuator/coalescing.
+ */
+@Component
+@Endpoint(id = "coalescing")
+@Slf4j
+public class ProductAggregateCoalescer {
+
+    private final boolean enabled;
+    private final Map<Integer, Mono<ProductAggregate>> inFlight = new ConcurrentHashMap<>();
+    private final Cache<Integer, LongAdder> coalescedPerKey;
+    private final Counter leaderCalls;
+    private final Counter coalescedCalls;
+
+    public ProductAggregateCoalescer(
+            MeterRegistry meterRegistry,
+            @Value("${app.coalescing.enabled:true}") boolean enabled,
+            @Value("${app.coalescing.statsMaxKeys:1000}") long statsMaxKeys) {
+
+        this.enabled = enabled;
+        this.coalescedPerKey = Caffeine.newBuilder()
+                .maximumSize(statsMaxKeys)
+                .expireAfterAccess(Duration.ofMinutes(10))
+                .build();
+        this.leaderCalls = Counter.builder("product.composite.coalescing.calls")
+                .description("Composite reads that started an upstream fan-out (leader) or attached to one in flight (coalesced)")
+                .tag("outcome", "leader")
+                .register(meterRegistry);
+        this.coalescedCalls = Counter.builder("product.composite.coalescing.calls")
+                .description("Composite reads that started an upstream fan-out (leader) or attached to one in flight (coalesced)")
+                .tag("outcome", "coalesced")
+                .register(meterRegistry);
+        meterRegistry.gauge("product.composite.coalescing.in-flight", inFlight, Map::size);
+    }
+
+    public Mono<ProductAggregate> get(int productId, Supplier<Mono<ProductAggregate>> loader) {
+        if(!enabled) return Mono.defer(loader);
+
+        return Mono.defer(() -> {
+            AtomicReference<Mono<ProductAggregate>> created = new AtomicReference<>();
+            Mono<ProductAggregate> shared = inFlight.computeIfAbsent(productId, key -> {
+                Mono<ProductAggregate> mono = Mono.defer(loader)
+                        .doFinally(signal -> inFlight.remove(key, created.get()))
+                        .share();
+                created.set(mono);
+                return mono;
+            });
+
+            if(shared == created.get()){
+                leaderCalls.increment();
+            }else{
+                log.debug("Coalesced a read of productId: {} with the one in flight", productId);
+                coalescedCalls.increment();
+                coalescedPerKey.get(productId, key -> new LongAdder()).increment();
+            }
+            return shared;
+        });
+    }
+
+    @ReadOperation
+    public Map<String, Object> coalescingStats() {
+        Map<Integer, Long> hotKeys = new LinkedHashMap<>();
+        coalescedPerKey.asMap().entrySet().stream()
+                .sorted(Comparator.comparingLong((Map.Entry<Integer, LongAdder> e) -> e.getValue().sum()).reversed())
+                .limit(100)
+                .forEach(e -> hotKeys.put(e.getKey(), e.getValue().sum()));
+
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("leaderCalls", (long) leaderCalls.count());
+        stats.put("coalescedCalls", (long) coalescedCalls.count());
+        stats.put("inFlight", inFlight.size());
+        stats.put("coalescedCallsPerProductId", hotKeys);
+        return stats;
+    }
+}
@@ -0,0 +1,214 @@
+package se.magnus.microservices.composite.product.services;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Mono;
+import se.magnus.api.composite.product.ProductAggregate;
+import se.magnus.api.composite.product.RecommendationSummary;
+import se.magnus.api.composite.product.ReviewSummary;
+import se.magnus.api.composite.product.ServiceAddresses;
+import se.magnus.api.core.product.Product;
+import se.magnus.api.core.recommendation.Recommendation;
+import se.magnus.api.core.review.Review;
+import se.magnus.api.event.Event;
+import se.magnus.util.http.ServiceUtil;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+
+/**
+ * Materialized product aggregates built from the product, recommendation and review events, so reads are served with
+ * a single lookup instead of a fan-out to the core services.
+ *
+ * The events are consumed by every instance, see {@link MessageProcessor}, but the brokers do not replay them to a
+ * starting instance, so a product missing in the read model is read once through the fan-out and the result is merged in.
+ * Events arriving before the product event, e.g. a recommendation on another destination, are kept until the product
+ * is known. The read model trusts the events, so a write rejected by a core service, e.g. on a duplicate key, is only
+ * corrected when the aggregate expires after expireAfterWriteSec.
+ *
+ * A deleted product is kept as a tombstone until it is created again or expires, so a fan-out that was still running
+ * when the delete event arrived can not seed the deleted product back into the read model.
+ *
+ * The read model is the aggregate cache with the events applied instead of evicting the aggregates. It is enabled by
+ * app.aggregate-cache.applyEvents, shares the size and time to live of the {@link ProductAggregateCache} and replaces it,
+ * so there is only one in-process copy of an aggregate.
+ */
+@Component
+@Slf4j
+public class ProductAggregateReadModel {
+
+    private final ObjectMapper mapper;
+    private final ServiceUtil serviceUtil;
+    private final boolean enabled;
+    private final Cache<Integer, View> views;
+
+    public ProductAggregateReadModel(
+            ObjectMapper mapper,
+            ServiceUtil serviceUtil,
+            MeterRegistry meterRegistry,
+            @Value("#{${app.aggregate-cache.enabled:true} and ${app.aggregate-cache.applyEvents:false}}") boolean enabled,
+            @Value("${app.aggregate-cache.maxSize:10000}") long maxSize,
+            @Value("${app.aggregate-cache.expireAfterWriteSec:300}") long expireAfterWriteSec) {
+
+        this.mapper = mapper;
+        this.serviceUtil = serviceUtil;
+        this.enabled = enabled;
+        this.views = Caffeine.newBuilder()
+                .maximumSize(maxSize)
+                .expireAfterWrite(Duration.ofSeconds(expireAfterWriteSec))
+                .recordStats()
+                .build();
+
+        CaffeineCacheMetrics.monitor(meterRegistry, views, "product-read-model");
+        log.info("Created a product aggregate read model, enabled: {}, maxSize: {}, expireAfterWriteSec: {}", enabled, maxSize, expireAfterWriteSec);
+    }
+
+    /**
+     * Returns the materialized aggregate for the productId, or an empty Mono if the product is not known yet.
+     */
+    public Mono<ProductAggregate> get(int productId) {
+        if(!enabled) return Mono.empty();
+
+        return Mono.fromSupplier(() -> {
+            View view = views.getIfPresent(productId);
+            if(view == null) return null;
+            synchronized (view) {
+                return view.product == null || view.deleted ? null : view.toAggregate(serviceUtil.getServiceAddress());
+            }
+        }).doOnNext(aggregate -> log.debug("Found product aggregate for productId: {} in the read model", productId));
+    }
+
+    /**
+     * Merges an aggregate read through the fan-out, without overwriting what events have added in the meantime.
+     * An aggregate of a product deleted in the meantime is dropped.
+     */
+    public void seed(ProductAggregate aggregate) {
+        if(!enabled) return;
+
+        View view = views.get(aggregate.getProductId(), View::new);
+        synchronized (view) {
+            if(view.deleted) {
+                log.debug("Drops the fan-out result of the deleted productId: {}", aggregate.getProductId());
+                return;
+            }
+            if(view.product == null) view.product = new Product(aggregate.getProductId(), aggregate.getName(), aggregate.getWeight(), null);
+            if(aggregate.getRecommendations() != null) aggregate.getRecommendations().forEach(r -> view.recommendations.putIfAbsent(r.getRecommendationId(), r));
+            if(aggregate.getReviews() != null) aggregate.getReviews().forEach(r -> view.reviews.putIfAbsent(r.getReviewId(), r));
+        }
+    }
+
+    public void applyProductEvent(Event<Integer, Object> event) {
+        if(!enabled) return;
+
+        switch (event.getEventType()) {
+            case CREATE:
+                Product product = mapper.convertValue(event.getData(), Product.class);
+                update(event.getKey(), view -> {
+                    view.product = product;
+                    view.deleted = false;
+                });
+                break;
+            case DELETE:
+                View tombstone = new View(event.getKey());
+                tombstone.deleted = true;
+                views.put(event.getKey(), tombstone);
+                break;
+        }
+    }
+
+    public void applyRecommendationEvent(Event<Integer, Object> event) {
+        if(!enabled) return;
+
+        switch (event.getEventType()) {
+            case CREATE:
+                List<RecommendationSummary> summaries = toList(event.getData(), Recommendation.class).stream()
+                        .map(r -> new RecommendationSummary(r.getRecommendationId(), r.getAuthor(), r.getRate(), r.getContent()))
+                        .collect(Collectors.toList());
+                update(event.getKey(), view -> summaries.forEach(r -> view.recommendations.put(r.getRecommendationId(), r)));
+                break;
+            case DELETE:
+                updateIfPresent(event.getKey(), view -> view.recommendations.clear());
+                break;
+        }
+    }
+
+    public void applyReviewEvent(Event<Integer, Object> event) {
+        if(!enabled) return;
+
+        switch (event.getEventType()) {
+            case CREATE:
+                List<ReviewSummary> summaries = toList(event.getData(), Review.class).stream()
+                        .map(r -> new ReviewSummary(r.getReviewId(), r.getAuthor(), r.getSubject(), r.getContent()))
+                        .collect(Collectors.toList());
+                update(event.getKey(), view -> summaries.forEach(r -> view.reviews.put(r.getReviewId(), r)));
+                break;
+            case DELETE:
+                updateIfPresent(event.getKey(), view -> view.reviews.clear());
+                break;
+        }
+    }
+
+    /**
+     * Batch events carry a list of entities, other events a single one.
+     */
+    private <T> List<T> toList(Object data, Class<T> type) {
+        if(data instanceof Collection){
+            return ((Collection<?>) data).stream().map(item -> mapper.convertValue(item, type)).collect(Collectors.toList());
+        }
+        return Collections.singletonList(mapper.convertValue(data, type));
+    }
+
+    private void update(int productId, Consumer<View> change) {
+        View view = views.get(productId, View::new);
+        synchronized (view) {
+            change.accept(view);
+        }
+    }
+
+    private void updateIfPresent(int productId, Consumer<View> change) {
+        View view = views.getIfPresent(productId);
+        if(view == null) return;
+        synchronized (view) {
+            change.accept(view);
+        }
+    }
+
+    private static class View {
+        private final int productId;
+        private final Map<Integer, RecommendationSummary> recommendations = new TreeMap<>();
+        private final Map<Integer, ReviewSummary> reviews = new TreeMap<>();
+        private Product product;
+        private boolean deleted;
+
+        View(int productId) {
+            this.productId = productId;
+        }
+
+        /**
+         * The core services are not called, so only the address of the composite service is known.
+         */
+        ProductAggregate toAggregate(String compositeAddress) {
+            return ProductAggregate.builder()
+                    .productId(productId)
+                    .name(product.getName())
+                    .weight(product.getWeight())
+                    .recommendations(new ArrayList<>(recommendations.values()))
+                    .reviews(new ArrayList<>(reviews.values()))
+                    .serviceAddresses(ServiceAddresses.builder().compositeAddress(compositeAddress).build())
+                    .build();
+        }
+    }
+}
@@ -4,10 +4,14 @@ import com.fasterxml.jackson.databind.ObjectMapper;
 import io.github.resilience4j.circuitbreaker.annotation.CircuitBreaker;
 import io.github.resilience4j.retry.annotation.Retry;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.ObjectProvider;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.actuate.health.Health;
 import org.springframework.cloud.stream.annotation.EnableBinding;
 import org.springframework.cloud.stream.annotation.Output;
+import org.springframework.http.MediaType;
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
+import org.springframework.messaging.Message;
 import org.springframework.messaging.MessageChannel;
 import org.springframework.messaging.support.MessageBuilder;
 import org.springframework.stereotype.Component;
@@ -17,7 +21,11 @@ import org.springframework.web.util.UriComponents;
 import org.springframework.web.util.UriComponentsBuilder;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
+import reactor.util.context.ContextView;
+import reactor.util.function.Tuple2;
+import reactor.util.function.Tuples;
 import se.magnus.api.core.product.Product;
+import se.magnus.api.core.product.ProductResult;
 import se.magnus.api.core.product.ProductService;
 import se.magnus.api.core.recommendation.Recommendation;
 import se.magnus.api.core.recommendation.RecommendationService;
@@ -26,11 +34,22 @@ import se.magnus.api.core.review.ReviewService;
 import se.magnus.api.event.Event;
 import se.magnus.util.exceptions.InvalidInputException;
 import se.magnus.util.exceptions.NotFoundException;
+import se.magnus.util.http.ConditionalRequests;
+import se.magnus.util.http.Deadline;
 import se.magnus.util.http.HttpErrorInfo;
 
 import java.io.IOException;
 import java.net.URI;
 import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.ToIntFunction;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 import static se.magnus.api.event.Event.Type.CREATE;
 import static se.magnus.api.event.Event.Type.DELETE;
@@ -41,23 +60,57 @@ import static se.magnus.api.event.Event.Type.DELETE;
 public class ProductCompositeIntegration implements ProductService, RecommendationService, ReviewService {
 
     private final ObjectMapper objectMapper;
+    private final ObjectMapper smileMapper = Jackson2ObjectMapperBuilder.smile().build();
     private final String productServiceUrl = "http://product";
     private final String recommendationServiceUrl = "http://recommendation";
     private final String reviewServiceUrl = "http://review";
 
+    private static final MediaType APPLICATION_SMILE = MediaType.valueOf("application/x-jackson-smile");
+    private static final MediaType APPLICATION_STREAM_SMILE = MediaType.valueOf("application/stream+x-jackson-smile");
+
     private final WebClient.Builder webClientBuilder;
+    private final BackendCallMetrics backendCallMetrics;
+    private final HedgingPolicy hedgingPolicy;
+    private final AdaptiveConcurrencyLimiter concurrencyLimiter;
+    private final EventPublisher eventPublisher;
+    private final EventOutbox eventOutbox;
+    private final CoreGrpcClient coreGrpcClient;
+    private final ColocatedServices colocatedServices;
     private WebClient webClient;
     private MessageSources messageSources;
 
     @Value("${app.product-service.timeoutSec}")
     private int productServiceTimeoutSec;
 
+    @Value("${app.event-batch.maxSize:500}")
+    private int eventBatchMaxSize;
+
+    @Value("${app.wire-format.preferSmile:true}")
+    private boolean preferSmile;
+
+    @Value("${app.grpc.client.enabled:false}")
+    private boolean grpcClientEnabled;
+
     public ProductCompositeIntegration(
             ObjectMapper objectMapper,
             WebClient.Builder webClientBuilder,
+            BackendCallMetrics backendCallMetrics,
+            HedgingPolicy hedgingPolicy,
+            AdaptiveConcurrencyLimiter concurrencyLimiter,
+            EventPublisher eventPublisher,
+            EventOutbox eventOutbox,
+            CoreGrpcClient coreGrpcClient,
+            ObjectProvider<ColocatedServices> colocatedServices,
             MessageSources messageSources) {
         this.objectMapper = objectMapper;
         this.webClientBuilder = webClientBuilder;
+        this.backendCallMetrics = backendCallMetrics;
+        this.hedgingPolicy = hedgingPolicy;
+        this.concurrencyLimiter = concurrencyLimiter;
+        this.eventPublisher = eventPublisher;
+        this.eventOutbox = eventOutbox;
+        this.coreGrpcClient = coreGrpcClient;
+        this.colocatedServices = colocatedServices.getIfAvailable();
         this.messageSources = messageSources;
     }
 
@@ -78,27 +131,76 @@ public class ProductCompositeIntegration implements ProductService, Recommendati
     @CircuitBreaker(name = "product")
     @Retry(name = "product")
     public Mono<Product> getProduct(int productId, int delay, int faultPercent) {
+        return limitedProduct(productId, delay, faultPercent);
+    }
+
+    /**
+     * Reads the product without the circuit breaker and retries of {@link #getProduct}, for the background refresh of the
+     * {@link ProductFallbackStore} while the circuit is open. The call is still bounded by the concurrency limit and timeout.
+     */
+    public Mono<Product> refreshProduct(int productId) {
+        return limitedProduct(productId, 0, 0);
+    }
+
+    private Mono<Product> limitedProduct(int productId, int delay, int faultPercent) {
         URI url = UriComponentsBuilder.fromUriString(productServiceUrl + "/product/{productId}?delay={delay}&faultPercent={faultPercent}")
                         .build(productId, delay, faultPercent);
         log.debug("Will call the getProduct API on URL: {}", url);
 
+        return concurrencyLimiter.limit("product", backendCallMetrics.time("product", Mono.deferContextual(context -> fetchProduct(productId, delay, faultPercent, url)
+                .timeout(getProductServiceTimeout(context)))));
+    }
+
+    private Mono<Product> fetchProduct(int productId, int delay, int faultPercent, URI url) {
+        // the in-process reads must not answer the conditional GET of the composite request, see ConditionalRequests
+        if(colocatedServices != null) return Mono.defer(() -> colocatedServices.getProductService().getProduct(productId, delay, faultPercent))
+                .contextWrite(ConditionalRequests::removeFrom);
+        if(grpcClientEnabled) return coreGrpcClient.getProduct(productId, delay, faultPercent);
+
         return getWebClient().get().uri(url)
+                .accept(getAcceptedTypes(false))
                 .retrieve()
                 .bodyToMono(Product.class)
-                .log()
-                .onErrorMap(WebClientResponseException.class, ex -> handleException(ex))
-                .timeout(Duration.ofSeconds(productServiceTimeoutSec));
+                .onErrorMap(WebClientResponseException.class, ex -> handleException(ex));
+    }
+
+    @Override
+    public Flux<ProductResult> getProducts(List<Integer> ids) {
+        URI url = UriComponentsBuilder.fromUriString(productServiceUrl + "/product?ids={ids}")
+                        .build(joinIds(ids));
+        log.debug("Will call the getProducts API on URL: {}", url);
+
+        return concurrencyLimiter.limit("product", backendCallMetrics.time("product", Flux.deferContextual(context -> fetchProducts(ids, url)
+                .timeout(getProductServiceTimeout(context)))));
+    }
+
+    private Flux<ProductResult> fetchProducts(List<Integer> ids, URI url) {
+        if(colocatedServices != null) return Flux.defer(() -> colocatedServices.getProductService().getProducts(ids))
+                .contextWrite(ConditionalRequests::removeFrom);
+
+        return getWebClient().get().uri(url)
+                .accept(getAcceptedTypes(true))
+                .retrieve()
+                .bodyToFlux(ProductResult.class)
+                .onErrorMap(WebClientResponseException.class, ex -> handleException(ex));
     }
 
     @Override
-    public Product createProduct(Product body) {
-        messageSources.outputProducts().send(MessageBuilder.withPayload(new Event(CREATE, body.getProductId(), body)).build());
-        return body;
+    public Mono<Product> createProduct(Product body) {
+        return publishCreateProduct(body).thenReturn(body);
+    }
+
+    public Mono<Void> publishCreateProduct(Product body) {
+        return eventPublisher.publish(messageSources.outputProducts(), MessageBuilder.withPayload(new Event(CREATE, body.getProductId(), body)).build());
     }
 
     @Override
-    public void deleteProduct(int productId) {
-        messageSources.outputProducts().send(MessageBuilder.withPayload(new Event(DELETE, productId, null)).build());
+    public Mono<Void> deleteProduct(int productId) {
+        return publishDeleteProduct(productId);
+    }
+
+    public Mono<Void> publishDeleteProduct(int productId) {
+        return eventPublisher.publish(messageSources.outputProducts(), MessageBuilder.withPayload(new Event(DELETE, productId, null)).build());
     }
 
     @Override
@@ -106,24 +208,68 @@ public class ProductCompositeIntegration implements ProductService, Recommendati
         URI url = UriComponentsBuilder.fromUriString(recommendationServiceUrl + "/recommendation?productId={productId}")
                         .build(productId);
         log.debug("Will call getRecommendations API on URL: {}", url);
+        return hedgingPolicy.hedge("recommendation", () -> concurrencyLimiter.limit("recommendation", backendCallMetrics.time("recommendation", fetchRecommendations(productId, url))))
+                .onErrorResume(error -> Flux.empty());
+    }
+
+    private Flux<Recommendation> fetchRecommendations(int productId, URI url) {
+        if(colocatedServices != null) return Flux.defer(() -> colocatedServices.getRecommendationService().getRecommendations(productId))
+                .contextWrite(ConditionalRequests::removeFrom);
+        if(grpcClientEnabled) return coreGrpcClient.getRecommendations(productId);
+
         return getWebClient()
                 .get()
                 .uri(url)
+                .accept(getAcceptedTypes(true))
                 .retrieve()
-                .bodyToFlux(Recommendation.class)
-                .log()
+                .bodyToFlux(Recommendation.class);
+    }
+
+    @Override
+    public Flux<Recommendation> getRecommendations(List<Integer> productIds) {
+        URI url = UriComponentsBuilder.fromUriString(recommendationServiceUrl + "/recommendation?productIds={productIds}")
+                        .build(joinIds(productIds));
+        log.debug("Will call getRecommendations API on URL: {}", url);
+        return hedgingPolicy.hedge("recommendation", () -> concurrencyLimiter.limit("recommendation", backendCallMetrics.time("recommendation", fetchRecommendations(productIds, url))))
                 .onErrorResume(error -> Flux.empty());
     }
 
+    private Flux<Recommendation> fetchRecommendations(List<Integer> productIds, URI url) {
+        if(colocatedServices != null) return Flux.defer(() -> colocatedServices.getRecommendationService().getRecommendations(productIds))
+                .contextWrite(ConditionalRequests::removeFrom);
+
+        return getWebClient()
+                .get()
+                .uri(url)
+                .accept(getAcceptedTypes(true))
+                .retrieve()
+                .bodyToFlux(Recommendation.class);
+    }
+
+    @Override
+    public Mono<Recommendation> createRecommendation(Recommendation body) {
+        return eventPublisher.publish(messageSources.outputRecommendations(), MessageBuilder.withPayload(new Event(CREATE, body.getProductId(), body)).build()).thenReturn(body);
+    }
+
     @Override
-    public Recommendation createRecommendation(Recommendation body) {
-        messageSources.outputRecommendations().send(MessageBuilder.withPayload(new Event(CREATE, body.getProductId(), body)).build());
-        return body;
+    public Flux<Recommendation> createRecommendations(List<Recommendation> body) {
+        return publishCreateRecommendations(body).thenMany(Flux.fromIterable(body));
+    }
+
+    /**
+     * Publishes the recommendations, all of the same product, in batch events of at most app.event-batch.maxSize recommendations.
+     */
+    public Mono<Void> publishCreateRecommendations(List<Recommendation> body) {
+        return publishBatches(messageSources.outputRecommendations(), body, Recommendation::getProductId);
     }
 
     @Override
-    public void deleteRecommendations(int productId) {
-        messageSources.outputRecommendations().send(MessageBuilder.withPayload(new Event(DELETE, productId, null)).build());
+    public Mono<Void> deleteRecommendations(int productId) {
+        return publishDeleteRecommendations(productId);
+    }
+
+    public Mono<Void> publishDeleteRecommendations(int productId) {
+        return eventPublisher.publish(messageSources.outputRecommendations(), MessageBuilder.withPayload(new Event(DELETE, productId, null)).build());
     }
 
     @Override
@@ -132,24 +278,159 @@ public class ProductCompositeIntegration implements ProductService, Recommendati
                         .build(productId);
         log.debug("Will call getReviews API on URL: {}", url);
 
+        return hedgingPolicy.hedge("review", () -> concurrencyLimiter.limit("review", backendCallMetrics.time("review", fetchReviews(productId, url))))
+                .onErrorResume(error -> Flux.empty());
+    }
+
+    private Flux<Review> fetchReviews(int productId, URI url) {
+        if(colocatedServices != null) return Flux.defer(() -> colocatedServices.getReviewService().getReviews(productId))
+                .contextWrite(ConditionalRequests::removeFrom);
+        if(grpcClientEnabled) return coreGrpcClient.getReviews(productId);
+
         return getWebClient()
                 .get()
                 .uri(url)
+                .accept(getAcceptedTypes(true))
                 .retrieve()
-                .bodyToFlux(Review.class)
-                .log()
+                .bodyToFlux(Review.class);
+    }
+
+    @Override
+    public Flux<Review> getReviews(List<Integer> productIds) {
+        URI url = UriComponentsBuilder.fromUriString(reviewServiceUrl + "/review?productIds={productIds}")
+                        .build(joinIds(productIds));
+        log.debug("Will call getReviews API on URL: {}", url);
+
+        return hedgingPolicy.hedge("review", () -> concurrencyLimiter.limit("review", backendCallMetrics.time("review", fetchReviews(productIds, url))))
                 .onErrorResume(error -> Flux.empty());
     }
 
+    private Flux<Review> fetchReviews(List<Integer> productIds, URI url) {
+        if(colocatedServices != null) return Flux.defer(() -> colocatedServices.getReviewService().getReviews(productIds))
+                .contextWrite(ConditionalRequests::removeFrom);
+
+        return getWebClient()
+                .get()
+                .uri(url)
+                .accept(getAcceptedTypes(true))
+                .retrieve()
+                .bodyToFlux(Review.class);
+    }
+
+    @Override
+    public Mono<Review> createReview(Review body) {
+        return eventPublisher.publish(messageSources.outputReviews(), MessageBuilder.withPayload(new Event(CREATE, body.getProductId(), body)).build()).thenReturn(body);
+    }
+
     @Override
-    public Review createReview(Review body) {
-        messageSources.outputReviews().send(MessageBuilder.withPayload(new Event(CREATE, body.getProductId(), body)).build());
-        return body;
+    public Flux<Review> createReviews(List<Review> body) {
+        return publishCreateReviews(body).thenMany(Flux.fromIterable(body));
+    }
+
+    /**
+     * Publishes the reviews, all of the same product, in batch events of at most app.event-batch.maxSize reviews.
+     */
+    public Mono<Void> publishCreateReviews(List<Review> body) {
+        return publishBatches(messageSources.outputReviews(), body, Review::getProductId);
     }
 
     @Override
-    public void deleteReviews(int productId) {
-        messageSources.outputReviews().send(MessageBuilder.withPayload(new Event(DELETE, productId, null)).build());
+    public Mono<Void> deleteReviews(int productId) {
+        return publishDeleteReviews(productId);
+    }
+
+    public Mono<Void> publishDeleteReviews(int productId) {
+        return eventPublisher.publish(messageSources.outputReviews(), MessageBuilder.withPayload(new Event(DELETE, productId, null)).build());
+    }
+
+    /**
+     * Publishes the events of a new composite product and returns their number. With the outbox enabled they are appended
+     * to it together, otherwise they are published directly. With an operationId, the events are marked for tracking.
+     */
+    public Mono<Integer> publishCompositeProductCreated(Product product, List<Recommendation> recommendations, List<Review> reviews, String operationId) {
+        List<Tuple2<String, Message<?>>> events = new ArrayList<>();
+        events.add(Tuples.of(MessageSources.OUTPUT_PRODUCTS, MessageBuilder.withPayload(new Event(CREATE, product.getProductId(), product)).build()));
+        toBatchMessages(recommendations, Recommendation::getProductId).forEach(m -> events.add(Tuples.of(MessageSources.OUTPUT_RECOMMENDATIONS, m)));
+        toBatchMessages(reviews, Review::getProductId).forEach(m -> events.add(Tuples.of(MessageSources.OUTPUT_REVIEWS, m)));
+        return publishEvents(events, operationId);
+    }
+
+    public Mono<Integer> publishCompositeProductDeleted(int productId, String operationId) {
+        Message<?> deleteEvent = MessageBuilder.withPayload(new Event(DELETE, productId, null)).build();
+        return publishEvents(Arrays.asList(
+                Tuples.of(MessageSources.OUTPUT_PRODUCTS, deleteEvent),
+                Tuples.of(MessageSources.OUTPUT_RECOMMENDATIONS, deleteEvent),
+                Tuples.of(MessageSources.OUTPUT_REVIEWS, deleteEvent)), operationId);
+    }
+
+    private Mono<Integer> publishEvents(List<Tuple2<String, Message<?>>> events, String operationId) {
+        // the event id lets the tracker count the acknowledgement of a redelivered event once
+        List<Tuple2<String, Message<?>>> tracked = operationId == null ? events : IntStream.range(0, events.size())
+                .mapToObj(i -> Tuples.<String, Message<?>>of(events.get(i).getT1(), MessageBuilder.fromMessage(events.get(i).getT2())
+                        .setHeader(Event.OPERATION_ID_HEADER, operationId)
+                        .setHeader(Event.OPERATION_EVENTS_HEADER, String.valueOf(events.size()))
+                        .setHeader(Event.EVENT_ID_HEADER, String.valueOf(i))
+                        .build()))
+                .collect(Collectors.toList());
+
+        if(eventOutbox.isEnabled()){
+            return eventOutbox.append(tracked.stream().map(e -> toOutboxRecord(e.getT1(), e.getT2())).collect(Collectors.toList()))
+                    .thenReturn(tracked.size());
+        }
+
+        // the events of each binding keep their order, the bindings are published concurrently
+        Map<String, List<Message<?>>> byBinding = tracked.stream().collect(Collectors.groupingBy(Tuple2::getT1, LinkedHashMap::new,
+                Collectors.mapping(Tuple2::getT2, Collectors.toList())));
+        return Flux.fromIterable(byBinding.entrySet())
+                .flatMap(e -> eventPublisher.publishAll(getChannel(e.getKey()), e.getValue()))
+                .then(Mono.just(tracked.size()));
+    }
+
+    private MessageChannel getChannel(String binding) {
+        switch (binding){
+            case MessageSources.OUTPUT_PRODUCTS: return messageSources.outputProducts();
+            case MessageSources.OUTPUT_RECOMMENDATIONS: return messageSources.outputRecommendations();
+            case MessageSources.OUTPUT_REVIEWS: return messageSources.outputReviews();
+            default: throw new IllegalArgumentException("Unknown output binding: " + binding);
+        }
+    }
+
+    private <T> Mono<Void> publishBatches(MessageChannel channel, List<T> entities, ToIntFunction<T> productId) {
+        return eventPublisher.publishAll(channel, toBatchMessages(entities, productId));
+    }
+
+    private <T> List<Message<?>> toBatchMessages(List<T> entities, ToIntFunction<T> productId) {
+        List<Message<?>> messages = new ArrayList<>();
+        for(int from = 0; from < entities.size(); from += eventBatchMaxSize){
+            List<T> batch = entities.subList(from, Math.min(from + eventBatchMaxSize, entities.size()));
+            messages.add(MessageBuilder.withPayload(new Event(CREATE, productId.applyAsInt(batch.get(0)), new ArrayList<>(batch)))
+                    .setHeader(Event.BATCH_HEADER, "true")
+                    .build());
+        }
+        return messages;
+    }
+
+    private OutboxRecord toOutboxRecord(String binding, Message<?> message) {
+        Map<String, String> headers = new HashMap<>();
+        for(String header : Arrays.asList(Event.BATCH_HEADER, Event.OPERATION_ID_HEADER, Event.OPERATION_EVENTS_HEADER, Event.EVENT_ID_HEADER)){
+            if(message.getHeaders().containsKey(header)) headers.put(header, String.valueOf(message.getHeaders().get(header)));
+        }
+        return new OutboxRecord(binding, headers, (Event<Integer, Object>) message.getPayload());
+    }
+
+    /**
+     * Internal calls prefer Smile, the binary form of JSON, which is smaller and cheaper to encode and decode than JSON text.
+     * JSON stays acceptable, so a core service not producing Smile still answers. Streamed lists are read element by element.
+     */
+    private MediaType[] getAcceptedTypes(boolean streaming) {
+        if(streaming){
+            return preferSmile
+                    ? new MediaType[]{APPLICATION_STREAM_SMILE, MediaType.APPLICATION_NDJSON, MediaType.APPLICATION_JSON}
+                    : new MediaType[]{MediaType.APPLICATION_NDJSON, MediaType.APPLICATION_JSON};
+        }
+        return preferSmile
+                ? new MediaType[]{APPLICATION_SMILE, MediaType.APPLICATION_JSON}
+                : new MediaType[]{MediaType.APPLICATION_JSON};
     }
 
     private WebClient getWebClient(){
@@ -159,6 +440,20 @@ public class ProductCompositeIntegration implements ProductService, Recommendati
         return webClient;
     }
 
+    /**
+     * The configured product service timeout, shortened to the remaining budget of the request's deadline if any.
+     */
+    private Duration getProductServiceTimeout(ContextView context) {
+        Duration timeout = Duration.ofSeconds(productServiceTimeoutSec);
+        return Deadline.fromContext(context)
+                .map(deadline -> deadline.remainingCappedBy(timeout))
+                .orElse(timeout);
+    }
+
+    private String joinIds(List<Integer> ids) {
+        return ids.stream().map(String::valueOf).collect(Collectors.joining(","));
+    }
+
     private Throwable handleException(Throwable ex){
         if(!(ex instanceof  WebClientResponseException)){
             log.warn("Got a unexpected error: {}, will rethrow it", ex.toString());
@@ -179,9 +474,14 @@ public class ProductCompositeIntegration implements ProductService, Recommendati
         }
     }
 
+    /**
+     * The core services write the error body in the first accepted type they can produce, so it is Smile when Smile is preferred.
+     */
     private String getErrorMessage(WebClientResponseException e) {
+        MediaType contentType = e.getHeaders().getContentType();
+        ObjectMapper mapper = contentType != null && contentType.getSubtype().endsWith("x-jackson-smile") ? smileMapper : objectMapper;
         try {
-            return objectMapper.readValue(e.getResponseBodyAsString(), HttpErrorInfo.class).getMessage();
+            return mapper.readValue(e.getResponseBodyAsByteArray(), HttpErrorInfo.class).getMessage();
         }catch (IOException ioException){
             return ioException.getMessage();
         }
@@ -3,6 +3,9 @@ package se.magnus.microservices.composite.product.services;
 import io.github.resilience4j.circuitbreaker.CallNotPermittedException;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
 import org.springframework.integration.handler.advice.RequestHandlerCircuitBreakerAdvice;
 import org.springframework.security.core.context.ReactiveSecurityContextHolder;
 import org.springframework.security.core.context.SecurityContext;
@@ -10,16 +13,30 @@ import org.springframework.security.core.context.SecurityContextImpl;
 import org.springframework.security.oauth2.jwt.Jwt;
 import org.springframework.security.oauth2.server.resource.authentication.JwtAuthenticationToken;
 import org.springframework.web.bind.annotation.RestController;
+import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
+import reactor.util.context.ContextView;
 import se.magnus.api.composite.product.*;
 import se.magnus.api.core.product.Product;
 import se.magnus.api.core.recommendation.Recommendation;
 import se.magnus.api.core.review.Review;
+import se.magnus.util.exceptions.InvalidInputException;
 import se.magnus.util.exceptions.NotFoundException;
+import se.magnus.util.exceptions.ServiceUnavailableException;
+import se.magnus.util.http.ConditionalRequests;
+import se.magnus.util.http.Deadline;
 import se.magnus.util.http.ServiceUtil;
 
+import java.net.URI;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.stream.Collectors;
 
 @Slf4j
@@ -30,40 +47,275 @@ public class ProductCompositeServiceImpl implements ProductCompositeService {
     private final SecurityContext nullSC = new SecurityContextImpl();
     private final ServiceUtil serviceUtil;
     private final ProductCompositeIntegration productCompositeIntegration;
+    private final ProductAggregateCache productAggregateCache;
+    private final ProductAggregateReadModel productAggregateReadModel;
+    private final ProductAggregateCoalescer productAggregateCoalescer;
+    private final ProductFallbackStore productFallbackStore;
+    private final OperationTracker operationTracker;
+    private final IdempotencyStore idempotencyStore;
+
+    @Value("${app.deadline.defaultMs:2500}")
+    private long defaultDeadlineMs;
+
+    @Value("${app.deadline.aggregationReserveMs:50}")
+    private long aggregationReserveMs;
+
+    @Value("${app.deadline.secondaryBackendShare:0.8}")
+    private double secondaryBackendShare;
+
+    @Value("${app.batch-read.maxIds:100}")
+    private int maxBatchIds;
 
     @Override
-    public Mono<ProductAggregate> getCompositeProduct(int productId, int delay, int faultPercent) {
+    public Mono<ProductAggregate> getCompositeProduct(int productId, int delay, int faultPercent, List<String> fields) {
+        AggregateProjection projection = AggregateProjection.of(fields);
+
+        // requests simulating delays or faults are meant to reach the backends, so they bypass the cache
+        if(delay > 0 || faultPercent > 0){
+            return getCompositeProductFromBackends(productId, delay, faultPercent, projection, new AtomicBoolean())
+                    .map(projection::apply)
+                    .flatMap(this::bodyIfModified);
+        }
+
+        // aggregates missing the data of a skipped backend are neither shared with other callers nor cached
+        if(!projection.needsAllBackends()){
+            return getMaterializedAggregate(productId)
+                    .switchIfEmpty(Mono.defer(() -> getCompositeProductFromBackends(productId, delay, faultPercent, projection, new AtomicBoolean())))
+                    .map(projection::apply)
+                    .flatMap(this::bodyIfModified);
+        }
+
+        return getMaterializedAggregate(productId)
+                .switchIfEmpty(productAggregateCoalescer.get(productId, () -> {
+                    AtomicBoolean degraded = new AtomicBoolean();
+                    return getCompositeProductFromBackends(productId, delay, faultPercent, projection, degraded)
+                            .doOnNext(aggregate -> {
+                                if(degraded.get()) return;
+                                productAggregateCache.put(productId, aggregate);
+                                productAggregateReadModel.seed(aggregate);
+                            });
+                }))
+                .map(projection::apply)
+                .flatMap(this::bodyIfModified);
+    }
+
+    /**
+     * Answers conditional GETs of the aggregate. The aggregate may come from the backends, the read model or the cache,
+     * which don't all know the versions of the entities, so its entity tag is computed from its content instead.
+     */
+    private Mono<ProductAggregate> bodyIfModified(ProductAggregate aggregate) {
+        List<Object> parts = new ArrayList<>();
+        Collections.addAll(parts, aggregate.getProductId(), aggregate.getName(), aggregate.getWeight(), aggregate.getRecommendationCount(), aggregate.getReviewCount());
+        if(aggregate.getRecommendations() != null) aggregate.getRecommendations()
+                .forEach(r -> Collections.addAll(parts, r.getRecommendationId(), r.getAuthor(), r.getRate(), r.getContent()));
+        if(aggregate.getReviews() != null) aggregate.getReviews()
+                .forEach(r -> Collections.addAll(parts, r.getReviewId(), r.getAuthor(), r.getSubject(), r.getContent()));
+
+        return ConditionalRequests.bodyIfModified(ConditionalRequests.weakETag(parts.toArray()), aggregate);
+    }
+
+    /**
+     * Looks the aggregate up in the read model or the cache, only one of them is enabled.
+     */
+    private Mono<ProductAggregate> getMaterializedAggregate(int productId) {
+        return productAggregateReadModel.get(productId)
+                .switchIfEmpty(productAggregateCache.get(productId));
+    }
+
+    /**
+     * Fans out to the backends within the request's deadline, or the default one. The product call gets the whole budget
+     * except a reserve for the aggregation, recommendations and reviews only a share of it so that a slow secondary backend
+     * results in a partial aggregate instead of a failed request. Aggregates built from fallback values or partial results
+     * are flagged as degraded. Backends not needed by the projection are not called.
+     */
+    private Mono<ProductAggregate> getCompositeProductFromBackends(int productId, int delay, int faultPercent, AggregateProjection projection, AtomicBoolean degraded) {
 
-        return Mono
+        return Mono.deferContextual(context -> {
+            Deadline backendDeadline = getDeadline(context).minusMillis(aggregationReserveMs);
+            Deadline secondaryDeadline = backendDeadline.share(secondaryBackendShare);
+
+            return Mono
                 .zip(
-                    values -> createProductAggregation((SecurityContext) values[0], (Product) values[1], (List<Recommendation>) values[2], (List<Review>) values[3], serviceUtil.getServiceAddress()),
+                    values -> ServerTiming.time(context, "aggregation", () -> createProductAggregation((SecurityContext) values[0], (Product) values[1], (List<Recommendation>) values[2], (List<Review>) values[3], serviceUtil.getServiceAddress())),
                     ReactiveSecurityContextHolder.getContext().defaultIfEmpty(nullSC),
                     productCompositeIntegration.getProduct(productId, delay, faultPercent)
-                            .onErrorReturn(CallNotPermittedException.class, getProductFallbackValue(productId)),
-                    productCompositeIntegration.getRecommendations(productId).collectList(),
-                    productCompositeIntegration.getReviews(productId).collectList()
+                            .doOnNext(productFallbackStore::put)
+                            .onErrorResume(CallNotPermittedException.class, ex -> {
+                                degraded.set(true);
+                                return productFallbackStore.getFallback(productId);
+                            })
+                            .contextWrite(backendDeadline::putInto),
+                    projection.needsRecommendations()
+                            ? withinDeadline(productCompositeIntegration.getRecommendations(productId), secondaryDeadline, "recommendation", degraded).collectList()
+                            : Mono.just(Collections.<Recommendation>emptyList()),
+                    projection.needsReviews()
+                            ? withinDeadline(productCompositeIntegration.getReviews(productId), secondaryDeadline, "review", degraded).collectList()
+                            : Mono.just(Collections.<Review>emptyList())
                 )
                 .doOnError(ex -> log.warn("getCompositeProduct failed: {}", ex.toString()))
                 .log();
+        });
     }
 
-    private Product getProductFallbackValue(int productId) {
-        if(productId == 13){
-            throw new NotFoundException("Product Id: " + productId + " not found in fallback cache!");
-        }
+    @Override
+    public Flux<ProductAggregateItem> getCompositeProductStream(int productId) {
+
+        return Flux.deferContextual(context -> {
+            Deadline backendDeadline = getDeadline(context).minusMillis(aggregationReserveMs);
+            Deadline secondaryDeadline = backendDeadline.share(secondaryBackendShare);
+
+            Mono<ProductAggregateItem> product = ReactiveSecurityContextHolder.getContext().defaultIfEmpty(nullSC)
+                    .doOnNext(this::logAuthorizationInfo)
+                    .then(productCompositeIntegration.getProduct(productId, 0, 0)
+                            .doOnNext(productFallbackStore::put)
+                            .onErrorResume(CallNotPermittedException.class, ex -> productFallbackStore.getFallback(productId))
+                            .contextWrite(backendDeadline::putInto))
+                    .map(p -> ProductAggregateItem.product(ProductAggregate.builder()
+                            .productId(p.getProductId())
+                            .name(p.getName())
+                            .weight(p.getWeight())
+                            .serviceAddresses(ServiceAddresses.builder()
+                                    .compositeAddress(serviceUtil.getServiceAddress())
+                                    .productAddress(p.getServiceAddress())
+                                    .build())
+                            .build()));
+
+            Flux<ProductAggregateItem> children = Flux.merge(
+                    withinDeadline(productCompositeIntegration.getRecommendations(productId), secondaryDeadline, "recommendation", new AtomicBoolean())
+                            .map(r -> ProductAggregateItem.recommendation(toSummary(r))),
+                    withinDeadline(productCompositeIntegration.getReviews(productId), secondaryDeadline, "review", new AtomicBoolean())
+                            .map(r -> ProductAggregateItem.review(toSummary(r))));
+
+            // all calls start right away, the children are held back until the product has been emitted
+            return Flux.mergeSequential(product, children)
+                    .doOnError(ex -> log.warn("getCompositeProductStream failed: {}", ex.toString()));
+        });
+    }
 
-        return new Product(productId, "Fallback product" + productId, productId, serviceUtil.getServiceAddress());
+    private Deadline getDeadline(ContextView context) {
+        return Deadline.fromContext(context).orElseGet(() -> Deadline.ofMillis(defaultDeadlineMs));
+    }
+
+    /**
+     * Propagates the deadline to a secondary backend call and completes it with the items received so far once the deadline is reached.
+     */
+    private <T> Flux<T> withinDeadline(Flux<T> items, Deadline deadline, String backend, AtomicBoolean degraded) {
+        return items
+                .contextWrite(deadline::putInto)
+                .takeUntilOther(Mono.delay(deadline.remaining()).doOnNext(tick -> {
+                    log.warn("The {} backend did not complete within its budget, will return a partial result", backend);
+                    degraded.set(true);
+                }));
     }
 
     @Override
-    public Mono<Void> createCompositeProduct(ProductAggregate body) {
-        return ReactiveSecurityContextHolder.getContext()
-                .doOnSuccess(securityContext -> internalCreateCompositeProduct(securityContext, body))
+    public Flux<ProductAggregateResult> getCompositeProducts(List<Integer> productIds) {
+        if(productIds == null || productIds.isEmpty()) throw new InvalidInputException("No productIds given");
+
+        List<Integer> ids = productIds.stream().distinct().collect(Collectors.toList());
+        if(ids.size() > maxBatchIds) throw new InvalidInputException("Too many productIds: " + ids.size() + ", at most " + maxBatchIds + " are allowed");
+        log.debug("getCompositeProducts: will get {} product aggregates with one call per backend", ids.size());
+
+        return Flux.deferContextual(context -> {
+            Deadline backendDeadline = getDeadline(context).minusMillis(aggregationReserveMs);
+            Deadline secondaryDeadline = backendDeadline.share(secondaryBackendShare);
+            AtomicBoolean degraded = new AtomicBoolean();
+
+            // recommendations and reviews for the whole batch are fetched once and shared by all aggregates
+            Mono<Map<Integer, Collection<Recommendation>>> recommendations = withinDeadline(productCompositeIntegration.getRecommendations(ids), secondaryDeadline, "recommendation", degraded)
+                    .collectMultimap(Recommendation::getProductId)
+                    .cache();
+            Mono<Map<Integer, Collection<Review>>> reviews = withinDeadline(productCompositeIntegration.getReviews(ids), secondaryDeadline, "review", degraded)
+                    .collectMultimap(Review::getProductId)
+                    .cache();
+            Set<Integer> completedIds = ConcurrentHashMap.newKeySet();
+
+            return ReactiveSecurityContextHolder.getContext().defaultIfEmpty(nullSC)
+                .flatMapMany(securityContext -> {
+                    Flux<ProductAggregateResult> aggregates = productCompositeIntegration.getProducts(ids)
+                            .contextWrite(backendDeadline::putInto)
+                            .filter(result -> completedIds.add(result.getProductId()))
+                            .flatMap(result -> {
+                                Product product = result.getProduct();
+                                if(product == null) return Mono.just(ProductAggregateResult.error(result.getProductId(), result.getStatus(), result.getMessage()));
+
+                                productFallbackStore.put(product);
+                                return Mono.zip(recommendations, reviews)
+                                        .map(children -> ProductAggregateResult.ok(createProductAggregation(
+                                                securityContext,
+                                                product,
+                                                toList(children.getT1().get(product.getProductId())),
+                                                toList(children.getT2().get(product.getProductId())),
+                                                serviceUtil.getServiceAddress())));
+                            })
+                            .onErrorResume(ex -> {
+                                log.warn("getCompositeProducts: product batch failed: {}", ex.toString());
+                                return getMissingResults(ids, completedIds, getErrorStatus(ex), ex.getMessage());
+                            })
+                            .concatWith(Flux.defer(() -> getMissingResults(ids, completedIds, HttpStatus.NOT_FOUND, null)));
+
+                    // subscribe to the child calls right away so they run in parallel with the product call
+                    return Flux.merge(Mono.zip(recommendations, reviews).then(Mono.<ProductAggregateResult>empty()), aggregates);
+                });
+        });
+    }
+
+    private Flux<ProductAggregateResult> getMissingResults(List<Integer> ids, Set<Integer> completedIds, HttpStatus status, String message) {
+        return Flux.fromIterable(ids)
+                .filter(completedIds::add)
+                .map(productId -> ProductAggregateResult.error(productId, status.value(),
+                        message != null ? message : "No product found for productId: " + productId));
+    }
+
+    private HttpStatus getErrorStatus(Throwable ex) {
+        if(ex instanceof NotFoundException) return HttpStatus.NOT_FOUND;
+        if(ex instanceof InvalidInputException) return HttpStatus.UNPROCESSABLE_ENTITY;
+        if(ex instanceof ServiceUnavailableException) return HttpStatus.SERVICE_UNAVAILABLE;
+        return HttpStatus.INTERNAL_SERVER_ERROR;
+    }
+
+    private <T> List<T> toList(Collection<T> items) {
+        return items == null ? Collections.emptyList() : new ArrayList<>(items);
+    }
+
+    @Override
+    public Mono<Void> createCompositeProduct(String idempotencyKey, ProductAggregate body) {
+        return ReactiveSecurityContextHolder.getContext().defaultIfEmpty(nullSC)
+                .flatMap(securityContext -> idempotencyStore.execute("create", idempotencyKey, body,
+                        () -> internalCreateCompositeProduct(securityContext, body, null)))
                 .then();
+    }
 
+    /**
+     * Accepts the write as soon as its events are published, or appended to the outbox, and returns 202 with the status
+     * of the operation. The operation completes when the core services have acknowledged all of its events.
+     * A retry with the same Idempotency-Key returns the same operation with its current status.
+     */
+    @Override
+    public Mono<ResponseEntity<OperationStatus>> createCompositeProductAsync(String idempotencyKey, ProductAggregate body) {
+        return ReactiveSecurityContextHolder.getContext().defaultIfEmpty(nullSC)
+                .flatMap(securityContext -> idempotencyStore.execute("create-async", idempotencyKey, body, () -> {
+                    String operationId = operationTracker.newOperationId();
+                    return internalCreateCompositeProduct(securityContext, body, operationId)
+                            .map(expectedEvents -> operationTracker.start(operationId, expectedEvents));
+                }))
+                .flatMap(started -> operationTracker.getStatus(started.getOperationId())
+                        .onErrorReturn(NotFoundException.class, started))
+                .map(status -> ResponseEntity
+                        .accepted()
+                        .location(URI.create("/product-composite/operations/" + status.getOperationId()))
+                        .body(status));
+    }
+
+    @Override
+    public Mono<OperationStatus> getOperationStatus(String operationId) {
+        return operationTracker.getStatus(operationId);
     }
 
-    public void internalCreateCompositeProduct(SecurityContext securityContext, ProductAggregate body){
+    /**
+     * Completes with the number of events when they are all published, or appended to the outbox, without blocking the calling thread.
+     */
+    public Mono<Integer> internalCreateCompositeProduct(SecurityContext securityContext, ProductAggregate body, String operationId){
         try {
 
             logAuthorizationInfo(securityContext);
@@ -71,22 +323,18 @@ public class ProductCompositeServiceImpl implements ProductCompositeService {
             log.debug("createCompositeProduct: creates a new composite entity for productId: {}", body.getProductId());
 
             Product product = new Product(body.getProductId(), body.getName(), body.getWeight(), null);
-            productCompositeIntegration.createProduct(product);
 
-            if(body.getRecommendations() != null){
-                body.getRecommendations().forEach(r -> {
-                    Recommendation recommendation = new Recommendation(body.getProductId(), r.getRecommendationId(), r.getAuthor(), r.getRate(), r.getContent(), null);
-                    productCompositeIntegration.createRecommendation(recommendation);
-                });
-            }
-            if(body.getReviews() != null){
-                body.getReviews().forEach(r -> {
-                    Review review = new Review(body.getProductId(), r.getReviewId(), r.getAuthor(), r.getSubject(), r.getContent(), null);
-                    productCompositeIntegration.createReview(review);
-                });
-            }
+            List<Recommendation> recommendations = body.getRecommendations() == null ? Collections.emptyList() : body.getRecommendations().stream()
+                    .map(r -> new Recommendation(body.getProductId(), r.getRecommendationId(), r.getAuthor(), r.getRate(), r.getContent(), null))
+                    .collect(Collectors.toList());
 
-            log.debug("createCompositeProduct: composite entities created for productId: {}", body.getProductId() );
+            List<Review> reviews = body.getReviews() == null ? Collections.emptyList() : body.getReviews().stream()
+                    .map(r -> new Review(body.getProductId(), r.getReviewId(), r.getAuthor(), r.getSubject(), r.getContent(), null))
+                    .collect(Collectors.toList());
+
+            return productCompositeIntegration.publishCompositeProductCreated(product, recommendations, reviews, operationId)
+                    .doOnSuccess(v -> log.debug("createCompositeProduct: composite entities created for productId: {}", body.getProductId()))
+                    .doOnError(ex -> log.warn("createCompositeProduct failed: {}", ex.toString()));
         }catch (RuntimeException runtimeException){
             log.warn("createCompositeProduct failed: {}", runtimeException.toString());
             throw runtimeException;
@@ -95,28 +343,19 @@ public class ProductCompositeServiceImpl implements ProductCompositeService {
 
     @Override
     public Mono<Void> deleteCompositeProduct(int productId) {
-        return ReactiveSecurityContextHolder.getContext()
-                .doOnSuccess(securityContext -> internalDeleteCompositeProduct(securityContext, productId))
-                .then();
+        return ReactiveSecurityContextHolder.getContext().defaultIfEmpty(nullSC)
+                .flatMap(securityContext -> internalDeleteCompositeProduct(securityContext, productId));
     }
 
-    public void internalDeleteCompositeProduct(SecurityContext securityContext, int productId){
-        try {
-            logAuthorizationInfo(securityContext);
-
-            log.debug("deleteCompositeProduct: Deletes a product aggregate for productId: {}", productId);
-
-            productCompositeIntegration.deleteProduct(productId);
-
-            productCompositeIntegration.deleteRecommendations(productId);
+    public Mono<Void> internalDeleteCompositeProduct(SecurityContext securityContext, int productId){
+        logAuthorizationInfo(securityContext);
 
-            productCompositeIntegration.deleteReviews(productId);
+        log.debug("deleteCompositeProduct: Deletes a product aggregate for productId: {}", productId);
 
-            log.debug("deleteCompositeProduct: aggregate entities deleted for productId: {}", productId);
-        }catch (RuntimeException runtimeException){
-            log.warn("deleteCompositeProduct failed: {}", runtimeException.toString());
-            throw runtimeException;
-        }
+        return productCompositeIntegration.publishCompositeProductDeleted(productId, null)
+                .doOnSuccess(v -> log.debug("deleteCompositeProduct: aggregate entities deleted for productId: {}", productId))
+                .doOnError(ex -> log.warn("deleteCompositeProduct failed: {}", ex.toString()))
+                .then();
     }
 
     private ProductAggregate createProductAggregation(SecurityContext securityContext, Product product, List<Recommendation> recommendations, List<Review> reviews, String compositeAddress) {
@@ -125,12 +364,12 @@ public class ProductCompositeServiceImpl implements ProductCompositeService {
 
         List<RecommendationSummary> recommendationSummaries = (recommendations == null) ? null :
             recommendations.stream()
-                .map(r -> new RecommendationSummary(r.getRecommendationId(), r.getAuthor(), r.getRate(), r.getContent()))
+                .map(this::toSummary)
                 .collect(Collectors.toList());
 
         List<ReviewSummary> reviewSummaries = (reviews == null) ? null :
             reviews.stream()
-                .map(r -> new ReviewSummary(r.getReviewId(), r.getAuthor(), r.getSubject(), r.getContent()))
+                .map(this::toSummary)
                 .collect(Collectors.toList());
 
         ServiceAddresses serviceAddresses = ServiceAddresses.builder()
@@ -158,6 +397,14 @@ public class ProductCompositeServiceImpl implements ProductCompositeService {
                 .build();
     }
 
+    private RecommendationSummary toSummary(Recommendation r) {
+        return new RecommendationSummary(r.getRecommendationId(), r.getAuthor(), r.getRate(), r.getContent());
+    }
+
+    private ReviewSummary toSummary(Review r) {
+        return new ReviewSummary(r.getReviewId(), r.getAuthor(), r.getSubject(), r.getContent());
+    }
+
     private void logAuthorizationInfo(SecurityContext securityContext){
         if(securityContext != null && securityContext.getAuthentication() != null && securityContext.getAuthentication() instanceof JwtAuthenticationToken){
             Jwt jwtToken = ((JwtAuthenticationToken) securityContext.getAuthentication()).getToken();
@@ -0,0 +1,95 @@
+package se.magnus.microservices.composite.product.services;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Mono;
+import se.magnus.api.core.product.Product;
+import se.magnus.util.exceptions.NotFoundException;
+
+import java.time.Duration;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Last-known-good store for products, used as fallback when the product circuit breaker is open.
+ *
+ * Successful product responses are recorded in a size bounded store with a time to live.
+ * When an entry is served as fallback it is refreshed in the background, at most once per refresh interval and key,
+ * so recovering product services are probed by a trickle of calls instead of the full request rate. The refresh
+ * bypasses the circuit breaker, which is open whenever the fallback is served and would reject it.
+ */
+@Component
+@Slf4j
+public class ProductFallbackStore {
+
+    private final ProductCompositeIntegration productCompositeIntegration;
+    private final long refreshIntervalMs;
+    private final Cache<Integer, StoredProduct> store;
+    private final Set<Integer> refreshing = ConcurrentHashMap.newKeySet();
+
+    public ProductFallbackStore(
+            ProductCompositeIntegration productCompositeIntegration,
+            MeterRegistry meterRegistry,
+            @Value("${app.product-fallback.maxSize:10000}") long maxSize,
+            @Value("${app.product-fallback.ttlSec:3600}") long ttlSec,
+            @Value("${app.product-fallback.refreshIntervalSec:5}") long refreshIntervalSec) {
+
+        this.productCompositeIntegration = productCompositeIntegration;
+        this.refreshIntervalMs = Duration.ofSeconds(refreshIntervalSec).toMillis();
+        this.store = Caffeine.newBuilder()
+                .maximumSize(maxSize)
+                .expireAfterWrite(Duration.ofSeconds(ttlSec))
+                .recordStats()
+                .build();
+
+        CaffeineCacheMetrics.monitor(meterRegistry, store, "product-fallback");
+    }
+
+    public void put(Product product) {
+        store.put(product.getProductId(), new StoredProduct(product));
+    }
+
+    /**
+     * Returns the last known product for the productId and triggers a background refresh of it,
+     * or a NotFoundException if the product has not been seen within the time to live.
+     */
+    public Mono<Product> getFallback(int productId) {
+        StoredProduct stored = store.getIfPresent(productId);
+        if(stored == null){
+            return Mono.error(new NotFoundException("Product Id: " + productId + " not found in fallback cache!"));
+        }
+
+        log.debug("Serves product for productId: {} from the fallback store, recorded at {}", productId, stored.recordedAtMs);
+        refreshInBackground(productId, stored);
+        return Mono.just(stored.product);
+    }
+
+    private void refreshInBackground(int productId, StoredProduct stored) {
+        long now = System.currentTimeMillis();
+        if(now - stored.lastRefreshAttemptMs < refreshIntervalMs || !refreshing.add(productId)) return;
+
+        stored.lastRefreshAttemptMs = now;
+        productCompositeIntegration.refreshProduct(productId)
+                .doFinally(signal -> refreshing.remove(productId))
+                .subscribe(
+                        this::put,
+                        ex -> log.debug("Background refresh of productId: {} failed: {}", productId, ex.toString()));
+    }
+
+    private static class StoredProduct {
+        private final Product product;
+        private final long recordedAtMs;
+        private volatile long lastRefreshAttemptMs;
+
+        private StoredProduct(Product product) {
+            this.product = product;
+            this.recordedAtMs = System.currentTimeMillis();
+            this.lastRefreshAttemptMs = this.recordedAtMs;
+        }
+    }
+}
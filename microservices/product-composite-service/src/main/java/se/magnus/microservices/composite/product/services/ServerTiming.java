@@ -0,0 +1,65 @@
+package se.magnus.microservices.composite.product.services;
+
+import reactor.util.context.Context;
+import reactor.util.context.ContextView;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+
+/**
+ * Per request breakdown of where the time was spent, e.g. per backend and on aggregation,
+ * carried in the Reactor context and returned to the client in the Server-Timing response header.
+ */
+public class ServerTiming {
+
+    public static final String HEADER = "Server-Timing";
+
+    private static final Object CONTEXT_KEY = ServerTiming.class;
+
+    private final long startNanos = System.nanoTime();
+    private final Map<String, LongAdder> durations = new ConcurrentSkipListMap<>();
+
+    public static Optional<ServerTiming> fromContext(ContextView context) {
+        return context.getOrEmpty(CONTEXT_KEY);
+    }
+
+    public Context putInto(Context context) {
+        return context.put(CONTEXT_KEY, this);
+    }
+
+    /**
+     * Adds the duration to the metric with the given name, repeated calls, e.g. retries, are summed up.
+     */
+    public void record(String name, long durationNanos) {
+        durations.computeIfAbsent(name, key -> new LongAdder()).add(durationNanos);
+    }
+
+    public static <T> T time(ContextView context, String name, Supplier<T> work) {
+        Optional<ServerTiming> timing = fromContext(context);
+        if(!timing.isPresent()) return work.get();
+
+        long start = System.nanoTime();
+        try {
+            return work.get();
+        } finally {
+            timing.get().record(name, System.nanoTime() - start);
+        }
+    }
+
+    public String toHeaderValue() {
+        String metrics = durations.entrySet().stream()
+                .map(e -> metric(e.getKey(), e.getValue().sum()))
+                .collect(Collectors.joining(", "));
+        String total = metric("total", System.nanoTime() - startNanos);
+        return metrics.isEmpty() ? total : metrics + ", " + total;
+    }
+
+    private static String metric(String name, long durationNanos) {
+        return String.format(Locale.ROOT, "%s;dur=%.1f", name, durationNanos / 1_000_000.0);
+    }
+}
@@ -0,0 +1,61 @@
+package se.magnus.microservices.composite.product;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import reactor.core.publisher.Mono;
+import se.magnus.api.composite.product.ProductAggregate;
+import se.magnus.microservices.composite.product.services.ProductAggregateCoalescer;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+public class CoalescingTests {
+
+    private final ProductAggregateCoalescer coalescer = new ProductAggregateCoalescer(new SimpleMeterRegistry(), true, 100);
+
+    @Test
+    public void concurrentCallsShareOneUpstreamCall(){
+        AtomicInteger upstreamCalls = new AtomicInteger();
+        ProductAggregate aggregate = ProductAggregate.builder().productId(1).build();
+
+        Mono<ProductAggregate> loader = Mono.fromCallable(() -> {
+            upstreamCalls.incrementAndGet();
+            return aggregate;
+        }).delayElement(Duration.ofMillis(200));
+
+        ProductAggregate[] results = Mono.zip(
+                coalescer.get(1, () -> loader),
+                coalescer.get(1, () -> loader),
+                coalescer.get(1, () -> loader)
+        ).map(t -> new ProductAggregate[]{t.getT1(), t.getT2(), t.getT3()}).block();
+
+        assertEquals(1, upstreamCalls.get());
+        assertSame(aggregate, results[0]);
+        assertSame(aggregate, results[1]);
+        assertSame(aggregate, results[2]);
+
+        Map<String, Object> stats = coalescer.coalescingStats();
+        assertEquals(1L, stats.get("leaderCalls"));
+        assertEquals(2L, stats.get("coalescedCalls"));
+        assertEquals(0, stats.get("inFlight"));
+        assertEquals(2L, ((Map<?, ?>) stats.get("coalescedCallsPerProductId")).get(1));
+    }
+
+    @Test
+    public void completedCallsAreNotReused(){
+        AtomicInteger upstreamCalls = new AtomicInteger();
+        Mono<ProductAggregate> loader = Mono.fromCallable(() -> {
+            upstreamCalls.incrementAndGet();
+            return ProductAggregate.builder().productId(2).build();
+        });
+
+        coalescer.get(2, () -> loader).block();
+        coalescer.get(2, () -> loader).block();
+
+        assertEquals(2, upstreamCalls.get());
+    }
+}
@@ -0,0 +1,62 @@
+package se.magnus.microservices.composite.product;
+
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+import reactor.test.StepVerifier;
+import se.magnus.microservices.composite.product.services.AdaptiveConcurrencyLimiter;
+import se.magnus.util.exceptions.ServiceUnavailableException;
+
+import java.time.Duration;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class ConcurrencyLimitTests {
+
+    private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+    private final AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(registry, true, 2, 1, 10, 0.5, 2.0);
+
+    @Test
+    public void callsOverTheLimitFailFast(){
+        Sinks.One<String> first = Sinks.one();
+        Sinks.One<String> second = Sinks.one();
+        limiter.limit("product", first.asMono()).subscribe();
+        limiter.limit("product", second.asMono()).subscribe();
+
+        StepVerifier.create(limiter.limit("product", Mono.just("third")))
+                .expectError(ServiceUnavailableException.class)
+                .verify();
+        assertEquals(1.0, registry.get("product.composite.concurrency.rejected").tag("backend", "product").counter().count());
+
+        first.tryEmitValue("first");
+        StepVerifier.create(limiter.limit("product", Mono.just("fourth")))
+                .expectNext("fourth")
+                .verifyComplete();
+    }
+
+    @Test
+    public void limitIsReducedOnTimeouts(){
+        StepVerifier.create(limiter.limit("review", Mono.error(new TimeoutException())))
+                .expectError(TimeoutException.class)
+                .verify(Duration.ofSeconds(1));
+
+        double limit = registry.get("product.composite.concurrency.limit").tag("backend", "review").gauge().value();
+        assertTrue(limit < 2, "limit: " + limit);
+        assertEquals(0.0, registry.get("product.composite.concurrency.in-flight").tag("backend", "review").gauge().value());
+    }
+
+    @Test
+    public void limitIsReducedOnUnavailableGrpcBackends(){
+        StepVerifier.create(limiter.limit("recommendation", Mono.error(Status.UNAVAILABLE.asRuntimeException())))
+                .expectError(StatusRuntimeException.class)
+                .verify(Duration.ofSeconds(1));
+
+        double limit = registry.get("product.composite.concurrency.limit").tag("backend", "recommendation").gauge().value();
+        assertTrue(limit < 2, "limit: " + limit);
+    }
+}
@@ -0,0 +1,116 @@
+package se.magnus.microservices.composite.product;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageChannel;
+import reactor.core.scheduler.Schedulers;
+import se.magnus.api.event.Event;
+import se.magnus.microservices.composite.product.services.EventOutbox;
+import se.magnus.microservices.composite.product.services.EventPublisher;
+import se.magnus.microservices.composite.product.services.OutboxRecord;
+import se.magnus.microservices.composite.product.services.ProductCompositeIntegration;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class EventOutboxTests {
+
+    @TempDir
+    Path directory;
+
+    private final List<Message<?>> products = Collections.synchronizedList(new ArrayList<>());
+    private final List<Message<?>> reviews = Collections.synchronizedList(new ArrayList<>());
+    private final ObjectMapper objectMapper = new ObjectMapper().registerModule(new JavaTimeModule()).disable(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS);
+    private EventOutbox outbox;
+
+    @AfterEach
+    public void tearDown() throws IOException {
+        if(outbox != null) outbox.close();
+    }
+
+    @Test
+    public void appendedEventsAreRelayedInOrder() throws IOException {
+        outbox = openOutbox();
+
+        outbox.append(Arrays.asList(
+                record(ProductCompositeIntegration.MessageSources.OUTPUT_PRODUCTS, Event.Type.CREATE, 1),
+                record(ProductCompositeIntegration.MessageSources.OUTPUT_REVIEWS, Event.Type.CREATE, 1))).block();
+        outbox.append(Collections.singletonList(
+                record(ProductCompositeIntegration.MessageSources.OUTPUT_PRODUCTS, Event.Type.DELETE, 1))).block();
+
+        while(outbox.relay() > 0);
+
+        assertEquals(2, products.size());
+        assertEquals(Event.Type.CREATE, ((Event<?, ?>) products.get(0).getPayload()).getEventType());
+        assertEquals(Event.Type.DELETE, ((Event<?, ?>) products.get(1).getPayload()).getEventType());
+        assertEquals(1, reviews.size());
+        assertEquals("true", reviews.get(0).getHeaders().get(Event.BATCH_HEADER));
+        assertEquals(0, Files.size(directory.resolve("outbox.log")));
+    }
+
+    @Test
+    public void incompleteRecordIsDroppedOnOpen() throws IOException {
+        outbox = openOutbox();
+        outbox.append(Collections.singletonList(
+                record(ProductCompositeIntegration.MessageSources.OUTPUT_PRODUCTS, Event.Type.CREATE, 2))).block();
+        outbox.close();
+
+        Files.write(directory.resolve("outbox.log"), "{\"binding\":\"output-pro".getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+
+        outbox = openOutbox();
+        while(outbox.relay() > 0);
+
+        assertEquals(1, products.size());
+        assertEquals(2, ((Event<?, ?>) products.get(0).getPayload()).getKey());
+    }
+
+    @Test
+    public void offsetBeyondTheLogIsResetOnOpen() throws IOException {
+        // left by a crash between truncating the relayed log and resetting the offset
+        Files.write(directory.resolve("outbox.offset"), "1000".getBytes(StandardCharsets.UTF_8));
+
+        outbox = openOutbox();
+        outbox.append(Collections.singletonList(
+                record(ProductCompositeIntegration.MessageSources.OUTPUT_PRODUCTS, Event.Type.CREATE, 3))).block();
+        while(outbox.relay() > 0);
+
+        assertEquals(1, products.size());
+        assertEquals(3, ((Event<?, ?>) products.get(0).getPayload()).getKey());
+    }
+
+    private EventOutbox openOutbox() throws IOException {
+        ProductCompositeIntegration.MessageSources messageSources = new ProductCompositeIntegration.MessageSources() {
+            public MessageChannel outputProducts() { return (message, timeout) -> products.add(message); }
+            public MessageChannel outputRecommendations() { return (message, timeout) -> true; }
+            public MessageChannel outputReviews() { return (message, timeout) -> reviews.add(message); }
+        };
+        EventPublisher eventPublisher = new EventPublisher(Schedulers.boundedElastic(), false, 500, 4);
+
+        // a relay interval longer than the tests, relaying is triggered explicitly
+        EventOutbox eventOutbox = new EventOutbox(objectMapper, eventPublisher, messageSources, Schedulers.boundedElastic(),
+                new SimpleMeterRegistry(), true, directory.toString(), 100, 60000);
+        eventOutbox.open();
+        return eventOutbox;
+    }
+
+    private OutboxRecord record(String binding, Event.Type type, int productId) {
+        return new OutboxRecord(binding,
+                binding.equals(ProductCompositeIntegration.MessageSources.OUTPUT_REVIEWS) ? Collections.singletonMap(Event.BATCH_HEADER, "true") : Collections.emptyMap(),
+                new Event<>(type, productId, null));
+    }
+}
@@ -0,0 +1,47 @@
+package se.magnus.microservices.composite.product;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.amqp.rabbit.connection.CorrelationData;
+import org.springframework.amqp.support.AmqpHeaders;
+import org.springframework.messaging.MessageChannel;
+import org.springframework.messaging.support.MessageBuilder;
+import reactor.core.scheduler.Schedulers;
+import reactor.test.StepVerifier;
+import se.magnus.microservices.composite.product.services.EventPublisher;
+import se.magnus.util.exceptions.ServiceUnavailableException;
+
+import java.time.Duration;
+
+public class EventPublisherTests {
+
+    private final EventPublisher eventPublisher = new EventPublisher(Schedulers.boundedElastic(), true, 500, 4);
+
+    @Test
+    public void completesWhenTheBrokerConfirms(){
+        MessageChannel channel = (message, timeout) -> {
+            CorrelationData correlation = message.getHeaders().get(AmqpHeaders.PUBLISH_CONFIRM_CORRELATION, CorrelationData.class);
+            correlation.getFuture().set(new CorrelationData.Confirm(true, null));
+            return true;
+        };
+
+        StepVerifier.create(eventPublisher.publish(channel, MessageBuilder.withPayload("event").build()))
+                .verifyComplete();
+    }
+
+    @Test
+    public void failsWhenTheBrokerDoesNotConfirm(){
+        MessageChannel nackChannel = (message, timeout) -> {
+            CorrelationData correlation = message.getHeaders().get(AmqpHeaders.PUBLISH_CONFIRM_CORRELATION, CorrelationData.class);
+            correlation.getFuture().set(new CorrelationData.Confirm(false, "nack"));
+            return true;
+        };
+        MessageChannel silentChannel = (message, timeout) -> true;
+
+        StepVerifier.create(eventPublisher.publish(nackChannel, MessageBuilder.withPayload("event").build()))
+                .expectError(ServiceUnavailableException.class)
+                .verify(Duration.ofSeconds(1));
+        StepVerifier.create(eventPublisher.publish(silentChannel, MessageBuilder.withPayload("event").build()))
+                .expectError(ServiceUnavailableException.class)
+                .verify(Duration.ofSeconds(2));
+    }
+}
@@ -0,0 +1,156 @@
+package se.magnus.microservices.composite.product;
+
+import io.grpc.BindableService;
+import io.grpc.ServerServiceDefinition;
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.reactivestreams.Subscription;
+import org.springframework.beans.factory.support.StaticListableBeanFactory;
+import reactor.core.publisher.BaseSubscriber;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import se.magnus.api.core.product.Product;
+import se.magnus.api.core.recommendation.Recommendation;
+import se.magnus.api.core.review.Review;
+import se.magnus.api.grpc.CoreServiceMethods;
+import se.magnus.microservices.composite.product.services.CoreGrpcClient;
+import se.magnus.util.exceptions.InvalidInputException;
+import se.magnus.util.exceptions.NotFoundException;
+import se.magnus.util.grpc.GrpcServer;
+import se.magnus.util.grpc.ReactiveServerCalls;
+import se.magnus.util.http.Deadline;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class GrpcTransportTests {
+
+    private static final int SLOW_PRODUCT_ID = 14;
+    private static final int MANY_RECOMMENDATIONS = 10_000;
+
+    // large enough for the flow control windows of a call to fill up after a few recommendations
+    private static final String LARGE_CONTENT = String.join("", Collections.nCopies(16 * 1024, "c"));
+
+    private final AtomicInteger emittedRecommendations = new AtomicInteger();
+
+    private GrpcServer server;
+    private CoreGrpcClient client;
+
+    @BeforeEach
+    public void setUp() throws IOException {
+        int port = findFreePort();
+
+        StaticListableBeanFactory beans = new StaticListableBeanFactory();
+        beans.addBean("product", (BindableService) () -> ServerServiceDefinition.builder(CoreServiceMethods.PRODUCT_SERVICE)
+                .addMethod(CoreServiceMethods.GET_PRODUCT, ReactiveServerCalls.unary(request -> {
+                    if(request.getProductId() < 1) throw new InvalidInputException("Invalid productId: " + request.getProductId());
+                    if(request.getProductId() == 13) return Mono.error(new NotFoundException("No product found for productId: 13"));
+                    if(request.getProductId() == SLOW_PRODUCT_ID) return Mono.delay(Duration.ofSeconds(5)).thenReturn(new Product(SLOW_PRODUCT_ID, "name", 1, "product"));
+                    return Mono.just(new Product(request.getProductId(), "name", 1, "product"));
+                }))
+                .build());
+        beans.addBean("review", (BindableService) () -> ServerServiceDefinition.builder(CoreServiceMethods.REVIEW_SERVICE)
+                .addMethod(CoreServiceMethods.GET_REVIEWS, ReactiveServerCalls.serverStreaming(request -> Flux.range(1, 100)
+                        .map(id -> new Review(request.getProductId(), id, "a", "s", "c", "review"))))
+                .build());
+
+        beans.addBean("recommendation", (BindableService) () -> ServerServiceDefinition.builder(CoreServiceMethods.RECOMMENDATION_SERVICE)
+                .addMethod(CoreServiceMethods.GET_RECOMMENDATIONS, ReactiveServerCalls.serverStreaming(request -> Flux.range(1, MANY_RECOMMENDATIONS)
+                        .map(id -> new Recommendation(request.getProductId(), id, "a", 1, LARGE_CONTENT, "recommendation"))
+                        .doOnNext(r -> emittedRecommendations.incrementAndGet())))
+                .build());
+
+        server = new GrpcServer(beans.getBeanProvider(BindableService.class), port, 1);
+        server.start();
+
+        String target = "localhost:" + port;
+        client = new CoreGrpcClient(target, target, target, 30);
+    }
+
+    @AfterEach
+    public void tearDown() throws InterruptedException {
+        client.close();
+        server.stop();
+    }
+
+    @Test
+    public void getProduct(){
+        Product product = client.getProduct(1, 0, 0).block();
+
+        assertEquals(1, product.getProductId());
+        assertEquals("name", product.getName());
+    }
+
+    @Test
+    public void getProductMapsErrors(){
+        assertThrows(NotFoundException.class, () -> client.getProduct(13, 0, 0).block());
+        assertThrows(InvalidInputException.class, () -> client.getProduct(0, 0, 0).block());
+    }
+
+    @Test
+    public void callsCarryTheDeadlineOfTheRequest(){
+        Deadline deadline = Deadline.ofMillis(200);
+
+        StatusRuntimeException ex = assertThrows(StatusRuntimeException.class, () -> client.getProduct(SLOW_PRODUCT_ID, 0, 0)
+                .contextWrite(deadline::putInto)
+                .block(Duration.ofSeconds(2)));
+        assertEquals(Status.Code.DEADLINE_EXCEEDED, ex.getStatus().getCode());
+    }
+
+    @Test
+    public void getReviewsStreamsAllReviews(){
+        List<Review> reviews = client.getReviews(1).collectList().block();
+
+        assertEquals(100, reviews.size());
+        assertEquals(100, reviews.get(99).getReviewId());
+    }
+
+    @Test
+    public void slowSubscriberHoldsBackTheServer() throws InterruptedException {
+        BlockingQueue<Recommendation> received = new LinkedBlockingQueue<>();
+        BaseSubscriber<Recommendation> subscriber = new BaseSubscriber<Recommendation>() {
+            @Override
+            protected void hookOnSubscribe(Subscription subscription) {
+                request(10);
+            }
+
+            @Override
+            protected void hookOnNext(Recommendation recommendation) {
+                received.add(recommendation);
+            }
+        };
+        client.getRecommendations(1).subscribe(subscriber);
+
+        for(int i = 0; i < 10; i++) assertNotNull(received.poll(5, TimeUnit.SECONDS));
+        Thread.sleep(1000);
+        int emitted = emittedRecommendations.get();
+        Thread.sleep(500);
+
+        // the server stops once the flow control windows of the call are full
+        assertTrue(received.isEmpty());
+        assertEquals(emitted, emittedRecommendations.get());
+        assertTrue(emitted < MANY_RECOMMENDATIONS, "emitted: " + emitted);
+        subscriber.dispose();
+    }
+
+    private int findFreePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package se.magnus.microservices.composite.product;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import reactor.core.publisher.Flux;
+import se.magnus.microservices.composite.product.services.HedgingPolicy;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class HedgingTests {
+
+    private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+    private final HedgingPolicy hedgingPolicy = new HedgingPolicy(registry, true, 0.95, 20, 100, 20);
+
+    @Test
+    public void slowCallIsHedgedAndCancelled(){
+        AtomicInteger calls = new AtomicInteger();
+        AtomicBoolean slowCallCancelled = new AtomicBoolean();
+
+        List<String> result = hedgingPolicy.hedge("review", () -> calls.incrementAndGet() == 1
+                ? Flux.just("slow").delayElements(Duration.ofSeconds(2)).doOnCancel(() -> slowCallCancelled.set(true))
+                : Flux.just("fast"))
+                .collectList().block(Duration.ofSeconds(1));
+
+        assertEquals(List.of("fast"), result);
+        assertEquals(2, calls.get());
+        assertTrue(slowCallCancelled.get());
+        assertEquals(1.0, registry.get("product.composite.hedging.calls").tag("outcome", "hedge_won").counter().count());
+    }
+
+    @Test
+    public void fastCallIsNotHedged(){
+        AtomicInteger calls = new AtomicInteger();
+
+        List<String> result = hedgingPolicy.hedge("recommendation", () -> {
+            calls.incrementAndGet();
+            return Flux.just("a", "b");
+        }).collectList().block();
+
+        assertEquals(List.of("a", "b"), result);
+        assertEquals(1, calls.get());
+        assertEquals(1.0, registry.get("product.composite.hedging.calls").tag("outcome", "not_hedged").counter().count());
+    }
+}
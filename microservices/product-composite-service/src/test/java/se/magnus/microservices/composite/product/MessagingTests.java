@@ -9,9 +9,11 @@ import org.springframework.cloud.stream.test.binder.MessageCollector;
 import org.springframework.http.HttpStatus;
 import org.springframework.messaging.Message;
 import org.springframework.messaging.MessageChannel;
+import org.springframework.messaging.support.MessageBuilder;
 import org.springframework.test.context.junit.jupiter.SpringExtension;
 import org.springframework.test.web.reactive.server.WebTestClient;
 import reactor.core.publisher.Mono;
+import se.magnus.api.composite.product.OperationStatus;
 import se.magnus.api.composite.product.ProductAggregate;
 import se.magnus.api.composite.product.RecommendationSummary;
 import se.magnus.api.composite.product.ReviewSummary;
@@ -19,14 +21,20 @@ import se.magnus.api.core.product.Product;
 import se.magnus.api.core.recommendation.Recommendation;
 import se.magnus.api.core.review.Review;
 import se.magnus.api.event.Event;
+import se.magnus.api.event.OperationAck;
+import se.magnus.microservices.composite.product.services.MessageProcessor;
 import se.magnus.microservices.composite.product.services.ProductCompositeIntegration;
 
 import java.util.Collections;
+import java.util.List;
 import java.util.concurrent.BlockingQueue;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.is;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
 import static org.springframework.cloud.stream.test.matcher.MessageQueueMatcher.receivesPayloadThat;
 import static se.magnus.microservices.composite.product.IsSameEvent.sameEventExceptCreatedAt;
 
@@ -46,6 +54,9 @@ public class MessagingTests {
     @Autowired
     private MessageCollector collector;
 
+    @Autowired
+    private MessageProcessor.MessageSinks messageSinks;
+
     BlockingQueue<Message<?>> queueProducts = null;
     BlockingQueue<Message<?>> queueRecommendations = null;
     BlockingQueue<Message<?>> queueReviews = null;
@@ -86,15 +97,106 @@ public class MessagingTests {
 
         assertEquals(1, queueRecommendations.size());
         RecommendationSummary rec = compositeProduct.getRecommendations().get(0);
-        Event<Integer, Product> expectedRecommendationEvent = new Event(Event.Type.CREATE, compositeProduct.getProductId(), new Recommendation(compositeProduct.getProductId(), rec.getRecommendationId(), rec.getAuthor(), rec.getRate(), rec.getContent(), null));
+        Event<Integer, Product> expectedRecommendationEvent = new Event(Event.Type.CREATE, compositeProduct.getProductId(), Collections.singletonList(new Recommendation(compositeProduct.getProductId(), rec.getRecommendationId(), rec.getAuthor(), rec.getRate(), rec.getContent(), null)));
+        assertEquals("true", queueRecommendations.peek().getHeaders().get(Event.BATCH_HEADER));
         assertThat(queueRecommendations, receivesPayloadThat(sameEventExceptCreatedAt(expectedRecommendationEvent)));
 
         assertEquals(1, queueReviews.size());
         ReviewSummary rev = compositeProduct.getReviews().get(0);
-        Event<Integer, Product> expectedReviewEvent = new Event(Event.Type.CREATE, compositeProduct.getProductId(), new Review(compositeProduct.getProductId(), rev.getReviewId(), rev.getAuthor(), rev.getSubject(), rev.getContent(), null));
+        Event<Integer, Product> expectedReviewEvent = new Event(Event.Type.CREATE, compositeProduct.getProductId(), Collections.singletonList(new Review(compositeProduct.getProductId(), rev.getReviewId(), rev.getAuthor(), rev.getSubject(), rev.getContent(), null)));
+        assertEquals("true", queueReviews.peek().getHeaders().get(Event.BATCH_HEADER));
+        assertThat(queueReviews, receivesPayloadThat(sameEventExceptCreatedAt(expectedReviewEvent)));
+    }
+
+    @Test
+    public void createCompositeProductSendsOneEventForAllReviews(){
+        List<ReviewSummary> reviews = IntStream.rangeClosed(1, 200)
+                .mapToObj(i -> new ReviewSummary(i, "a", "s", "c"))
+                .collect(Collectors.toList());
+        ProductAggregate compositeProduct = new ProductAggregate(1, "name", 1, null, reviews, null);
+
+        postAndVerifyProduct(compositeProduct, HttpStatus.OK);
+
+        assertEquals(1, queueProducts.size());
+        Event<Integer, Product> expectedEvent = new Event(Event.Type.CREATE, 1, new Product(1, "name", 1, null));
+        assertThat(queueProducts, is(receivesPayloadThat(sameEventExceptCreatedAt(expectedEvent))));
+
+        assertEquals(1, queueReviews.size());
+        assertEquals(0, queueRecommendations.size());
+        List<Review> expectedReviews = reviews.stream()
+                .map(r -> new Review(1, r.getReviewId(), r.getAuthor(), r.getSubject(), r.getContent(), null))
+                .collect(Collectors.toList());
+        Event<Integer, Product> expectedReviewEvent = new Event(Event.Type.CREATE, 1, expectedReviews);
         assertThat(queueReviews, receivesPayloadThat(sameEventExceptCreatedAt(expectedReviewEvent)));
     }
 
+    @Test
+    public void createCompositeProductAsync(){
+        ProductAggregate compositeProduct = new ProductAggregate(1, "name", 1, null,
+                Collections.singletonList(new ReviewSummary(1, "a", "s", "c")), null);
+
+        OperationStatus accepted = webTestClient.post()
+                .uri("/product-composite?async=true")
+                .body(Mono.just(compositeProduct), ProductAggregate.class)
+                .exchange()
+                .expectStatus().isAccepted()
+                .expectHeader().valueMatches("Location", "/product-composite/operations/.+")
+                .expectBody(OperationStatus.class)
+                .returnResult().getResponseBody();
+
+        assertEquals(OperationStatus.Status.PENDING, accepted.getStatus());
+        assertEquals(2, accepted.getExpectedEvents());
+
+        assertEquals(1, queueProducts.size());
+        Message<?> productEvent = queueProducts.poll();
+        assertEquals(accepted.getOperationId(), productEvent.getHeaders().get(Event.OPERATION_ID_HEADER));
+        assertEquals(1, queueReviews.size());
+        Message<?> reviewEvent = queueReviews.poll();
+        assertEquals("2", reviewEvent.getHeaders().get(Event.OPERATION_EVENTS_HEADER));
+
+        String productEventId = (String) productEvent.getHeaders().get(Event.EVENT_ID_HEADER);
+        String reviewEventId = (String) reviewEvent.getHeaders().get(Event.EVENT_ID_HEADER);
+        assertNotEquals(productEventId, reviewEventId);
+
+        messageSinks.inputOperationAcks().send(MessageBuilder.withPayload(new OperationAck(accepted.getOperationId(), productEventId, 2, OperationAck.Status.PROCESSED, "product", null)).build());
+        getAndVerifyOperation(accepted.getOperationId(), OperationStatus.Status.PENDING);
+
+        messageSinks.inputOperationAcks().send(MessageBuilder.withPayload(new OperationAck(accepted.getOperationId(), reviewEventId, 2, OperationAck.Status.PROCESSED, "review", null)).build());
+        getAndVerifyOperation(accepted.getOperationId(), OperationStatus.Status.COMPLETED)
+                .jsonPath("$.processedEvents").isEqualTo(2);
+
+        // a redelivered event fails on the duplicate key, its acknowledgement is not counted again
+        messageSinks.inputOperationAcks().send(MessageBuilder.withPayload(new OperationAck(accepted.getOperationId(), productEventId, 2, OperationAck.Status.FAILED, "product", "Duplicate key")).build());
+        getAndVerifyOperation(accepted.getOperationId(), OperationStatus.Status.COMPLETED)
+                .jsonPath("$.processedEvents").isEqualTo(2)
+                .jsonPath("$.failedEvents").isEqualTo(0);
+
+        webTestClient.get()
+                .uri("/product-composite/operations/unknown")
+                .exchange()
+                .expectStatus().isNotFound();
+    }
+
+    @Test
+    public void createCompositeProductWithIdempotencyKey(){
+        ProductAggregate compositeProduct = new ProductAggregate(1, "name", 1, null, null, null);
+
+        postAndVerifyProduct("key-1", compositeProduct, HttpStatus.OK);
+        postAndVerifyProduct("key-1", compositeProduct, HttpStatus.OK);
+
+        assertEquals(1, queueProducts.size());
+        queueProducts.clear();
+
+        postAndVerifyProduct("key-1", new ProductAggregate(2, "name", 1, null, null, null), HttpStatus.UNPROCESSABLE_ENTITY);
+        assertEquals(0, queueProducts.size());
+
+        OperationStatus accepted = postAsync("key-2", compositeProduct);
+        assertEquals(accepted.getOperationId(), postAsync("key-2", compositeProduct).getOperationId());
+
+        assertEquals(1, queueProducts.size());
+        queueProducts.clear();
+    }
+
     @Test
     public void deleteCompositeProduct(){
         deleteAndVerifyProduct(1, HttpStatus.OK);
@@ -112,6 +214,15 @@ public class MessagingTests {
         assertThat(queueReviews, receivesPayloadThat(sameEventExceptCreatedAt(expectedReviewEvent)));
     }
 
+    private WebTestClient.BodyContentSpec getAndVerifyOperation(String operationId, OperationStatus.Status expectedStatus) {
+        return webTestClient.get()
+                .uri("/product-composite/operations/" + operationId)
+                .exchange()
+                .expectStatus().isOk()
+                .expectBody()
+                .jsonPath("$.status").isEqualTo(expectedStatus.name());
+    }
+
     private void deleteAndVerifyProduct(int productId, HttpStatus expectedStatus) {
         webTestClient.delete()
             .uri("/product-composite/" + productId)
@@ -127,6 +238,26 @@ public class MessagingTests {
             .expectStatus().isEqualTo(expectedStatus);
     }
 
+    private void postAndVerifyProduct(String idempotencyKey, ProductAggregate compositeProduct, HttpStatus expectedStatus) {
+        webTestClient.post()
+            .uri("/product-composite")
+            .header("Idempotency-Key", idempotencyKey)
+            .body(Mono.just(compositeProduct), ProductAggregate.class)
+            .exchange()
+            .expectStatus().isEqualTo(expectedStatus);
+    }
+
+    private OperationStatus postAsync(String idempotencyKey, ProductAggregate compositeProduct) {
+        return webTestClient.post()
+            .uri("/product-composite?async=true")
+            .header("Idempotency-Key", idempotencyKey)
+            .body(Mono.just(compositeProduct), ProductAggregate.class)
+            .exchange()
+            .expectStatus().isAccepted()
+            .expectBody(OperationStatus.class)
+            .returnResult().getResponseBody();
+    }
+
     private BlockingQueue<Message<?>> getQueue(MessageChannel messageChannel) {
         return collector.forChannel(messageChannel);
     }
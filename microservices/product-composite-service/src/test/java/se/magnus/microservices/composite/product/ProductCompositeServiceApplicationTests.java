@@ -1,5 +1,7 @@
 package se.magnus.microservices.composite.product;
 
+import io.github.resilience4j.circuitbreaker.CallNotPermittedException;
+import io.github.resilience4j.circuitbreaker.CircuitBreaker;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.mockito.ArgumentMatchers;
@@ -7,29 +9,47 @@ import org.mockito.Mockito;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
+import org.springframework.messaging.support.MessageBuilder;
 import org.springframework.test.web.reactive.server.WebTestClient;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
+import se.magnus.api.composite.product.ProductAggregateItem;
 import se.magnus.api.core.product.Product;
+import se.magnus.api.core.product.ProductResult;
 import se.magnus.api.core.recommendation.Recommendation;
 import se.magnus.api.core.review.Review;
+import se.magnus.api.event.Event;
+import se.magnus.microservices.composite.product.services.MessageProcessor;
 import se.magnus.microservices.composite.product.services.ProductCompositeIntegration;
 import se.magnus.util.exceptions.InvalidInputException;
 import se.magnus.util.exceptions.NotFoundException;
+import se.magnus.util.http.Deadline;
 
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.times;
 
 @SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT,
         classes = {ProductCompositeServiceApplication.class, TestSecurityConfig.class},
-        properties = {"spring.main.allow-bean-definition-overriding=true","eureka.client.enabled=false","spring.cloud.config.enabled=false"})
+        properties = {"spring.main.allow-bean-definition-overriding=true","eureka.client.enabled=false","spring.cloud.config.enabled=false","app.server-timing.enabled=true"})
 public class ProductCompositeServiceApplicationTests {
     private static final int PRODUCT_ID_OK = 1;
     private static final int PRODUCT_ID_NOT_FOUND = 2;
     private static final int PRODUCT_ID_INVALID = 3;
+    private static final int PRODUCT_ID_CACHED = 4;
+    private static final int PRODUCT_ID_FALLBACK = 5;
+    private static final int PRODUCT_ID_NO_FALLBACK = 6;
+    private static final int PRODUCT_ID_SLOW_REVIEWS = 7;
+    private static final int PRODUCT_ID_PROJECTED = 8;
 
     @Autowired
     private WebTestClient webTestClient;
@@ -37,6 +57,9 @@ public class ProductCompositeServiceApplicationTests {
     @MockBean
     private ProductCompositeIntegration productCompositeIntegration;
 
+    @Autowired
+    private MessageProcessor.MessageSinks messageSinks;
+
     @BeforeEach
     public void setUp(){
         Mockito.when(productCompositeIntegration.getProduct(eq(PRODUCT_ID_OK), anyInt(), anyInt()))
@@ -53,6 +76,49 @@ public class ProductCompositeServiceApplicationTests {
 
         Mockito.when(productCompositeIntegration.getProduct(eq(PRODUCT_ID_INVALID), anyInt(), anyInt()))
                 .thenThrow(new InvalidInputException("INVALID: " + PRODUCT_ID_INVALID));
+
+        Mockito.when(productCompositeIntegration.getProduct(eq(PRODUCT_ID_CACHED), anyInt(), anyInt()))
+                .thenReturn(Mono.just(new Product(PRODUCT_ID_CACHED, "name", 1, "mock-address")));
+        Mockito.when(productCompositeIntegration.getRecommendations(PRODUCT_ID_CACHED)).thenReturn(Flux.empty());
+        Mockito.when(productCompositeIntegration.getReviews(PRODUCT_ID_CACHED)).thenReturn(Flux.empty());
+
+        CallNotPermittedException circuitOpen = CallNotPermittedException.createCallNotPermittedException(CircuitBreaker.ofDefaults("product"));
+        Mockito.when(productCompositeIntegration.getProduct(eq(PRODUCT_ID_FALLBACK), anyInt(), anyInt()))
+                .thenReturn(Mono.just(new Product(PRODUCT_ID_FALLBACK, "last known name", 1, "mock-address")))
+                .thenReturn(Mono.error(circuitOpen));
+        Mockito.when(productCompositeIntegration.refreshProduct(PRODUCT_ID_FALLBACK)).thenReturn(Mono.error(circuitOpen));
+        Mockito.when(productCompositeIntegration.getRecommendations(PRODUCT_ID_FALLBACK)).thenReturn(Flux.empty());
+        Mockito.when(productCompositeIntegration.getReviews(PRODUCT_ID_FALLBACK)).thenReturn(Flux.empty());
+
+        Mockito.when(productCompositeIntegration.getProduct(eq(PRODUCT_ID_NO_FALLBACK), anyInt(), anyInt()))
+                .thenReturn(Mono.error(circuitOpen));
+        Mockito.when(productCompositeIntegration.getRecommendations(PRODUCT_ID_NO_FALLBACK)).thenReturn(Flux.empty());
+        Mockito.when(productCompositeIntegration.getReviews(PRODUCT_ID_NO_FALLBACK)).thenReturn(Flux.empty());
+
+        Mockito.when(productCompositeIntegration.getProduct(eq(PRODUCT_ID_SLOW_REVIEWS), anyInt(), anyInt()))
+                .thenReturn(Mono.just(new Product(PRODUCT_ID_SLOW_REVIEWS, "name", 1, "mock-address")));
+        Mockito.when(productCompositeIntegration.getRecommendations(PRODUCT_ID_SLOW_REVIEWS))
+                .thenReturn(Flux.just(new Recommendation(PRODUCT_ID_SLOW_REVIEWS, 1, "author", 1, "content", "mock address")));
+        Mockito.when(productCompositeIntegration.getReviews(PRODUCT_ID_SLOW_REVIEWS))
+                .thenReturn(Flux.never());
+
+        Mockito.when(productCompositeIntegration.getProduct(eq(PRODUCT_ID_PROJECTED), anyInt(), anyInt()))
+                .thenReturn(Mono.just(new Product(PRODUCT_ID_PROJECTED, "name", 1, "mock-address")));
+        Mockito.when(productCompositeIntegration.getReviews(PRODUCT_ID_PROJECTED))
+                .thenReturn(Flux.just(
+                        new Review(PRODUCT_ID_PROJECTED, 1, "author", "subject", "content", "mock address"),
+                        new Review(PRODUCT_ID_PROJECTED, 2, "author", "subject", "content", "mock address")));
+
+        Mockito.when(productCompositeIntegration.getProducts(Arrays.asList(PRODUCT_ID_OK, PRODUCT_ID_NOT_FOUND)))
+                .thenReturn(Flux.just(
+                        ProductResult.ok(new Product(PRODUCT_ID_OK, "name", 1, "mock-address")),
+                        ProductResult.notFound(PRODUCT_ID_NOT_FOUND)));
+
+        Mockito.when(productCompositeIntegration.getRecommendations(Arrays.asList(PRODUCT_ID_OK, PRODUCT_ID_NOT_FOUND)))
+                .thenReturn(Flux.just(new Recommendation(PRODUCT_ID_OK, 1, "author", 1, "content", "mock address")));
+
+        Mockito.when(productCompositeIntegration.getReviews(Arrays.asList(PRODUCT_ID_OK, PRODUCT_ID_NOT_FOUND)))
+                .thenReturn(Flux.just(new Review(PRODUCT_ID_OK, 1, "author", "subject", "content", "mock address")));
     }
 
 
@@ -64,6 +130,34 @@ public class ProductCompositeServiceApplicationTests {
             .jsonPath("$.reviews.length()").isEqualTo(1);
     }
 
+    @Test
+    public void getProductByIdIsNotModified(){
+        String eTag = webTestClient.get()
+                .uri("/product-composite/" + PRODUCT_ID_OK)
+                .accept(MediaType.APPLICATION_JSON)
+                .exchange()
+                .expectStatus().isOk()
+                .returnResult(String.class)
+                .getResponseHeaders().getETag();
+        assertTrue(eTag.startsWith("W/"), eTag);
+
+        webTestClient.get()
+                .uri("/product-composite/" + PRODUCT_ID_OK)
+                .accept(MediaType.APPLICATION_JSON)
+                .ifNoneMatch(eTag)
+                .exchange()
+                .expectStatus().isNotModified()
+                .expectHeader().valueEquals(HttpHeaders.ETAG, eTag)
+                .expectBody().isEmpty();
+
+        webTestClient.get()
+                .uri("/product-composite/" + PRODUCT_ID_OK + "?fields=reviewCount")
+                .accept(MediaType.APPLICATION_JSON)
+                .ifNoneMatch(eTag)
+                .exchange()
+                .expectStatus().isOk();
+    }
+
     @Test
     public void getProductNotFound(){
         getAndVerifyProduct(PRODUCT_ID_NOT_FOUND, HttpStatus.NOT_FOUND)
@@ -78,9 +172,147 @@ public class ProductCompositeServiceApplicationTests {
             .jsonPath("$.message").isEqualTo("INVALID: " + PRODUCT_ID_INVALID);
     }
 
+    @Test
+    public void getProductByIdIsCachedUntilEvicted(){
+        getAndVerifyProduct(PRODUCT_ID_CACHED, HttpStatus.OK);
+        getAndVerifyProduct(PRODUCT_ID_CACHED, HttpStatus.OK);
+        Mockito.verify(productCompositeIntegration, times(1)).getProduct(eq(PRODUCT_ID_CACHED), anyInt(), anyInt());
+
+        messageSinks.inputReviews().send(MessageBuilder.withPayload(new Event<Integer, Object>(Event.Type.DELETE, PRODUCT_ID_CACHED, null)).build());
+
+        getAndVerifyProduct(PRODUCT_ID_CACHED, HttpStatus.OK)
+            .jsonPath("$.productId").isEqualTo(PRODUCT_ID_CACHED);
+        Mockito.verify(productCompositeIntegration, times(2)).getProduct(eq(PRODUCT_ID_CACHED), anyInt(), anyInt());
+    }
+
+    @Test
+    public void getProductFromFallbackStoreWhenCircuitIsOpen(){
+        // the delay parameter makes the requests bypass the aggregate cache
+        getAndVerifyProduct("/product-composite/" + PRODUCT_ID_FALLBACK + "?delay=1", HttpStatus.OK)
+            .jsonPath("$.name").isEqualTo("last known name");
+
+        getAndVerifyProduct("/product-composite/" + PRODUCT_ID_FALLBACK + "?delay=1", HttpStatus.OK)
+            .jsonPath("$.name").isEqualTo("last known name");
+    }
+
+    @Test
+    public void getProductNotInFallbackStoreWhenCircuitIsOpen(){
+        getAndVerifyProduct(PRODUCT_ID_NO_FALLBACK, HttpStatus.NOT_FOUND)
+            .jsonPath("$.message").isEqualTo("Product Id: " + PRODUCT_ID_NO_FALLBACK + " not found in fallback cache!");
+    }
+
+    @Test
+    public void getPartialProductWhenSecondaryBackendExceedsDeadline(){
+        webTestClient.get()
+                .uri("/product-composite/" + PRODUCT_ID_SLOW_REVIEWS)
+                .header(Deadline.HEADER, "500")
+                .accept(MediaType.APPLICATION_JSON)
+                .exchange()
+                .expectStatus().isOk()
+                .expectBody()
+                .jsonPath("$.productId").isEqualTo(PRODUCT_ID_SLOW_REVIEWS)
+                .jsonPath("$.recommendations.length()").isEqualTo(1)
+                .jsonPath("$.reviews.length()").isEqualTo(0);
+    }
+
+    @Test
+    public void getProductWithExpiredDeadline(){
+        webTestClient.get()
+                .uri("/product-composite/" + PRODUCT_ID_OK)
+                .header(Deadline.HEADER, "0")
+                .accept(MediaType.APPLICATION_JSON)
+                .exchange()
+                .expectStatus().isEqualTo(HttpStatus.GATEWAY_TIMEOUT);
+    }
+
+    @Test
+    public void getProductWithProjectedFields(){
+        getAndVerifyProduct("/product-composite/" + PRODUCT_ID_PROJECTED + "?fields=reviewCount", HttpStatus.OK)
+            .jsonPath("$.productId").isEqualTo(PRODUCT_ID_PROJECTED)
+            .jsonPath("$.name").isEqualTo("name")
+            .jsonPath("$.reviewCount").isEqualTo(2)
+            .jsonPath("$.reviews").doesNotExist()
+            .jsonPath("$.recommendations").doesNotExist()
+            .jsonPath("$.serviceAddresses").doesNotExist();
+
+        Mockito.verify(productCompositeIntegration, times(0)).getRecommendations(PRODUCT_ID_PROJECTED);
+    }
+
+    @Test
+    public void getProductWithInvalidField(){
+        getAndVerifyProduct("/product-composite/" + PRODUCT_ID_OK + "?fields=price", HttpStatus.UNPROCESSABLE_ENTITY)
+            .jsonPath("$.message").isEqualTo("Invalid field: price");
+    }
+
+    @Test
+    public void getProductByIdAsStream(){
+        webTestClient.get()
+                .uri("/product-composite/" + PRODUCT_ID_OK)
+                .accept(MediaType.APPLICATION_NDJSON)
+                .exchange()
+                .expectStatus().isOk()
+                .expectHeader().contentTypeCompatibleWith(MediaType.APPLICATION_NDJSON)
+                .expectHeader().doesNotExist("Server-Timing")
+                .expectBodyList(ProductAggregateItem.class)
+                .value(items -> {
+                    assertEquals(3, items.size());
+                    assertEquals(ProductAggregateItem.Type.PRODUCT, items.get(0).getType());
+                    assertEquals(PRODUCT_ID_OK, items.get(0).getProduct().getProductId());
+                    assertEquals(1, items.stream().filter(i -> i.getType() == ProductAggregateItem.Type.RECOMMENDATION).count());
+                    assertEquals(1, items.stream().filter(i -> i.getType() == ProductAggregateItem.Type.REVIEW).count());
+                });
+    }
+
+    @Test
+    public void getProductsByIds(){
+        webTestClient.get()
+                .uri("/product-composite?ids=" + PRODUCT_ID_OK + "," + PRODUCT_ID_NOT_FOUND)
+                .accept(MediaType.APPLICATION_JSON)
+                .exchange()
+                .expectStatus().isOk()
+                .expectBody()
+                .jsonPath("$.length()").isEqualTo(2)
+                .jsonPath("$[0].productId").isEqualTo(PRODUCT_ID_OK)
+                .jsonPath("$[0].status").isEqualTo(200)
+                .jsonPath("$[0].product.recommendations.length()").isEqualTo(1)
+                .jsonPath("$[0].product.reviews.length()").isEqualTo(1)
+                .jsonPath("$[1].productId").isEqualTo(PRODUCT_ID_NOT_FOUND)
+                .jsonPath("$[1].status").isEqualTo(404)
+                .jsonPath("$[1].message").isEqualTo("No product found for productId: " + PRODUCT_ID_NOT_FOUND);
+    }
+
+    @Test
+    public void getProductsByTooManyIds(){
+        String ids = IntStream.rangeClosed(1, 101).mapToObj(String::valueOf).collect(Collectors.joining(","));
+
+        webTestClient.get()
+                .uri("/product-composite?ids=" + ids)
+                .accept(MediaType.APPLICATION_JSON)
+                .exchange()
+                .expectStatus().isEqualTo(HttpStatus.UNPROCESSABLE_ENTITY)
+                .expectBody()
+                .jsonPath("$.message").isEqualTo("Too many productIds: 101, at most 100 are allowed");
+    }
+
+    @Test
+    public void getProductReturnsServerTiming(){
+        webTestClient.get()
+                .uri("/product-composite/" + PRODUCT_ID_OK + "?delay=1")
+                .accept(MediaType.APPLICATION_JSON)
+                .exchange()
+                .expectStatus().isOk()
+                .expectHeader().value("Server-Timing", value -> {
+                    assertTrue(value.matches("aggregation;dur=[0-9.]+, total;dur=[0-9.]+"), value);
+                });
+    }
+
     private WebTestClient.BodyContentSpec getAndVerifyProduct(int productId, HttpStatus expectedStatus){
+        return getAndVerifyProduct("/product-composite/" + productId, expectedStatus);
+    }
+
+    private WebTestClient.BodyContentSpec getAndVerifyProduct(String uri, HttpStatus expectedStatus){
         return webTestClient.get()
-                .uri("/product-composite/" + productId)
+                .uri(uri)
                 .accept(MediaType.APPLICATION_JSON)
                 .exchange()
                 .expectStatus().isEqualTo(expectedStatus)
@@ -0,0 +1,35 @@
+package se.magnus.microservices.composite.product;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+import reactor.core.publisher.Mono;
+import se.magnus.api.core.product.Product;
+import se.magnus.microservices.composite.product.services.ProductCompositeIntegration;
+import se.magnus.microservices.composite.product.services.ProductFallbackStore;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class ProductFallbackStoreTests {
+
+    private final ProductCompositeIntegration integration = Mockito.mock(ProductCompositeIntegration.class);
+    private final ProductFallbackStore store = new ProductFallbackStore(integration, new SimpleMeterRegistry(), 100, 3600, 0);
+
+    @Test
+    public void fallbackIsRefreshedPastTheCircuitBreaker(){
+        when(integration.refreshProduct(1)).thenReturn(Mono.just(new Product(1, "refreshed name", 1, "mock-address")));
+        store.put(new Product(1, "last known name", 1, "mock-address"));
+
+        // the refresh interval is 0, so every fallback triggers a refresh
+        assertEquals("last known name", store.getFallback(1).block().getName());
+        assertEquals("refreshed name", store.getFallback(1).block().getName());
+
+        verify(integration, atLeastOnce()).refreshProduct(1);
+        verify(integration, never()).getProduct(anyInt(), anyInt(), anyInt());
+    }
+}
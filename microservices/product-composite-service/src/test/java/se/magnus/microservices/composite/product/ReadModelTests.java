@@ -0,0 +1,95 @@
+package se.magnus.microservices.composite.product;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import se.magnus.api.composite.product.ProductAggregate;
+import se.magnus.api.composite.product.RecommendationSummary;
+import se.magnus.api.composite.product.ReviewSummary;
+import se.magnus.api.core.product.Product;
+import se.magnus.api.core.recommendation.Recommendation;
+import se.magnus.api.core.review.Review;
+import se.magnus.api.event.Event;
+import se.magnus.microservices.composite.product.services.ProductAggregateReadModel;
+import se.magnus.util.http.ServiceUtil;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+public class ReadModelTests {
+
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    private final ProductAggregateReadModel readModel = createReadModel(true);
+
+    @Test
+    public void eventsBuildTheAggregate(){
+        // the recommendation arrives before the product on its own destination
+        readModel.applyRecommendationEvent(event(Event.Type.CREATE, 1, new Recommendation(1, 1, "a", 1, "c", null)));
+        assertNull(readModel.get(1).block());
+
+        readModel.applyProductEvent(event(Event.Type.CREATE, 1, new Product(1, "name", 1, null)));
+        readModel.applyReviewEvent(event(Event.Type.CREATE, 1, Arrays.asList(
+                new Review(1, 1, "a", "s", "c", null),
+                new Review(1, 2, "a", "s", "c", null))));
+
+        ProductAggregate aggregate = readModel.get(1).block();
+        assertEquals("name", aggregate.getName());
+        assertEquals(1, aggregate.getRecommendations().size());
+        assertEquals(2, aggregate.getReviews().size());
+
+        readModel.applyReviewEvent(event(Event.Type.DELETE, 1, null));
+        assertEquals(0, readModel.get(1).block().getReviews().size());
+
+        readModel.applyProductEvent(event(Event.Type.DELETE, 1, null));
+        assertNull(readModel.get(1).block());
+    }
+
+    @Test
+    public void seedKeepsNewerEvents(){
+        readModel.applyReviewEvent(event(Event.Type.CREATE, 2, new Review(2, 1, "a", "new", "c", null)));
+
+        readModel.seed(new ProductAggregate(2, "name", 1,
+                Collections.singletonList(new RecommendationSummary(1, "a", 1, "c")),
+                Collections.singletonList(new ReviewSummary(1, "a", "old", "c")), null));
+
+        ProductAggregate aggregate = readModel.get(2).block();
+        assertEquals(1, aggregate.getRecommendations().size());
+        assertEquals("new", aggregate.getReviews().get(0).getSubject());
+    }
+
+    @Test
+    public void seedAfterDeleteIsDropped(){
+        readModel.applyProductEvent(event(Event.Type.CREATE, 3, new Product(3, "name", 1, null)));
+
+        // a fan-out started before the delete completes after it
+        readModel.applyProductEvent(event(Event.Type.DELETE, 3, null));
+        readModel.seed(new ProductAggregate(3, "name", 1, Collections.emptyList(), Collections.emptyList(), null));
+        assertNull(readModel.get(3).block());
+
+        readModel.applyProductEvent(event(Event.Type.CREATE, 3, new Product(3, "again", 1, null)));
+        assertEquals("again", readModel.get(3).block().getName());
+    }
+
+    @Test
+    public void disabledReadModelIsEmpty(){
+        ProductAggregateReadModel disabled = createReadModel(false);
+        disabled.applyProductEvent(event(Event.Type.CREATE, 1, new Product(1, "name", 1, null)));
+
+        assertNull(disabled.get(1).block());
+    }
+
+    private ProductAggregateReadModel createReadModel(boolean enabled) {
+        return new ProductAggregateReadModel(mapper, new ServiceUtil("7000"), new SimpleMeterRegistry(), enabled, 100, 3600);
+    }
+
+    /**
+     * The events are consumed with untyped data, as in the message processor.
+     */
+    private Event<Integer, Object> event(Event.Type type, int productId, Object data) {
+        return new Event<>(type, productId, data == null ? null : mapper.convertValue(data, Object.class));
+    }
+}
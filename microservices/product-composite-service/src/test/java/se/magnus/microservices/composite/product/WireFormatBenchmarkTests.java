@@ -0,0 +1,88 @@
+package se.magnus.microservices.composite.product;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import lombok.extern.slf4j.Slf4j;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfEnvironmentVariable;
+import org.springframework.core.ResolvableType;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import org.springframework.http.codec.json.Jackson2SmileDecoder;
+import org.springframework.http.codec.json.Jackson2SmileEncoder;
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
+import org.springframework.util.MimeType;
+import reactor.core.publisher.Flux;
+import se.magnus.api.core.review.Review;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Compares the payload size and the encode plus decode time per call of JSON and Smile for a list of reviews,
+ * the largest response of the core services. The times depend on the machine, so they are only measured and logged
+ * when the benchmark is asked for.
+ */
+@Slf4j
+public class WireFormatBenchmarkTests {
+
+    private static final int REVIEWS = 200;
+    private static final int WARMUP_CALLS = 2000;
+    private static final int MEASURED_CALLS = 5000;
+
+    private final ObjectMapper jsonMapper = Jackson2ObjectMapperBuilder.json().build();
+    private final ObjectMapper smileMapper = Jackson2ObjectMapperBuilder.smile().build();
+
+    private final List<Review> reviews = IntStream.rangeClosed(1, REVIEWS)
+            .mapToObj(id -> new Review(1, id, "author " + id, "subject " + id, "content of the review " + id, "review/10.0.0.1:8080"))
+            .collect(Collectors.toList());
+
+    @Test
+    public void smileIsSmallerThanJson() throws Exception {
+        int jsonSize = jsonMapper.writeValueAsBytes(reviews).length;
+        int smileSize = smileMapper.writeValueAsBytes(reviews).length;
+
+        log.info("Payload of {} reviews, JSON: {} bytes, Smile: {} bytes ({}%)", REVIEWS, jsonSize, smileSize, smileSize * 100 / jsonSize);
+        assertTrue(smileSize < jsonSize);
+    }
+
+    /**
+     * A manual benchmark, run with the WIRE_FORMAT_BENCHMARK=true environment variable.
+     */
+    @Test
+    @EnabledIfEnvironmentVariable(named = "WIRE_FORMAT_BENCHMARK", matches = "true")
+    public void encodeAndDecodeTimes() throws Exception {
+        log.info("Encode and decode per call, JSON: {} us, Smile: {} us", measureMicrosPerCall(jsonMapper), measureMicrosPerCall(smileMapper));
+    }
+
+    @Test
+    public void smileStreamIsReadElementByElement(){
+        MimeType streamSmile = MimeType.valueOf("application/stream+x-jackson-smile");
+
+        Flux<DataBuffer> body = new Jackson2SmileEncoder().encode(Flux.fromIterable(reviews), new DefaultDataBufferFactory(),
+                ResolvableType.forClass(Review.class), streamSmile, Collections.emptyMap());
+
+        List<Review> decoded = new Jackson2SmileDecoder().decode(body, ResolvableType.forClass(Review.class), streamSmile, Collections.emptyMap())
+                .cast(Review.class)
+                .collectList()
+                .block();
+
+        assertEquals(REVIEWS, decoded.size());
+        assertEquals(REVIEWS, decoded.get(REVIEWS - 1).getReviewId());
+        assertEquals("content of the review 1", decoded.get(0).getContent());
+    }
+
+    private long measureMicrosPerCall(ObjectMapper mapper) throws Exception {
+        TypeReference<List<Review>> type = new TypeReference<List<Review>>() {};
+        for(int i = 0; i < WARMUP_CALLS; i++) mapper.readValue(mapper.writeValueAsBytes(reviews), type);
+
+        long start = System.nanoTime();
+        for(int i = 0; i < MEASURED_CALLS; i++) mapper.readValue(mapper.writeValueAsBytes(reviews), type);
+        return (System.nanoTime() - start) / MEASURED_CALLS / 1000;
+    }
+}
@@ -1,13 +1,18 @@
 package se.magnus.microservices.core.product;
 
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.cloud.stream.function.StreamBridge;
 import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.ComponentScan;
+import se.magnus.util.messaging.OperationAcknowledger;
 
 @SpringBootApplication
-@ComponentScan("se.magnus")
+@ComponentScan({"se.magnus.microservices.core.product", "se.magnus.util"})
 @Slf4j
 public class ProductServiceApplication {
 
@@ -19,4 +24,11 @@ public class ProductServiceApplication {
 
     }
 
+    @Bean
+    public OperationAcknowledger operationAcknowledger(
+            ObjectProvider<StreamBridge> streamBridge,
+            @Value("${spring.application.name:product}") String serviceName,
+            @Value("${spring.cloud.stream.bindings.input.consumer.maxAttempts:3}") int maxAttempts) {
+        return new OperationAcknowledger(streamBridge, serviceName, maxAttempts);
+    }
 }
@@ -1,45 +1,206 @@
 package se.magnus.microservices.core.product.services;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
 import lombok.extern.slf4j.Slf4j;
-import org.springframework.cloud.stream.annotation.EnableBinding;
-import org.springframework.cloud.stream.annotation.StreamListener;
-import org.springframework.cloud.stream.messaging.Sink;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.messaging.Message;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.util.retry.Retry;
 import se.magnus.api.core.product.Product;
 import se.magnus.api.core.product.ProductService;
 import se.magnus.api.event.Event;
 import se.magnus.util.exceptions.EventProcessingException;
+import se.magnus.util.exceptions.InvalidInputException;
+import se.magnus.util.messaging.KeyOrderedProcessing;
+import se.magnus.util.messaging.OperationAcknowledger;
 
-@EnableBinding(Sink.class)
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/**
+ * Consumes the product events, bound to the input binding by spring.cloud.function.definition.
+ *
+ * processEvents keeps up to app.event-processing.concurrency events in process, the events of one product in the order they
+ * arrive. The binder neither retries nor dead letters the events of a reactive function, so failed events are retried here
+ * as configured for the input binding and then acknowledged as failed and dropped. The broker also considers the events
+ * delivered as they enter the function, so a crash loses the events in process.
+ *
+ * processEventsBlocking, the default, processes one event at a time, with the retries and dead letter queue of the binder.
+ */
+@Configuration
 @Slf4j
 public class MessageProcessor {
 
+    // converts the already parsed data of the events, which is a map, to products
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
     private final ProductService productService;
+    private final OperationAcknowledger operationAcknowledger;
+    private final ProductBulkWriter productBulkWriter;
+    private final ProductCache productCache;
+    private final int concurrency;
+    private final int batchMaxSize;
+    private final long batchLingerMs;
+    private final Retry retry;
+
+    public MessageProcessor(
+            ProductService productService,
+            OperationAcknowledger operationAcknowledger,
+            ProductBulkWriter productBulkWriter,
+            ProductCache productCache,
+            @Value("${app.event-processing.batch.maxSize:500}") int batchMaxSize,
+            @Value("${app.event-processing.batch.lingerMs:100}") long batchLingerMs,
+            @Value("${app.event-processing.concurrency:16}") int concurrency,
+            @Value("${spring.cloud.stream.bindings.input.consumer.maxAttempts:3}") int maxAttempts,
+            @Value("${spring.cloud.stream.bindings.input.consumer.backOffInitialInterval:1000}") long backOffInitialInterval,
+            @Value("${spring.cloud.stream.bindings.input.consumer.backOffMaxInterval:10000}") long backOffMaxInterval) {
 
-    public MessageProcessor(ProductService productService) {
         this.productService = productService;
+        this.operationAcknowledger = operationAcknowledger;
+        this.productBulkWriter = productBulkWriter;
+        this.productCache = productCache;
+        this.concurrency = concurrency;
+        this.batchMaxSize = batchMaxSize;
+        this.batchLingerMs = batchLingerMs;
+        this.retry = Retry.backoff(maxAttempts - 1, Duration.ofMillis(backOffInitialInterval))
+                .maxBackoff(Duration.ofMillis(backOffMaxInterval))
+                .filter(ex -> !(ex instanceof EventProcessingException || ex instanceof InvalidInputException))
+                .onRetryExhaustedThrow((spec, signal) -> signal.failure());
+    }
+
+    @Bean
+    public Function<Flux<Message<Event<Integer, Object>>>, Mono<Void>> processEvents() {
+        return messages -> KeyOrderedProcessing.process(messages, message -> message.getPayload().getKey(), concurrency, this::processWithRetries);
+    }
+
+    /**
+     * Gathers the events in batches of up to app.event-processing.batch.maxSize events, or the events received within
+     * app.event-processing.batch.lingerMs, and processes the batches one at a time. The events of a batch are processed
+     * in order, consecutive CREATE events with one bulk insert. Failed inserts, e.g. duplicate keys, are acknowledged
+     * as failed per event and not retried.
+     */
+    @Bean
+    public Function<Flux<Message<Event<Integer, Object>>>, Mono<Void>> processEventsInBatches() {
+        return messages -> messages
+                .bufferTimeout(batchMaxSize, Duration.ofMillis(batchLingerMs))
+                .concatMap(this::processBatch)
+                .then();
+    }
+
+    private Mono<Void> processWithRetries(Message<Event<Integer, Object>> message) {
+        return Mono.defer(() -> processEvent(message.getPayload()))
+                .retryWhen(retry)
+                .doOnSuccess(done -> operationAcknowledger.processed(message.getHeaders()))
+                .onErrorResume(ex -> {
+                    log.warn("Drops event of product {} after a failure: {}", message.getPayload().getKey(), ex.toString());
+                    operationAcknowledger.exhausted(message.getHeaders(), ex);
+                    return Mono.empty();
+                });
+    }
+
+    private Mono<Void> processBatch(List<Message<Event<Integer, Object>>> batch) {
+        List<List<Message<Event<Integer, Object>>>> runs = new ArrayList<>();
+        for (Message<Event<Integer, Object>> message : batch) {
+            List<Message<Event<Integer, Object>>> last = runs.isEmpty() ? null : runs.get(runs.size() - 1);
+            if (isCreate(message) && last != null && isCreate(last.get(0))) last.add(message);
+            else runs.add(new ArrayList<>(Collections.singletonList(message)));
+        }
+
+        return Flux.fromIterable(runs)
+                .concatMap(run -> isCreate(run.get(0)) && run.size() > 1 ? insertAll(run) : Flux.fromIterable(run).concatMap(this::processWithRetries))
+                .then();
     }
 
-    @StreamListener(target = Sink.INPUT)
-    public void process(Event<Integer, Product> event){
+    private boolean isCreate(Message<Event<Integer, Object>> message) {
+        return message.getPayload().getEventType() == Event.Type.CREATE;
+    }
+
+    /**
+     * Falls back to processing the events one by one if the bulk insert fails as a whole.
+     */
+    private Mono<Void> insertAll(List<Message<Event<Integer, Object>>> run) {
+        return Mono.defer(() -> bulkInsert(run))
+                .onErrorResume(ex -> {
+                    log.warn("Bulk insert of {} products failed, processes them one by one: {}", run.size(), ex.toString());
+                    return Flux.fromIterable(run).concatMap(this::processWithRetries).then();
+                });
+    }
+
+    private Mono<Void> bulkInsert(List<Message<Event<Integer, Object>>> run) {
+        log.info("Create {} products with one bulk insert", run.size());
+        List<Product> products = run.stream().map(message -> objectMapper.convertValue(message.getPayload().getData(), Product.class)).collect(Collectors.toList());
+
+        return productBulkWriter.insertAll(products)
+                .doOnNext(failures -> products.forEach(product -> productCache.evict(product.getProductId())))
+                .doOnNext(failures -> {
+                    for (int i = 0; i < run.size(); i++) {
+                        Message<Event<Integer, Object>> message = run.get(i);
+                        RuntimeException failure = failures.get(i);
+                        if (failure == null) {
+                            operationAcknowledger.processed(message.getHeaders());
+                        } else {
+                            log.warn("Drops event of product {} after a failure: {}", message.getPayload().getKey(), failure.toString());
+                            operationAcknowledger.exhausted(message.getHeaders(), failure);
+                        }
+                    }
+                })
+                .then();
+    }
+
+    @Bean
+    public Consumer<Message<Event<Integer, Object>>> processEventsBlocking() {
+        return message -> {
+            try {
+                processEvent(message.getPayload()).block();
+            } catch (RuntimeException e) {
+                operationAcknowledger.failed(message.getHeaders(), e);
+                throw e;
+            }
+            operationAcknowledger.processed(message.getHeaders());
+        };
+    }
+
+    /**
+     * Evicts the cached product on every product event. The binding uses no consumer group, so every instance receives
+     * every event, not only the instance that processes it.
+     */
+    @Bean
+    public Consumer<Event<Integer, Object>> evictCachedProducts() {
+        return event -> {
+            if(event.getKey() == null) return;
+
+            log.debug("Got a product {} event for productId: {}, evicts the cached product", event.getEventType(), event.getKey());
+            productCache.evict(event.getKey());
+        };
+    }
+
+    private Mono<Void> processEvent(Event<Integer, Object> event){
         log.info("Process message created at {}...", event.getEventCreatedAt());
 
         switch (event.getEventType()){
             case CREATE:
-                Product product = event.getData();
+                Product product = objectMapper.convertValue(event.getData(), Product.class);
                 log.info("Create product with ID: {}", product.getProductId());
-                productService.createProduct(product);
-                break;
+                return productService.createProduct(product)
+                        .doFinally(signal -> productCache.evict(product.getProductId()))
+                        .then();
             case DELETE:
                 int productId = event.getKey();
                 log.info("Delete recommendations with ProductID: {}", productId);
-                productService.deleteProduct(productId);
-                break;
+                return productService.deleteProduct(productId)
+                        .doFinally(signal -> productCache.evict(productId));
             default:
                 String errorMessage = "Incorrect event type: " + event.getEventType() + ", expected a CREATE or DELETE event";
                 log.warn(errorMessage);
-                throw new EventProcessingException(errorMessage);
+                return Mono.error(new EventProcessingException(errorMessage));
         }
-
-        log.info("Message processing done!");
     }
 }
@@ -0,0 +1,85 @@
+package se.magnus.microservices.core.product.services;
+
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.bulk.BulkWriteError;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.InsertOneModel;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.bson.Document;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.data.mongodb.core.ReactiveMongoTemplate;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Mono;
+import se.magnus.api.core.product.Product;
+import se.magnus.microservices.core.product.persistence.ProductEntity;
+import se.magnus.util.exceptions.EventProcessingException;
+import se.magnus.util.exceptions.InvalidInputException;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Inserts many products with one unordered bulk write, used to ingest the CREATE events of catalog imports in batches.
+ */
+@Component
+@RequiredArgsConstructor
+@Slf4j
+public class ProductBulkWriter {
+
+    private static final int DUPLICATE_KEY = 11000;
+
+    private final ReactiveMongoTemplate mongoTemplate;
+    private final ProductMapper productMapper;
+
+    /**
+     * Inserts the products and returns the failures, e.g. a DuplicateKeyException, by the index of the product in the list.
+     * The write is unordered, so a failed insert does not stop the others. Errors of the write as a whole, e.g. a lost
+     * connection, are returned as an error, some of the products may have been inserted in that case.
+     */
+    public Mono<Map<Integer, RuntimeException>> insertAll(List<Product> products) {
+        Map<Integer, RuntimeException> failures = new HashMap<>();
+        List<InsertOneModel<Document>> inserts = new ArrayList<>();
+        List<Integer> insertedIndexes = new ArrayList<>();
+
+        for (int i = 0; i < products.size(); i++) {
+            Product product = products.get(i);
+            if (product.getProductId() < 1) {
+                failures.put(i, new InvalidInputException("Invalid productId: " + product.getProductId()));
+                continue;
+            }
+            inserts.add(new InsertOneModel<>(toDocument(product)));
+            insertedIndexes.add(i);
+        }
+        if (inserts.isEmpty()) return Mono.just(failures);
+
+        return mongoTemplate.execute(ProductEntity.class, collection -> collection.bulkWrite(inserts, new BulkWriteOptions().ordered(false)))
+                .then(Mono.fromCallable(() -> failures))
+                .onErrorResume(MongoBulkWriteException.class, ex -> {
+                    ex.getWriteErrors().forEach(error -> {
+                        int index = insertedIndexes.get(error.getIndex());
+                        failures.put(index, toException(products.get(index), error));
+                    });
+                    return Mono.just(failures);
+                })
+                .doOnNext(result -> log.debug("insertAll: inserted {} of {} products", products.size() - result.size(), products.size()));
+    }
+
+    private Document toDocument(Product product) {
+        ProductEntity entity = productMapper.apiToEntity(product);
+        // the first version of an entity, as set by the repository on inserts
+        entity.setVersion(0);
+
+        Document document = new Document();
+        mongoTemplate.getConverter().write(entity, document);
+        return document;
+    }
+
+    private RuntimeException toException(Product product, BulkWriteError error) {
+        return error.getCode() == DUPLICATE_KEY
+                ? new DuplicateKeyException("Duplicate key, Product Id: " + product.getProductId())
+                : new EventProcessingException("Failed to insert product " + product.getProductId() + ": " + error.getMessage());
+    }
+}
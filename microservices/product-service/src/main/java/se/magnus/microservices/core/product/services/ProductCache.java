@@ -0,0 +1,118 @@
+package se.magnus.microservices.core.product.services;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Mono;
+import se.magnus.microservices.core.product.persistence.ProductEntity;
+
+import java.time.Duration;
+import java.util.Optional;
+import java.util.function.Supplier;
+
+/**
+ * Size bounded, in-process read-through cache of products keyed by productId, in front of the lookups of single products.
+ *
+ * Products that are not found are cached as well, for a shorter time, so repeated lookups of unknown productIds do not
+ * reach MongoDB. Every instance evicts the entry when it receives a product event for the productId, and the instance
+ * processing the event evicts it again after the write, see {@link MessageProcessor}. A read racing the write can
+ * re-cache the old state, so each eviction is repeated after a short delay and entries also expire after a fixed time
+ * as a last resort.
+ *
+ * The hit ratio is exposed as the cache.gets metrics of the product cache, negative hits also as product.cache.negative.hits.
+ */
+@Component
+@Slf4j
+public class ProductCache {
+
+    private final boolean enabled;
+    private final Duration evictionDelay;
+    private final Cache<Integer, Optional<ProductEntity>> cache;
+    private final Counter negativeHits;
+
+    public ProductCache(
+            MeterRegistry meterRegistry,
+            @Value("${app.product-cache.enabled:true}") boolean enabled,
+            @Value("${app.product-cache.maxSize:10000}") long maxSize,
+            @Value("${app.product-cache.expireAfterWriteSec:300}") long expireAfterWriteSec,
+            @Value("${app.product-cache.notFoundExpireAfterWriteSec:10}") long notFoundExpireAfterWriteSec,
+            @Value("${app.product-cache.evictionDelayMs:1000}") long evictionDelayMs) {
+
+        this.enabled = enabled;
+        this.evictionDelay = Duration.ofMillis(evictionDelayMs);
+        this.cache = Caffeine.newBuilder()
+                .maximumSize(maxSize)
+                .expireAfter(new ExpiryByPresence(Duration.ofSeconds(expireAfterWriteSec), Duration.ofSeconds(notFoundExpireAfterWriteSec)))
+                .recordStats()
+                .build();
+
+        CaffeineCacheMetrics.monitor(meterRegistry, cache, "product");
+        this.negativeHits = Counter.builder("product.cache.negative.hits")
+                .description("Lookups answered from the cache with a product that is not found")
+                .register(meterRegistry);
+        log.info("Created a product cache, enabled: {}, maxSize: {}, expireAfterWriteSec: {}, notFoundExpireAfterWriteSec: {}",
+                enabled, maxSize, expireAfterWriteSec, notFoundExpireAfterWriteSec);
+    }
+
+    /**
+     * Returns the cached product for the productId, or loads and caches it on a cache miss.
+     * The Mono is empty if the product is not found.
+     */
+    public Mono<ProductEntity> get(int productId, Supplier<Mono<ProductEntity>> loader) {
+        if(!enabled) return loader.get();
+
+        return Mono.defer(() -> {
+            Optional<ProductEntity> cached = cache.getIfPresent(productId);
+            if(cached != null) {
+                if(!cached.isPresent()) negativeHits.increment();
+                return Mono.justOrEmpty(cached);
+            }
+
+            return loader.get()
+                    .map(Optional::of)
+                    .defaultIfEmpty(Optional.empty())
+                    .doOnNext(loaded -> cache.put(productId, loaded))
+                    .flatMap(Mono::justOrEmpty);
+        });
+    }
+
+    public void evict(int productId) {
+        if(!enabled) return;
+
+        log.debug("Evicts product for productId: {} from the cache", productId);
+        cache.invalidate(productId);
+        Mono.delay(evictionDelay).subscribe(tick -> cache.invalidate(productId));
+    }
+
+    private static class ExpiryByPresence implements Expiry<Integer, Optional<ProductEntity>> {
+
+        private final long foundNanos;
+        private final long notFoundNanos;
+
+        ExpiryByPresence(Duration found, Duration notFound) {
+            this.foundNanos = found.toNanos();
+            this.notFoundNanos = notFound.toNanos();
+        }
+
+        @Override
+        public long expireAfterCreate(Integer productId, Optional<ProductEntity> product, long currentTime) {
+            return product.isPresent() ? foundNanos : notFoundNanos;
+        }
+
+        @Override
+        public long expireAfterUpdate(Integer productId, Optional<ProductEntity> product, long currentTime, long currentDuration) {
+            return expireAfterCreate(productId, product, currentTime);
+        }
+
+        @Override
+        public long expireAfterRead(Integer productId, Optional<ProductEntity> product, long currentTime, long currentDuration) {
+            return currentDuration;
+        }
+    }
+}
@@ -0,0 +1,28 @@
+package se.magnus.microservices.core.product.services;
+
+import io.grpc.BindableService;
+import io.grpc.ServerServiceDefinition;
+import org.springframework.stereotype.Component;
+import se.magnus.api.core.product.ProductService;
+import se.magnus.api.grpc.CoreServiceMethods;
+import se.magnus.util.grpc.ReactiveServerCalls;
+
+/**
+ * Exposes the reads of the ProductService over gRPC for service to service calls, served by the GrpcServer.
+ */
+@Component
+public class ProductGrpcService implements BindableService {
+
+    private final ProductService productService;
+
+    public ProductGrpcService(ProductService productService) {
+        this.productService = productService;
+    }
+
+    @Override
+    public ServerServiceDefinition bindService() {
+        return ServerServiceDefinition.builder(CoreServiceMethods.PRODUCT_SERVICE)
+                .addMethod(CoreServiceMethods.GET_PRODUCT, ReactiveServerCalls.unary(request -> productService.getProduct(request.getProductId(), request.getDelay(), request.getFaultPercent())))
+                .build();
+    }
+}
@@ -2,18 +2,26 @@ package se.magnus.microservices.core.product.services;
 
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.dao.DuplicateKeyException;
 import org.springframework.web.bind.annotation.RestController;
+import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 import se.magnus.api.core.product.Product;
+import se.magnus.api.core.product.ProductResult;
 import se.magnus.api.core.product.ProductService;
 import se.magnus.microservices.core.product.persistence.ProductEntity;
 import se.magnus.microservices.core.product.persistence.ProductRepository;
 import se.magnus.util.exceptions.InvalidInputException;
 import se.magnus.util.exceptions.NotFoundException;
+import se.magnus.util.fault.FaultInjector;
+import se.magnus.util.http.ConditionalRequests;
 import se.magnus.util.http.ServiceUtil;
 
-import java.util.Random;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
 
 @Slf4j
 @RestController
@@ -22,90 +30,92 @@ public class ProductServiceImpl implements ProductService {
     private final ServiceUtil serviceUtil;
     private final ProductRepository productRepository;
     private final ProductMapper productMapper;
+    private final FaultInjector faultInjector;
+    private final ProductCache productCache;
+    private final int maxBatchIds;
 
     @Autowired
-    public ProductServiceImpl(ServiceUtil serviceUtil, ProductRepository productRepository, ProductMapper productMapper) {
+    public ProductServiceImpl(ServiceUtil serviceUtil, ProductRepository productRepository, ProductMapper productMapper, FaultInjector faultInjector, ProductCache productCache,
+                              @Value("${app.batch-read.maxIds:100}") int maxBatchIds) {
         this.serviceUtil = serviceUtil;
         this.productRepository = productRepository;
         this.productMapper = productMapper;
+        this.faultInjector = faultInjector;
+        this.productCache = productCache;
+        this.maxBatchIds = maxBatchIds;
     }
 
     @Override
     public Mono<Product> getProduct(int productId, int delay, int faultPercent) {
-        if(delay > 0) simulateDelay(delay);
-        if(faultPercent > 0) throwErrorIfBadLuck(faultPercent);
-        if(productId < 1) throw new InvalidInputException("Invalid productId: " + productId);
-
-        return productRepository.findByProductId(productId)
-            .switchIfEmpty(
-                    Mono.error(
-                            new NotFoundException("No product found for productId: " + productId)
-                    )
-            )
-            .log()
-            .map(productMapper::entityToApi)
-            .map(e -> {
-                e.setServiceAddress(serviceUtil.getServiceAddress());
-                return e;
-            });
-    }
-
-    private void simulateDelay(int delay) {
-        log.debug("Sleeping for {} seconds...", delay);
-        try {
-            Thread.sleep(delay * 1000);
-        }catch (InterruptedException e){
-
-        }
-        log.debug("Moving on...");
+        return faultInjector.inject("getProduct", delay, faultPercent, Mono.defer(() -> {
+            if(productId < 1) throw new InvalidInputException("Invalid productId: " + productId);
+
+            return productCache.get(productId, () -> productRepository.findByProductId(productId))
+                .switchIfEmpty(
+                        Mono.error(
+                                new NotFoundException("No product found for productId: " + productId)
+                        )
+                )
+                .log()
+                .flatMap(e -> ConditionalRequests.bodyIfModified(ConditionalRequests.weakETag(e.getId(), e.getVersion()), e))
+                .map(productMapper::entityToApi)
+                .map(e -> {
+                    e.setServiceAddress(serviceUtil.getServiceAddress());
+                    return e;
+                });
+        }));
     }
 
-    private void throwErrorIfBadLuck(int faultPercent) {
-        int randomThreshold = getRandomNumber(1, 100);
-        if(faultPercent < randomThreshold){
-            log.debug("We got lucky, no error occurred, {} < {}", faultPercent, randomThreshold);
-        }else {
-            log.debug("Bad luck, an error occurred, {} >= {}", faultPercent, randomThreshold);
-            throw new RuntimeException("Something went wrong...");
-        }
-    }
+    @Override
+    public Flux<ProductResult> getProducts(List<Integer> ids) {
+        if(ids == null || ids.isEmpty()) throw new InvalidInputException("No productIds given");
+        ids.forEach(productId -> {
+            if(productId == null || productId < 1) throw new InvalidInputException("Invalid productId: " + productId);
+        });
 
-    private final Random randomNumberGenerator = new Random();
+        List<Integer> distinctIds = ids.stream().distinct().collect(Collectors.toList());
+        if(distinctIds.size() > maxBatchIds) throw new InvalidInputException("Too many productIds: " + distinctIds.size() + ", at most " + maxBatchIds + " are allowed");
+        log.debug("getProducts: will get {} products in one query", distinctIds.size());
 
-    private int getRandomNumber(int min, int max) {
+        return Flux.defer(() -> {
+            Set<Integer> foundIds = new HashSet<>();
 
-        if(max < min){
-            throw new RuntimeException("Max must be greater than min");
-        }
-        return randomNumberGenerator.nextInt((max-min) + 1) + min;
+            // one $in query on the unique productId index, the products are streamed as they are read
+            return productRepository.findByProductIdIn(distinctIds)
+                .log()
+                .map(productMapper::entityToApi)
+                .map(e -> {
+                    e.setServiceAddress(serviceUtil.getServiceAddress());
+                    foundIds.add(e.getProductId());
+                    return ProductResult.ok(e);
+                })
+                .concatWith(Flux.defer(() -> Flux.fromIterable(distinctIds)
+                    .filter(productId -> !foundIds.contains(productId))
+                    .map(ProductResult::notFound)));
+        });
     }
 
-
     @Override
-    public Product createProduct(Product body) {
+    public Mono<Product> createProduct(Product body) {
         if(body.getProductId() < 1) throw new InvalidInputException("Invalid productId: " + body.getProductId());
 
         ProductEntity entity = productMapper.apiToEntity(body);
-        Mono<Product> newEntity = productRepository.save(entity)
+        return productRepository.save(entity)
                 .log()
                 .onErrorMap(
                         DuplicateKeyException.class,
                         ex -> new InvalidInputException("Duplicate key, Product Id: " + body.getProductId())
                 )
                 .map(productMapper::entityToApi);
-
-        return newEntity.block();
     }
 
     @Override
-    public void deleteProduct(int productId) {
+    public Mono<Void> deleteProduct(int productId) {
         if(productId < 1) throw new InvalidInputException("Invalid productId: " + productId);
 
         log.debug("deleteProduct: tries to delete an entity with productId: {}", productId);
-        productRepository.findByProductId(productId)
+        return productRepository.findByProductId(productId)
             .log()
-            .map(productRepository::delete)
-            .flatMap(e -> e)
-            .block();
+            .flatMap(productRepository::delete);
     }
 }
@@ -0,0 +1,65 @@
+package se.magnus.microservices.core.product;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.mapstruct.factory.Mappers;
+import org.mockito.Mockito;
+import reactor.core.publisher.Flux;
+import se.magnus.api.core.product.ProductResult;
+import se.magnus.microservices.core.product.persistence.ProductEntity;
+import se.magnus.microservices.core.product.persistence.ProductRepository;
+import se.magnus.microservices.core.product.services.ProductCache;
+import se.magnus.microservices.core.product.services.ProductMapper;
+import se.magnus.microservices.core.product.services.ProductServiceImpl;
+import se.magnus.util.exceptions.InvalidInputException;
+import se.magnus.util.fault.FaultInjector;
+import se.magnus.util.http.ServiceUtil;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class BatchReadTests {
+
+    private final ProductRepository repository = Mockito.mock(ProductRepository.class);
+    private final ProductServiceImpl productService = new ProductServiceImpl(new ServiceUtil("0"), repository, Mappers.getMapper(ProductMapper.class),
+            new FaultInjector(false, Collections.emptyMap()), new ProductCache(new SimpleMeterRegistry(), false, 100, 300, 10, 0), 3);
+
+    @Test
+    @DisplayName("없는 상품은 찾은 상품 다음에 404 로 보고")
+    public void missingProductsAreReportedAfterTheFoundOnes(){
+        when(repository.findByProductIdIn(Arrays.asList(1, 2, 3))).thenReturn(Flux.just(new ProductEntity(2, "n", 1)));
+
+        List<ProductResult> results = productService.getProducts(Arrays.asList(1, 2, 3, 1)).collectList().block();
+
+        assertEquals(3, results.size());
+        assertEquals(2, results.get(0).getProductId());
+        assertEquals(200, results.get(0).getStatus());
+        assertEquals("n", results.get(0).getProduct().getName());
+
+        assertEquals(1, results.get(1).getProductId());
+        assertEquals(404, results.get(1).getStatus());
+        assertNull(results.get(1).getProduct());
+        assertEquals("No product found for productId: 1", results.get(1).getMessage());
+        assertEquals(3, results.get(2).getProductId());
+        assertEquals(404, results.get(2).getStatus());
+    }
+
+    @Test
+    @DisplayName("최대 개수를 넘는 상품 조회는 거부")
+    public void tooManyIdsAreRejected(){
+        InvalidInputException ex = assertThrows(InvalidInputException.class, () -> productService.getProducts(Arrays.asList(1, 2, 3, 4)));
+
+        assertEquals("Too many productIds: 4, at most 3 are allowed", ex.getMessage());
+        verify(repository, never()).findByProductIdIn(any());
+    }
+}
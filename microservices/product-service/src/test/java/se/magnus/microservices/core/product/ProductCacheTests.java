@@ -0,0 +1,86 @@
+package se.magnus.microservices.core.product;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.mapstruct.factory.Mappers;
+import org.mockito.Mockito;
+import reactor.core.publisher.Mono;
+import se.magnus.api.core.product.Product;
+import se.magnus.api.event.Event;
+import se.magnus.microservices.core.product.persistence.ProductEntity;
+import se.magnus.microservices.core.product.persistence.ProductRepository;
+import se.magnus.microservices.core.product.services.MessageProcessor;
+import se.magnus.microservices.core.product.services.ProductBulkWriter;
+import se.magnus.microservices.core.product.services.ProductCache;
+import se.magnus.microservices.core.product.services.ProductMapper;
+import se.magnus.microservices.core.product.services.ProductServiceImpl;
+import se.magnus.util.exceptions.NotFoundException;
+import se.magnus.util.fault.FaultInjector;
+import se.magnus.util.http.ServiceUtil;
+import se.magnus.util.messaging.OperationAcknowledger;
+
+import java.util.Collections;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class ProductCacheTests {
+
+    private static final int PRODUCT_ID = 1;
+    private static final int PRODUCT_ID_NOT_FOUND = 2;
+
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private final ProductRepository repository = Mockito.mock(ProductRepository.class);
+    // found products are kept for 300 seconds, products that are not found for 1 second
+    private final ProductCache productCache = new ProductCache(meterRegistry, true, 100, 300, 1, 0);
+    private final ProductServiceImpl productService = new ProductServiceImpl(new ServiceUtil("0"), repository, Mappers.getMapper(ProductMapper.class),
+            new FaultInjector(false, Collections.emptyMap()), productCache, 100);
+    private final MessageProcessor messageProcessor = new MessageProcessor(productService, Mockito.mock(OperationAcknowledger.class),
+            Mockito.mock(ProductBulkWriter.class), productCache, 500, 100, 16, 3, 1000, 10000);
+
+    @Test
+    @DisplayName("없는 상품도 캐시하고 negative hit 으로 기록")
+    public void notFoundIsCached(){
+        when(repository.findByProductId(PRODUCT_ID_NOT_FOUND)).thenReturn(Mono.empty());
+
+        assertThrows(NotFoundException.class, () -> productService.getProduct(PRODUCT_ID_NOT_FOUND, 0, 0).block());
+        assertThrows(NotFoundException.class, () -> productService.getProduct(PRODUCT_ID_NOT_FOUND, 0, 0).block());
+
+        verify(repository, times(1)).findByProductId(PRODUCT_ID_NOT_FOUND);
+        assertEquals(1.0, meterRegistry.get("product.cache.negative.hits").counter().count());
+    }
+
+    @Test
+    @DisplayName("상품 생성 이벤트는 캐시된 없는 상품을 비움")
+    public void createEvictsCachedNotFound(){
+        when(repository.findByProductId(PRODUCT_ID)).thenReturn(Mono.empty());
+        assertThrows(NotFoundException.class, () -> productService.getProduct(PRODUCT_ID, 0, 0).block());
+
+        when(repository.findByProductId(PRODUCT_ID)).thenReturn(Mono.just(new ProductEntity(PRODUCT_ID, "n", 1)));
+        messageProcessor.evictCachedProducts().accept(new Event<>(Event.Type.CREATE, PRODUCT_ID, new Product(PRODUCT_ID, "n", 1, null)));
+
+        assertEquals("n", productService.getProduct(PRODUCT_ID, 0, 0).block().getName());
+        verify(repository, times(2)).findByProductId(PRODUCT_ID);
+    }
+
+    @Test
+    @DisplayName("없는 상품은 더 짧은 시간 동안만 캐시")
+    public void notFoundExpiresBeforeFoundProducts() throws InterruptedException {
+        when(repository.findByProductId(PRODUCT_ID)).thenReturn(Mono.just(new ProductEntity(PRODUCT_ID, "n", 1)));
+        when(repository.findByProductId(PRODUCT_ID_NOT_FOUND)).thenReturn(Mono.empty());
+        productService.getProduct(PRODUCT_ID, 0, 0).block();
+        assertThrows(NotFoundException.class, () -> productService.getProduct(PRODUCT_ID_NOT_FOUND, 0, 0).block());
+
+        Thread.sleep(1100);
+
+        productService.getProduct(PRODUCT_ID, 0, 0).block();
+        assertThrows(NotFoundException.class, () -> productService.getProduct(PRODUCT_ID_NOT_FOUND, 0, 0).block());
+
+        verify(repository, times(1)).findByProductId(PRODUCT_ID);
+        verify(repository, times(2)).findByProductId(PRODUCT_ID_NOT_FOUND);
+    }
+}
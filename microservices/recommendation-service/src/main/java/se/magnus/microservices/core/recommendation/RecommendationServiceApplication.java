@@ -1,15 +1,27 @@
 package se.magnus.microservices.core.recommendation;
 
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.cloud.stream.function.StreamBridge;
+import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.ComponentScan;
+import se.magnus.util.messaging.OperationAcknowledger;
 
 @SpringBootApplication
-@ComponentScan("se.magnus")
+@ComponentScan({"se.magnus.microservices.core.recommendation", "se.magnus.util"})
 public class RecommendationServiceApplication {
 
     public static void main(String[] args) {
         SpringApplication.run(RecommendationServiceApplication.class, args);
     }
 
+    @Bean
+    public OperationAcknowledger operationAcknowledger(
+            ObjectProvider<StreamBridge> streamBridge,
+            @Value("${spring.application.name:recommendation}") String serviceName,
+            @Value("${spring.cloud.stream.bindings.input.consumer.maxAttempts:3}") int maxAttempts) {
+        return new OperationAcknowledger(streamBridge, serviceName, maxAttempts);
+    }
 }
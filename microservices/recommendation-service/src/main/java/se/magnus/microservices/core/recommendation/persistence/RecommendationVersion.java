@@ -0,0 +1,10 @@
+package se.magnus.microservices.core.recommendation.persistence;
+
+/**
+ * The id and version of a stored recommendation, read without the rest of the document to compute entity tags.
+ */
+public interface RecommendationVersion {
+    String getId();
+
+    Integer getVersion();
+}
@@ -1,44 +1,241 @@
 package se.magnus.microservices.core.recommendation.services;
 
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import lombok.extern.slf4j.Slf4j;
-import org.springframework.cloud.stream.annotation.EnableBinding;
-import org.springframework.cloud.stream.annotation.StreamListener;
-import org.springframework.cloud.stream.messaging.Sink;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.messaging.Message;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.util.retry.Retry;
 import se.magnus.api.core.recommendation.Recommendation;
 import se.magnus.api.core.recommendation.RecommendationService;
 import se.magnus.api.event.Event;
 import se.magnus.util.exceptions.EventProcessingException;
+import se.magnus.util.exceptions.InvalidInputException;
+import se.magnus.util.messaging.KeyOrderedProcessing;
+import se.magnus.util.messaging.OperationAcknowledger;
 
-@EnableBinding(Sink.class)
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Consumes the recommendation events, bound to the input binding by spring.cloud.function.definition.
+ *
+ * processEvents keeps up to app.event-processing.concurrency events in process, the events of one product in the order they
+ * arrive. The binder neither retries nor dead letters the events of a reactive function, so failed events are retried here
+ * as configured for the input binding and then acknowledged as failed and dropped. The broker also considers the events
+ * delivered as they enter the function, so a crash loses the events in process.
+ *
+ * processEventsBlocking, the default, processes one event at a time, with the retries and dead letter queue of the binder.
+ *
+ * Batch events, marked by the {@link Event#BATCH_HEADER} header, carry a list of recommendations as data.
+ */
+@Configuration
 @Slf4j
 public class MessageProcessor {
+
+    private static final TypeReference<List<Recommendation>> RECOMMENDATION_LIST = new TypeReference<List<Recommendation>>() {};
+
+    // converts the already parsed data of the events, which is a map or a list of maps, to recommendations
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
     private final RecommendationService recommendationService;
+    private final OperationAcknowledger operationAcknowledger;
+    private final RecommendationBulkWriter recommendationBulkWriter;
+    private final int concurrency;
+    private final int batchMaxSize;
+    private final long batchLingerMs;
+    private final Retry retry;
+
+    public MessageProcessor(
+            RecommendationService recommendationService,
+            OperationAcknowledger operationAcknowledger,
+            RecommendationBulkWriter recommendationBulkWriter,
+            @Value("${app.event-processing.batch.maxSize:500}") int batchMaxSize,
+            @Value("${app.event-processing.batch.lingerMs:100}") long batchLingerMs,
+            @Value("${app.event-processing.concurrency:16}") int concurrency,
+            @Value("${spring.cloud.stream.bindings.input.consumer.maxAttempts:3}") int maxAttempts,
+            @Value("${spring.cloud.stream.bindings.input.consumer.backOffInitialInterval:1000}") long backOffInitialInterval,
+            @Value("${spring.cloud.stream.bindings.input.consumer.backOffMaxInterval:10000}") long backOffMaxInterval) {
 
-    public MessageProcessor(RecommendationService recommendationService) {
         this.recommendationService = recommendationService;
+        this.operationAcknowledger = operationAcknowledger;
+        this.recommendationBulkWriter = recommendationBulkWriter;
+        this.concurrency = concurrency;
+        this.batchMaxSize = batchMaxSize;
+        this.batchLingerMs = batchLingerMs;
+        this.retry = Retry.backoff(maxAttempts - 1, Duration.ofMillis(backOffInitialInterval))
+                .maxBackoff(Duration.ofMillis(backOffMaxInterval))
+                .filter(ex -> !(ex instanceof EventProcessingException || ex instanceof InvalidInputException))
+                .onRetryExhaustedThrow((spec, signal) -> signal.failure());
+    }
+
+    @Bean
+    public Function<Flux<Message<Event<Integer, Object>>>, Mono<Void>> processEvents() {
+        return messages -> KeyOrderedProcessing.process(messages, message -> message.getPayload().getKey(), concurrency, this::processWithRetries);
+    }
+
+    /**
+     * Gathers the events in batches of up to app.event-processing.batch.maxSize events, or the events received within
+     * app.event-processing.batch.lingerMs, and processes the batches one at a time. The events of a batch are processed
+     * in order, consecutive CREATE events, batch events included, with one bulk insert. Failed inserts, e.g. duplicate
+     * keys, are acknowledged as failed per event and not retried.
+     */
+    @Bean
+    public Function<Flux<Message<Event<Integer, Object>>>, Mono<Void>> processEventsInBatches() {
+        return messages -> messages
+                .bufferTimeout(batchMaxSize, Duration.ofMillis(batchLingerMs))
+                .concatMap(this::processBatch)
+                .then();
+    }
+
+    private Mono<Void> processWithRetries(Message<Event<Integer, Object>> message) {
+        return Mono.defer(() -> process(message))
+                .retryWhen(retry)
+                .doOnSuccess(done -> operationAcknowledger.processed(message.getHeaders()))
+                .onErrorResume(ex -> {
+                    log.warn("Drops event of product {} after a failure: {}", message.getPayload().getKey(), ex.toString());
+                    operationAcknowledger.exhausted(message.getHeaders(), ex);
+                    return Mono.empty();
+                });
+    }
+
+    private Mono<Void> processBatch(List<Message<Event<Integer, Object>>> batch) {
+        List<List<Message<Event<Integer, Object>>>> runs = new ArrayList<>();
+        for (Message<Event<Integer, Object>> message : batch) {
+            List<Message<Event<Integer, Object>>> last = runs.isEmpty() ? null : runs.get(runs.size() - 1);
+            if (isCreate(message) && last != null && isCreate(last.get(0))) last.add(message);
+            else runs.add(new ArrayList<>(Collections.singletonList(message)));
+        }
+
+        return Flux.fromIterable(runs)
+                .concatMap(run -> isCreate(run.get(0)) && run.size() > 1 ? insertAll(run) : Flux.fromIterable(run).concatMap(this::processWithRetries))
+                .then();
+    }
+
+    private boolean isCreate(Message<Event<Integer, Object>> message) {
+        return message.getPayload().getEventType() == Event.Type.CREATE;
+    }
+
+    /**
+     * Inserts the recommendations of all events in the run, batch events included, with one bulk insert. An event is
+     * acknowledged as failed with the failure of its first recommendation that is not stored. A batch event stores what is
+     * missing, as createRecommendations does, so its already stored recommendations are no failure.
+     * Falls back to processing the events one by one if the bulk insert fails as a whole.
+     */
+    private Mono<Void> insertAll(List<Message<Event<Integer, Object>>> run) {
+        return Mono.defer(() -> bulkInsert(run))
+                .onErrorResume(ex -> {
+                    log.warn("Bulk insert of {} events failed, processes them one by one: {}", run.size(), ex.toString());
+                    return Flux.fromIterable(run).concatMap(this::processWithRetries).then();
+                });
+    }
+
+    private Mono<Void> bulkInsert(List<Message<Event<Integer, Object>>> run) {
+        List<Recommendation> recommendations = new ArrayList<>();
+        // the index in the run of the event of each recommendation
+        List<Integer> eventIndexes = new ArrayList<>();
+        for (int i = 0; i < run.size(); i++) {
+            for (Recommendation recommendation : toRecommendations(run.get(i))) {
+                recommendations.add(recommendation);
+                eventIndexes.add(i);
+            }
+        }
+        log.info("Create {} recommendations of {} events with one bulk insert", recommendations.size(), run.size());
+
+        return recommendationBulkWriter.insertAll(recommendations)
+                .doOnNext(failures -> {
+                    Map<Integer, RuntimeException> eventFailures = new HashMap<>();
+                    new TreeMap<>(failures).forEach((index, failure) -> {
+                        int eventIndex = eventIndexes.get(index);
+                        if (failure instanceof DuplicateKeyException && isBatch(run.get(eventIndex))) return;
+                        eventFailures.putIfAbsent(eventIndex, failure);
+                    });
+
+                    for (int i = 0; i < run.size(); i++) {
+                        Message<Event<Integer, Object>> message = run.get(i);
+                        RuntimeException failure = eventFailures.get(i);
+                        if (failure == null) {
+                            operationAcknowledger.processed(message.getHeaders());
+                        } else {
+                            log.warn("Drops event of product {} after a failure: {}", message.getPayload().getKey(), failure.toString());
+                            operationAcknowledger.exhausted(message.getHeaders(), failure);
+                        }
+                    }
+                })
+                .then();
+    }
+
+    private List<Recommendation> toRecommendations(Message<Event<Integer, Object>> message) {
+        Object data = message.getPayload().getData();
+        return isBatch(message)
+                ? objectMapper.convertValue(data, RECOMMENDATION_LIST)
+                : Collections.singletonList(objectMapper.convertValue(data, Recommendation.class));
+    }
+
+    @Bean
+    public Consumer<Message<Event<Integer, Object>>> processEventsBlocking() {
+        return message -> {
+            try {
+                process(message).block();
+            } catch (RuntimeException e) {
+                operationAcknowledger.failed(message.getHeaders(), e);
+                throw e;
+            }
+            operationAcknowledger.processed(message.getHeaders());
+        };
+    }
+
+    private Mono<Void> process(Message<Event<Integer, Object>> message){
+        Event<Integer, Object> event = message.getPayload();
+        return isBatch(message) ? processBatchEvent(event) : processEvent(event);
+    }
+
+    private boolean isBatch(Message<Event<Integer, Object>> message) {
+        return "true".equals(String.valueOf(message.getHeaders().get(Event.BATCH_HEADER)));
     }
 
-    @StreamListener(target = Sink.INPUT)
-    public void process(Event<Integer, Recommendation> event){
+    private Mono<Void> processEvent(Event<Integer, Object> event){
         log.info("Process message created at {}...", event.getEventCreatedAt());
 
         switch (event.getEventType()){
             case CREATE:
-                Recommendation recommendation = event.getData();
+                Recommendation recommendation = objectMapper.convertValue(event.getData(), Recommendation.class);
                 log.info("Create recommendation with ID: {}/{}", recommendation.getProductId(), recommendation.getRecommendationId());
-                recommendationService.createRecommendation(recommendation);
-                break;
+                return recommendationService.createRecommendation(recommendation).then();
             case DELETE:
                 int productId = event.getKey();
                 log.info("Delete recommendations with ProductId: {}", productId);
-                recommendationService.deleteRecommendations(productId);
-                break;
+                return recommendationService.deleteRecommendations(productId);
             default:
                 String errorMessage = "Incorrect event type: " + event.getEventType() + ", expected a CREATE or DELETE event";
                 log.warn(errorMessage);
-                throw new EventProcessingException(errorMessage);
+                return Mono.error(new EventProcessingException(errorMessage));
+        }
+    }
+
+    private Mono<Void> processBatchEvent(Event<Integer, Object> event){
+        log.info("Process batch message created at {}...", event.getEventCreatedAt());
+
+        if (event.getEventType() != Event.Type.CREATE) {
+            String errorMessage = "Incorrect event type: " + event.getEventType() + ", expected a CREATE event for a batch";
+            log.warn(errorMessage);
+            return Mono.error(new EventProcessingException(errorMessage));
         }
 
-        log.info("Message processing done!");
+        List<Recommendation> recommendations = objectMapper.convertValue(event.getData(), RECOMMENDATION_LIST);
+        log.info("Create {} recommendations with ProductId: {}", recommendations.size(), event.getKey());
+        return recommendationService.createRecommendations(recommendations).then();
     }
 }
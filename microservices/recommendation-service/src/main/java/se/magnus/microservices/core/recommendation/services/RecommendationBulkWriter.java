@@ -0,0 +1,119 @@
+package se.magnus.microservices.core.recommendation.services;
+
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.bulk.BulkWriteError;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.InsertOneModel;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.bson.Document;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.data.mongodb.core.ReactiveMongoTemplate;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import se.magnus.api.core.recommendation.Recommendation;
+import se.magnus.microservices.core.recommendation.persistence.RecommendationEntity;
+import se.magnus.util.exceptions.EventProcessingException;
+import se.magnus.util.exceptions.InvalidInputException;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Inserts many recommendations with one unordered bulk write, used for the batch events of composite writes and to
+ * ingest the CREATE events of catalog imports in batches.
+ */
+@Component
+@RequiredArgsConstructor
+@Slf4j
+public class RecommendationBulkWriter {
+
+    private static final int DUPLICATE_KEY = 11000;
+
+    private final ReactiveMongoTemplate mongoTemplate;
+    private final RecommendationMapper recommendationMapper;
+
+    /**
+     * Inserts the recommendations and returns the failures, e.g. a DuplicateKeyException, by the index of the recommendation in the list.
+     * The write is unordered, so a failed insert does not stop the others. Errors of the write as a whole, e.g. a lost
+     * connection, are returned as an error, some of the recommendations may have been inserted in that case.
+     */
+    public Mono<Map<Integer, RuntimeException>> insertAll(List<Recommendation> recommendations) {
+        Map<Integer, RuntimeException> failures = new HashMap<>();
+        return bulkInsert(recommendations, failures)
+                .doOnNext(writeErrors -> writeErrors.forEach((index, error) -> failures.put(index, toException(recommendations.get(index), error))))
+                .map(writeErrors -> failures)
+                .doOnNext(result -> log.debug("insertAll: inserted {} of {} recommendations", recommendations.size() - result.size(), recommendations.size()));
+    }
+
+    /**
+     * Inserts the recommendations that are not stored yet and returns the inserted ones. Recommendations with a duplicate
+     * key are skipped, so storing the same recommendations again, e.g. from a redelivered event, has no effect. Any other
+     * failure is returned as an error, after the other recommendations are inserted.
+     */
+    public Flux<Recommendation> insertNew(List<Recommendation> recommendations) {
+        Map<Integer, RuntimeException> failures = new HashMap<>();
+        return bulkInsert(recommendations, failures)
+                .flatMapMany(writeErrors -> {
+                    writeErrors.forEach((index, error) -> {
+                        if (error.getCode() != DUPLICATE_KEY) failures.put(index, toException(recommendations.get(index), error));
+                    });
+                    if (!failures.isEmpty()) return Flux.error(failures.values().iterator().next());
+
+                    if (!writeErrors.isEmpty()) log.debug("insertNew: skipped {} already stored recommendations", writeErrors.size());
+                    List<Recommendation> inserted = new ArrayList<>();
+                    for (int i = 0; i < recommendations.size(); i++) {
+                        if (!writeErrors.containsKey(i)) inserted.add(recommendations.get(i));
+                    }
+                    return Flux.fromIterable(inserted);
+                });
+    }
+
+    /**
+     * Returns the write errors by the index of the recommendation in the list, invalid recommendations are not written
+     * and added to the failures.
+     */
+    private Mono<Map<Integer, BulkWriteError>> bulkInsert(List<Recommendation> recommendations, Map<Integer, RuntimeException> failures) {
+        List<InsertOneModel<Document>> inserts = new ArrayList<>();
+        List<Integer> insertedIndexes = new ArrayList<>();
+
+        for (int i = 0; i < recommendations.size(); i++) {
+            Recommendation recommendation = recommendations.get(i);
+            if (recommendation.getProductId() < 1) {
+                failures.put(i, new InvalidInputException("Invalid productId: " + recommendation.getProductId()));
+                continue;
+            }
+            inserts.add(new InsertOneModel<>(toDocument(recommendation)));
+            insertedIndexes.add(i);
+        }
+        if (inserts.isEmpty()) return Mono.just(Collections.emptyMap());
+
+        return mongoTemplate.execute(RecommendationEntity.class, collection -> collection.bulkWrite(inserts, new BulkWriteOptions().ordered(false)))
+                .then(Mono.fromCallable(() -> Collections.<Integer, BulkWriteError>emptyMap()))
+                .onErrorResume(MongoBulkWriteException.class, ex -> {
+                    Map<Integer, BulkWriteError> writeErrors = new HashMap<>();
+                    ex.getWriteErrors().forEach(error -> writeErrors.put(insertedIndexes.get(error.getIndex()), error));
+                    return Mono.just(writeErrors);
+                });
+    }
+
+    private Document toDocument(Recommendation recommendation) {
+        RecommendationEntity entity = recommendationMapper.apiToEntity(recommendation);
+        // the first version of an entity, as set by the repository on inserts
+        entity.setVersion(0);
+
+        Document document = new Document();
+        mongoTemplate.getConverter().write(entity, document);
+        return document;
+    }
+
+    private RuntimeException toException(Recommendation recommendation, BulkWriteError error) {
+        return error.getCode() == DUPLICATE_KEY
+                ? new DuplicateKeyException("Duplicate key, Product Id: " + recommendation.getProductId() + ", Recommendation Id:" + recommendation.getRecommendationId())
+                : new EventProcessingException("Failed to insert recommendation " + recommendation.getProductId() + "/" + recommendation.getRecommendationId() + ": " + error.getMessage());
+    }
+}
@@ -0,0 +1,28 @@
+package se.magnus.microservices.core.recommendation.services;
+
+import io.grpc.BindableService;
+import io.grpc.ServerServiceDefinition;
+import org.springframework.stereotype.Component;
+import se.magnus.api.core.recommendation.RecommendationService;
+import se.magnus.api.grpc.CoreServiceMethods;
+import se.magnus.util.grpc.ReactiveServerCalls;
+
+/**
+ * Exposes the reads of the RecommendationService over gRPC for service to service calls, served by the GrpcServer.
+ */
+@Component
+public class RecommendationGrpcService implements BindableService {
+
+    private final RecommendationService recommendationService;
+
+    public RecommendationGrpcService(RecommendationService recommendationService) {
+        this.recommendationService = recommendationService;
+    }
+
+    @Override
+    public ServerServiceDefinition bindService() {
+        return ServerServiceDefinition.builder(CoreServiceMethods.RECOMMENDATION_SERVICE)
+                .addMethod(CoreServiceMethods.GET_RECOMMENDATIONS, ReactiveServerCalls.serverStreaming(request -> recommendationService.getRecommendations(request.getProductId())))
+                .build();
+    }
+}
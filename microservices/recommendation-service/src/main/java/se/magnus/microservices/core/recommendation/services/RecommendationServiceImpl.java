@@ -11,6 +11,8 @@ import se.magnus.api.core.recommendation.RecommendationService;
 import se.magnus.microservices.core.recommendation.persistence.RecommendationEntity;
 import se.magnus.microservices.core.recommendation.persistence.RecommendationRepository;
 import se.magnus.util.exceptions.InvalidInputException;
+import se.magnus.util.fault.FaultInjector;
+import se.magnus.util.http.ConditionalRequests;
 import se.magnus.util.http.ServiceUtil;
 
 import java.util.ArrayList;
@@ -24,11 +26,41 @@ public class RecommendationServiceImpl implements RecommendationService {
     private final ServiceUtil serviceUtil;
     private final RecommendationRepository recommendationRepository;
     private final RecommendationMapper recommendationMapper;
+    private final FaultInjector faultInjector;
+    private final RecommendationBulkWriter recommendationBulkWriter;
+
     @Override
     public Flux<Recommendation> getRecommendations(int productId) {
         if (productId < 1) throw new InvalidInputException("Invalid productId: " + productId);
 
-        return recommendationRepository.findByProductId(productId)
+        return ConditionalRequests.itemsIfModified(getETag(productId),
+                faultInjector.inject("getRecommendations", recommendationRepository.findByProductId(productId)))
+            .log()
+            .map(recommendationMapper::entityToApi)
+            .map(e -> {
+                e.setServiceAddress(serviceUtil.getServiceAddress());
+                return e;
+            });
+    }
+
+    /**
+     * The entity tag is computed from the ids and versions only, so the recommendations themselves are streamed.
+     */
+    private Mono<String> getETag(int productId) {
+        return recommendationRepository.findVersionsByProductIdOrderById(productId)
+            .map(v -> v.getId() + ":" + v.getVersion())
+            .collectList()
+            .map(parts -> ConditionalRequests.weakETag(parts.toArray()));
+    }
+
+    @Override
+    public Flux<Recommendation> getRecommendations(List<Integer> productIds) {
+        if (productIds == null || productIds.isEmpty()) throw new InvalidInputException("No productIds given");
+        productIds.forEach(productId -> {
+            if (productId == null || productId < 1) throw new InvalidInputException("Invalid productId: " + productId);
+        });
+
+        return recommendationRepository.findByProductIdIn(productIds)
             .log()
             .map(recommendationMapper::entityToApi)
             .map(e -> {
@@ -38,27 +70,40 @@ public class RecommendationServiceImpl implements RecommendationService {
     }
 
     @Override
-    public Recommendation createRecommendation(Recommendation body) {
+    public Mono<Recommendation> createRecommendation(Recommendation body) {
         if (body.getProductId() < 1) throw new InvalidInputException("Invalid productId: " + body.getProductId());
 
         RecommendationEntity entity = recommendationMapper.apiToEntity(body);
 
-        Mono<Recommendation> newEntity = recommendationRepository.save(entity)
+        return recommendationRepository.save(entity)
                 .log()
                 .onErrorMap(
                         DuplicateKeyException.class,
                         ex -> new InvalidInputException("Duplicate key, Product Id: " + body.getProductId() + ", Recommendation Id:" + body.getRecommendationId())
                 ).map(recommendationMapper::entityToApi);
+    }
+
+    /**
+     * Stores the recommendations with one unordered bulk insert. Recommendations that are already stored are skipped,
+     * so a redelivered batch event stores the rest of the batch instead of failing on the first duplicate key.
+     */
+    @Override
+    public Flux<Recommendation> createRecommendations(List<Recommendation> body) {
+        if (body == null || body.isEmpty()) throw new InvalidInputException("No recommendations given");
+        body.forEach(r -> {
+            if (r.getProductId() < 1) throw new InvalidInputException("Invalid productId: " + r.getProductId());
+        });
 
-        return newEntity.block();
+        return recommendationBulkWriter.insertNew(body)
+                .doOnComplete(() -> log.debug("createRecommendations: stored a batch of {} recommendations", body.size()));
     }
 
     @Override
-    public void deleteRecommendations(int productId) {
+    public Mono<Void> deleteRecommendations(int productId) {
         if (productId < 1) throw new InvalidInputException("Invalid productId: " + productId);
 
         log.debug("deleteRecommendations: tries to delete recommendations for the product with productId: {}", productId);
 
-        recommendationRepository.deleteAll(recommendationRepository.findByProductId(productId)).block();
+        return recommendationRepository.deleteAll(recommendationRepository.findByProductId(productId));
     }
 }
@@ -0,0 +1,149 @@
+package se.magnus.microservices.core.recommendation;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.support.MessageBuilder;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import se.magnus.api.core.recommendation.Recommendation;
+import se.magnus.api.core.recommendation.RecommendationService;
+import se.magnus.api.event.Event;
+import se.magnus.microservices.core.recommendation.services.MessageProcessor;
+import se.magnus.microservices.core.recommendation.services.RecommendationBulkWriter;
+import se.magnus.util.exceptions.EventProcessingException;
+import se.magnus.util.messaging.OperationAcknowledger;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class BatchProcessingTests {
+
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    private final RecommendationService recommendationService = Mockito.mock(RecommendationService.class);
+    private final OperationAcknowledger operationAcknowledger = Mockito.mock(OperationAcknowledger.class);
+    private final RecommendationBulkWriter bulkWriter = Mockito.mock(RecommendationBulkWriter.class);
+
+    private final MessageProcessor messageProcessor = new MessageProcessor(recommendationService, operationAcknowledger, bulkWriter,
+            500, 100, 16, 1, 1, 1);
+
+    @Test
+    @DisplayName("연속된 CREATE 이벤트는 batch 이벤트를 포함해 한 번의 bulk insert 로 처리")
+    public void consecutiveCreateEventsAreInsertedTogether(){
+        when(bulkWriter.insertAll(anyList())).thenReturn(Mono.just(Collections.emptyMap()));
+        when(recommendationService.deleteRecommendations(1)).thenReturn(Mono.empty());
+        when(recommendationService.createRecommendation(any())).thenReturn(Mono.just(recommendation(1, 4)));
+
+        Message<Event<Integer, Object>> single = create(recommendation(1, 1));
+        Message<Event<Integer, Object>> batch = createBatch(recommendation(1, 2), recommendation(1, 3));
+        Message<Event<Integer, Object>> delete = message(new Event<>(Event.Type.DELETE, 1, null), false);
+        Message<Event<Integer, Object>> last = create(recommendation(1, 4));
+
+        process(single, batch, delete, last);
+
+        ArgumentCaptor<List<Recommendation>> inserted = listCaptor();
+        verify(bulkWriter).insertAll(inserted.capture());
+        assertEquals(Arrays.asList(1, 2, 3), recommendationIds(inserted.getValue()));
+
+        // a run of one event is processed on its own
+        verify(recommendationService).deleteRecommendations(1);
+        verify(recommendationService).createRecommendation(any());
+        verify(operationAcknowledger).processed(single.getHeaders());
+        verify(operationAcknowledger).processed(batch.getHeaders());
+        verify(operationAcknowledger).processed(delete.getHeaders());
+        verify(operationAcknowledger).processed(last.getHeaders());
+    }
+
+    @Test
+    @DisplayName("bulk insert 의 실패는 해당 recommendation 의 이벤트에 반영")
+    public void failuresAreAcknowledgedPerEvent(){
+        Map<Integer, RuntimeException> failures = new HashMap<>();
+        failures.put(0, new DuplicateKeyException("Duplicate key, Product Id: 1, Recommendation Id:1"));
+        // an already stored recommendation of a batch event is no failure, another failure is
+        failures.put(1, new DuplicateKeyException("Duplicate key, Product Id: 1, Recommendation Id:2"));
+        failures.put(4, new EventProcessingException("Failed to insert recommendation 1/5"));
+        when(bulkWriter.insertAll(anyList())).thenReturn(Mono.just(failures));
+
+        Message<Event<Integer, Object>> single = create(recommendation(1, 1));
+        Message<Event<Integer, Object>> redelivered = createBatch(recommendation(1, 2), recommendation(1, 3));
+        Message<Event<Integer, Object>> failed = createBatch(recommendation(1, 4), recommendation(1, 5));
+
+        process(single, redelivered, failed);
+
+        verify(operationAcknowledger).exhausted(eq(single.getHeaders()), any(DuplicateKeyException.class));
+        verify(operationAcknowledger).processed(redelivered.getHeaders());
+        verify(operationAcknowledger).exhausted(eq(failed.getHeaders()), any(EventProcessingException.class));
+        verify(operationAcknowledger, never()).processed(single.getHeaders());
+        verify(operationAcknowledger, never()).processed(failed.getHeaders());
+    }
+
+    @Test
+    @DisplayName("bulk insert 전체가 실패하면 이벤트를 하나씩 처리")
+    public void failedBulkInsertFallsBackToSingleEvents(){
+        when(bulkWriter.insertAll(anyList())).thenReturn(Mono.error(new RuntimeException("connection lost")));
+        when(recommendationService.createRecommendation(any())).thenReturn(Mono.just(recommendation(1, 1)));
+        when(recommendationService.createRecommendations(anyList())).thenReturn(Flux.just(recommendation(1, 2)));
+
+        Message<Event<Integer, Object>> single = create(recommendation(1, 1));
+        Message<Event<Integer, Object>> batch = createBatch(recommendation(1, 2));
+
+        process(single, batch);
+
+        verify(recommendationService).createRecommendation(any());
+        verify(recommendationService).createRecommendations(anyList());
+        verify(operationAcknowledger).processed(single.getHeaders());
+        verify(operationAcknowledger).processed(batch.getHeaders());
+    }
+
+    @SafeVarargs
+    private final void process(Message<Event<Integer, Object>>... messages) {
+        messageProcessor.processEventsInBatches().apply(Flux.just(messages)).block();
+    }
+
+    private Recommendation recommendation(int productId, int recommendationId) {
+        return new Recommendation(productId, recommendationId, "author", 1, "content", null);
+    }
+
+    private Message<Event<Integer, Object>> create(Recommendation recommendation) {
+        return message(new Event<>(Event.Type.CREATE, recommendation.getProductId(), mapper.convertValue(recommendation, Object.class)), false);
+    }
+
+    private Message<Event<Integer, Object>> createBatch(Recommendation... recommendations) {
+        return message(new Event<>(Event.Type.CREATE, recommendations[0].getProductId(), mapper.convertValue(Arrays.asList(recommendations), Object.class)), true);
+    }
+
+    /**
+     * The events are consumed with untyped data, as converted by the binder.
+     */
+    private Message<Event<Integer, Object>> message(Event<Integer, Object> event, boolean batch) {
+        MessageBuilder<Event<Integer, Object>> builder = MessageBuilder.withPayload(event);
+        if(batch) builder.setHeader(Event.BATCH_HEADER, "true");
+        return builder.build();
+    }
+
+    private List<Integer> recommendationIds(List<Recommendation> recommendations) {
+        return recommendations.stream().map(Recommendation::getRecommendationId).collect(Collectors.toList());
+    }
+
+    @SuppressWarnings("unchecked")
+    private ArgumentCaptor<List<Recommendation>> listCaptor() {
+        return ArgumentCaptor.forClass(List.class);
+    }
+}
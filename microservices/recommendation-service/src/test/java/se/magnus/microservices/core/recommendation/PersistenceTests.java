@@ -78,6 +78,14 @@ public class PersistenceTests {
                 .verifyComplete();
     }
 
+    @Test
+    @DisplayName("상품 리뷰 id, version 조회 테스트")
+    public void getVersionsByProductId(){
+        StepVerifier.create(recommendationRepository.findVersionsByProductIdOrderById(savedEntity.getProductId()))
+                .expectNextMatches(version -> version.getId().equals(savedEntity.getId()) && version.getVersion().equals(savedEntity.getVersion()))
+                .verifyComplete();
+    }
+
     @Test
     @DisplayName("상품 리뷰 삭제 테스트")
     public void delete(){
@@ -1,18 +1,21 @@
 package se.magnus.microservices.core.review;
 
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.ObjectProvider;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.cloud.stream.function.StreamBridge;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.ComponentScan;
 import reactor.core.scheduler.Scheduler;
 import reactor.core.scheduler.Schedulers;
+import se.magnus.util.messaging.OperationAcknowledger;
 
 import java.util.concurrent.Executors;
 
 @SpringBootApplication
-@ComponentScan("se.magnus")
+@ComponentScan({"se.magnus.microservices.core.review", "se.magnus.util"})
 @Slf4j
 public class ReviewServiceApplication {
 
@@ -20,4 +23,11 @@ public class ReviewServiceApplication {
         SpringApplication.run(ReviewServiceApplication.class, args);
     }
 
+    @Bean
+    public OperationAcknowledger operationAcknowledger(
+            ObjectProvider<StreamBridge> streamBridge,
+            @Value("${spring.application.name:review}") String serviceName,
+            @Value("${spring.cloud.stream.bindings.input.consumer.maxAttempts:3}") int maxAttempts) {
+        return new OperationAcknowledger(streamBridge, serviceName, maxAttempts);
+    }
 }
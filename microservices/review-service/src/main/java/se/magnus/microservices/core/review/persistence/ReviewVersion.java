@@ -0,0 +1,10 @@
+package se.magnus.microservices.core.review.persistence;
+
+/**
+ * The id and version of a stored review, read without the rest of the row to compute entity tags.
+ */
+public interface ReviewVersion {
+    int getId();
+
+    int getVersion();
+}
@@ -1,48 +1,135 @@
 package se.magnus.microservices.core.review.services;
 
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import lombok.extern.slf4j.Slf4j;
-import org.springframework.cloud.stream.annotation.EnableBinding;
-import org.springframework.cloud.stream.annotation.StreamListener;
-import org.springframework.cloud.stream.messaging.Sink;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.messaging.Message;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.util.retry.Retry;
 import se.magnus.api.core.review.Review;
 import se.magnus.api.core.review.ReviewService;
 import se.magnus.api.event.Event;
 import se.magnus.util.exceptions.EventProcessingException;
+import se.magnus.util.exceptions.InvalidInputException;
+import se.magnus.util.messaging.KeyOrderedProcessing;
+import se.magnus.util.messaging.OperationAcknowledger;
 
-@EnableBinding(Sink.class)
+import java.time.Duration;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Consumes the review events, bound to the input binding by spring.cloud.function.definition.
+ *
+ * processEvents keeps up to app.event-processing.concurrency events in process, the events of one product in the order they
+ * arrive. The binder neither retries nor dead letters the events of a reactive function, so failed events are retried here
+ * as configured for the input binding and then acknowledged as failed and dropped. The broker also considers the events
+ * delivered as they enter the function, so a crash loses the events in process.
+ *
+ * processEventsBlocking, the default, processes one event at a time, with the retries and dead letter queue of the binder.
+ *
+ * Batch events, marked by the {@link Event#BATCH_HEADER} header, carry a list of reviews as data.
+ * The JPA writes run on the jdbcScheduler, so a concurrency above its pool size only queues events there.
+ */
+@Configuration
 @Slf4j
 public class MessageProcessor {
 
+    private static final TypeReference<List<Review>> REVIEW_LIST = new TypeReference<List<Review>>() {};
+
+    // converts the already parsed data of the events, which is a map or a list of maps, to reviews
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
     private final ReviewService reviewService;
+    private final OperationAcknowledger operationAcknowledger;
+    private final int concurrency;
+    private final Retry retry;
+
+    public MessageProcessor(
+            ReviewService reviewService,
+            OperationAcknowledger operationAcknowledger,
+            @Value("${app.event-processing.concurrency:${spring.datasource.maximum-pool-size:10}}") int concurrency,
+            @Value("${spring.cloud.stream.bindings.input.consumer.maxAttempts:3}") int maxAttempts,
+            @Value("${spring.cloud.stream.bindings.input.consumer.backOffInitialInterval:1000}") long backOffInitialInterval,
+            @Value("${spring.cloud.stream.bindings.input.consumer.backOffMaxInterval:10000}") long backOffMaxInterval) {
 
-    public MessageProcessor(ReviewService reviewService) {
         this.reviewService = reviewService;
+        this.operationAcknowledger = operationAcknowledger;
+        this.concurrency = concurrency;
+        this.retry = Retry.backoff(maxAttempts - 1, Duration.ofMillis(backOffInitialInterval))
+                .maxBackoff(Duration.ofMillis(backOffMaxInterval))
+                .filter(ex -> !(ex instanceof EventProcessingException || ex instanceof InvalidInputException))
+                .onRetryExhaustedThrow((spec, signal) -> signal.failure());
     }
 
-    @StreamListener(target = Sink.INPUT)
-    public void process(Event<Integer, Review> event){
-        log.info("Process message created at {}...", event.getEventCreatedAt());
+    @Bean
+    public Function<Flux<Message<Event<Integer, Object>>>, Mono<Void>> processEvents() {
+        return messages -> KeyOrderedProcessing.process(messages, message -> message.getPayload().getKey(), concurrency, message ->
+                Mono.defer(() -> process(message))
+                        .retryWhen(retry)
+                        .doOnSuccess(done -> operationAcknowledger.processed(message.getHeaders()))
+                        .onErrorResume(ex -> {
+                            log.warn("Drops event of product {} after a failure: {}", message.getPayload().getKey(), ex.toString());
+                            operationAcknowledger.exhausted(message.getHeaders(), ex);
+                            return Mono.empty();
+                        }));
+    }
+
+    @Bean
+    public Consumer<Message<Event<Integer, Object>>> processEventsBlocking() {
+        return message -> {
+            try {
+                process(message).block();
+            } catch (RuntimeException e) {
+                operationAcknowledger.failed(message.getHeaders(), e);
+                throw e;
+            }
+            operationAcknowledger.processed(message.getHeaders());
+        };
+    }
 
-        switch (event.getEventType()) {
+    private Mono<Void> process(Message<Event<Integer, Object>> message){
+        Event<Integer, Object> event = message.getPayload();
+        return "true".equals(String.valueOf(message.getHeaders().get(Event.BATCH_HEADER)))
+                ? processBatchEvent(event)
+                : processEvent(event);
+    }
 
+    private Mono<Void> processEvent(Event<Integer, Object> event){
+        log.info("Process message created at {}...", event.getEventCreatedAt());
+
+        switch (event.getEventType()){
             case CREATE:
-                Review review = event.getData();
+                Review review = objectMapper.convertValue(event.getData(), Review.class);
                 log.info("Create review with ID: {}/{}", review.getProductId(), review.getReviewId());
-                reviewService.createReview(review);
-                break;
-
+                return reviewService.createReview(review).then();
             case DELETE:
                 int productId = event.getKey();
-                log.info("Delete reviews with ProductID: {}", productId);
-                reviewService.deleteReviews(productId);
-                break;
-
+                log.info("Delete reviews with ProductId: {}", productId);
+                return reviewService.deleteReviews(productId);
             default:
                 String errorMessage = "Incorrect event type: " + event.getEventType() + ", expected a CREATE or DELETE event";
                 log.warn(errorMessage);
-                throw new EventProcessingException(errorMessage);
+                return Mono.error(new EventProcessingException(errorMessage));
+        }
+    }
+
+    private Mono<Void> processBatchEvent(Event<Integer, Object> event){
+        log.info("Process batch message created at {}...", event.getEventCreatedAt());
+
+        if (event.getEventType() != Event.Type.CREATE) {
+            String errorMessage = "Incorrect event type: " + event.getEventType() + ", expected a CREATE event for a batch";
+            log.warn(errorMessage);
+            return Mono.error(new EventProcessingException(errorMessage));
         }
 
-        log.info("Message processing done!");
+        List<Review> reviews = objectMapper.convertValue(event.getData(), REVIEW_LIST);
+        log.info("Create {} reviews with ProductId: {}", reviews.size(), event.getKey());
+        return reviewService.createReviews(reviews).then();
     }
 }
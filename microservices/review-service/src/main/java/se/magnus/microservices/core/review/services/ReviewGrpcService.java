@@ -0,0 +1,28 @@
+package se.magnus.microservices.core.review.services;
+
+import io.grpc.BindableService;
+import io.grpc.ServerServiceDefinition;
+import org.springframework.stereotype.Component;
+import se.magnus.api.core.review.ReviewService;
+import se.magnus.api.grpc.CoreServiceMethods;
+import se.magnus.util.grpc.ReactiveServerCalls;
+
+/**
+ * Exposes the reads of the ReviewService over gRPC for service to service calls, served by the GrpcServer.
+ */
+@Component
+public class ReviewGrpcService implements BindableService {
+
+    private final ReviewService reviewService;
+
+    public ReviewGrpcService(ReviewService reviewService) {
+        this.reviewService = reviewService;
+    }
+
+    @Override
+    public ServerServiceDefinition bindService() {
+        return ServerServiceDefinition.builder(CoreServiceMethods.REVIEW_SERVICE)
+                .addMethod(CoreServiceMethods.GET_REVIEWS, ReactiveServerCalls.serverStreaming(request -> reviewService.getReviews(request.getProductId())))
+                .build();
+    }
+}
@@ -6,17 +6,23 @@ import org.reactivestreams.Publisher;
 import org.springframework.dao.DataIntegrityViolationException;
 import org.springframework.web.bind.annotation.RestController;
 import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
 import reactor.core.scheduler.Scheduler;
 import se.magnus.api.core.review.Review;
 import se.magnus.api.core.review.ReviewService;
 import se.magnus.microservices.core.review.persistence.ReviewEntity;
 import se.magnus.microservices.core.review.persistence.ReviewRepository;
 import se.magnus.util.exceptions.InvalidInputException;
+import se.magnus.util.fault.FaultInjector;
+import se.magnus.util.http.ConditionalRequests;
 import se.magnus.util.http.ServiceUtil;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.Callable;
 import java.util.function.Supplier;
 import java.util.stream.Collectors;
 
@@ -29,6 +35,7 @@ public class ReviewServiceImpl implements ReviewService {
     private final ReviewRepository reviewRepository;
     private final ReviewMapper reviewMapper;
     private final Scheduler scheduler;
+    private final FaultInjector faultInjector;
 
     @Override
     public Flux<Review> getReviews(int productId) {
@@ -36,11 +43,39 @@ public class ReviewServiceImpl implements ReviewService {
 
         log.info("Will get reviews for product with id={}", productId);
 
-        return asyncFlux(() -> Flux.fromIterable(getByProductId(productId)));
+        return ConditionalRequests.itemsIfModified(getETag(productId),
+                faultInjector.inject("getReviews", asyncFlux(() -> Flux.fromIterable(reviewRepository.findByProductId(productId)))))
+            .map(reviewMapper::entityToApi)
+            .map(e -> {
+                e.setServiceAddress(serviceUtil.getServiceAddress());
+                return e;
+            });
+    }
+
+    /**
+     * The entity tag is computed from the ids and versions only, so the reviews themselves are streamed.
+     */
+    private Mono<String> getETag(int productId) {
+        return asyncMono(() -> ConditionalRequests.weakETag(reviewRepository.findVersionsByProductIdOrderById(productId)
+            .stream()
+            .map(v -> v.getId() + ":" + v.getVersion())
+            .toArray()));
+    }
+
+    @Override
+    public Flux<Review> getReviews(List<Integer> productIds) {
+        if (productIds == null || productIds.isEmpty()) throw new InvalidInputException("No productIds given");
+        productIds.forEach(productId -> {
+            if (productId == null || productId < 1) throw new InvalidInputException("Invalid productId: " + productId);
+        });
+
+        log.info("Will get reviews for {} products", productIds.size());
+
+        return asyncFlux(() -> Flux.fromIterable(getByProductIds(productIds)));
     }
 
-    private List<Review> getByProductId(int productId) {
-        List<Review> reviews = reviewRepository.findByProductId(productId)
+    private List<Review> getByProductIds(List<Integer> productIds) {
+        List<Review> reviews = reviewRepository.findByProductIdIn(productIds)
             .stream()
             .map(reviewMapper::entityToApi)
             .collect(Collectors.toList());
@@ -52,10 +87,13 @@ public class ReviewServiceImpl implements ReviewService {
     }
 
     @Override
-    public Review createReview(Review body) {
-
+    public Mono<Review> createReview(Review body) {
         if (body.getProductId() < 1) throw new InvalidInputException("Invalid productId: " + body.getProductId());
 
+        return asyncMono(() -> internalCreateReview(body));
+    }
+
+    private Review internalCreateReview(Review body) {
         try {
             ReviewEntity entity = reviewMapper.apiToEntity(body);
             ReviewEntity savedEntity = reviewRepository.save(entity);
@@ -69,15 +107,83 @@ public class ReviewServiceImpl implements ReviewService {
 
     }
 
+    /**
+     * Stores the reviews in one transaction, with the inserts sent in JDBC batches of hibernate.jdbc.batch_size.
+     * Reviews that are already stored are skipped, so a redelivered batch event stores the rest of the batch instead of
+     * rolling back on the first duplicate key. Only the newly stored reviews are returned.
+     */
+    @Override
+    public Flux<Review> createReviews(List<Review> body) {
+        if (body == null || body.isEmpty()) throw new InvalidInputException("No reviews given");
+        body.forEach(r -> {
+            if (r.getProductId() < 1) throw new InvalidInputException("Invalid productId: " + r.getProductId());
+        });
+
+        return asyncFlux(() -> Flux.fromIterable(internalCreateReviews(body)));
+    }
+
+    private List<Review> internalCreateReviews(List<Review> body) {
+        List<Review> newReviews = withoutStoredReviews(body);
+        if (newReviews.isEmpty()) {
+            log.debug("createReviews: all {} reviews are already stored", body.size());
+            return Collections.emptyList();
+        }
+
+        try {
+            List<ReviewEntity> entities = newReviews.stream().map(reviewMapper::apiToEntity).collect(Collectors.toList());
+            List<Review> created = new ArrayList<>();
+            reviewRepository.saveAll(entities).forEach(e -> created.add(reviewMapper.entityToApi(e)));
+
+            log.debug("createReviews: created {} review entities, skipped {} stored ones", created.size(), body.size() - newReviews.size());
+            return created;
+
+        }catch (DataIntegrityViolationException e){
+            // stored concurrently, e.g. by a redelivery processed at the same time, so the reviews are inserted one by one
+            log.debug("createReviews: batch of {} reviews hit a duplicate key, inserts them one by one", newReviews.size());
+            return newReviews.stream()
+                .map(this::insertIfAbsent)
+                .filter(Optional::isPresent)
+                .map(Optional::get)
+                .collect(Collectors.toList());
+        }
+    }
+
+    private List<Review> withoutStoredReviews(List<Review> body) {
+        Set<Integer> productIds = body.stream().map(Review::getProductId).collect(Collectors.toSet());
+        Set<String> stored = reviewRepository.findByProductIdIn(productIds).stream()
+            .map(e -> e.getProductId() + "/" + e.getReviewId())
+            .collect(Collectors.toSet());
+
+        return body.stream()
+            .filter(r -> !stored.contains(r.getProductId() + "/" + r.getReviewId()))
+            .collect(Collectors.toList());
+    }
+
+    private Optional<Review> insertIfAbsent(Review body) {
+        try {
+            return Optional.of(reviewMapper.entityToApi(reviewRepository.save(reviewMapper.apiToEntity(body))));
+        }catch (DataIntegrityViolationException e){
+            log.debug("createReviews: skips stored review {}/{}", body.getProductId(), body.getReviewId());
+            return Optional.empty();
+        }
+    }
+
     @Override
-    public void deleteReviews(int productId) {
+    public Mono<Void> deleteReviews(int productId) {
         if (productId < 1) throw new InvalidInputException("Invalid productId: " + productId);
 
-        log.debug("deleteReviews: tries to delete reviews for the product with productId: {}", productId);
-        reviewRepository.deleteAll(reviewRepository.findByProductId(productId));
+        return asyncMono(() -> {
+            log.debug("deleteReviews: tries to delete reviews for the product with productId: {}", productId);
+            reviewRepository.deleteAll(reviewRepository.findByProductId(productId));
+            return null;
+        }).then();
     }
 
     private <T> Flux<T> asyncFlux(Supplier<Publisher<T>> publisherSupplier){
         return Flux.defer(publisherSupplier).subscribeOn(scheduler);
     }
+
+    private <T> Mono<T> asyncMono(Callable<T> callable){
+        return Mono.fromCallable(callable).subscribeOn(scheduler);
+    }
 }
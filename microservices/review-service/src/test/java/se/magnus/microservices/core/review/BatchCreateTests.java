@@ -0,0 +1,71 @@
+package se.magnus.microservices.core.review;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mapstruct.factory.Mappers;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.orm.jpa.DataJpaTest;
+import org.springframework.test.context.junit.jupiter.SpringExtension;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+import reactor.core.scheduler.Schedulers;
+import se.magnus.api.core.review.Review;
+import se.magnus.microservices.core.review.persistence.ReviewEntity;
+import se.magnus.microservices.core.review.persistence.ReviewRepository;
+import se.magnus.microservices.core.review.services.ReviewMapper;
+import se.magnus.microservices.core.review.services.ReviewServiceImpl;
+import se.magnus.util.fault.FaultInjector;
+import se.magnus.util.http.ServiceUtil;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+@DataJpaTest(properties = {"spring.cloud.config.enabled=false"})
+@Transactional(propagation = Propagation.NOT_SUPPORTED)
+@ExtendWith(SpringExtension.class)
+public class BatchCreateTests {
+
+    @Autowired
+    private ReviewRepository reviewRepository;
+
+    private ReviewServiceImpl reviewService;
+
+    @BeforeEach
+    public void setupDB(){
+        reviewRepository.deleteAll();
+        reviewRepository.save(new ReviewEntity(1, 1, "a", "s", "c"));
+
+        reviewService = new ReviewServiceImpl(new ServiceUtil("0"), reviewRepository, Mappers.getMapper(ReviewMapper.class),
+                Schedulers.immediate(), new FaultInjector(false, Collections.emptyMap()));
+    }
+
+    @Test
+    @DisplayName("이미 저장된 리뷰는 건너뛰고 나머지 batch 를 저장")
+    public void storedReviewsAreSkipped(){
+        List<Review> created = reviewService.createReviews(Arrays.asList(review(1, 1), review(1, 2), review(1, 3))).collectList().block();
+
+        assertEquals(2, created.size());
+        assertEquals(3, reviewRepository.findByProductId(1).size());
+    }
+
+    @Test
+    @DisplayName("재전달된 batch 이벤트는 실패하지 않음")
+    public void redeliveredBatchIsIgnored(){
+        List<Review> batch = Arrays.asList(review(1, 2), review(1, 3));
+        reviewService.createReviews(batch).collectList().block();
+
+        List<Review> redelivered = reviewService.createReviews(batch).collectList().block();
+
+        assertEquals(0, redelivered.size());
+        assertEquals(3, reviewRepository.findByProductId(1).size());
+    }
+
+    private Review review(int productId, int reviewId) {
+        return new Review(productId, reviewId, "a", "s", "c", null);
+    }
+}
@@ -14,6 +14,7 @@ import org.springframework.transaction.annotation.Propagation;
 import org.springframework.transaction.annotation.Transactional;
 import se.magnus.microservices.core.review.persistence.ReviewEntity;
 import se.magnus.microservices.core.review.persistence.ReviewRepository;
+import se.magnus.microservices.core.review.persistence.ReviewVersion;
 
 import java.util.List;
 
@@ -78,6 +79,16 @@ public class PersistenceTests {
         assertEqualsReview(savedEntity, entityList.get(0));
     }
 
+    @Test
+    @DisplayName("상품 리뷰 id, version 조회 단위 테스트")
+    public void getVersionsByProductId(){
+        List<ReviewVersion> versions = reviewRepository.findVersionsByProductIdOrderById(savedEntity.getProductId());
+
+        assertEquals(1, versions.size());
+        assertEquals(savedEntity.getId(), versions.get(0).getId());
+        assertEquals(savedEntity.getVersion(), versions.get(0).getVersion());
+    }
+
     @Test
     @DisplayName("상품 리뷰 중복키 단위 테스트")
     public void duplicateError(){
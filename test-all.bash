@@ -127,13 +127,13 @@ function testCircuitBreaker(){
     done
 
 
-#    # Verify that the circuit breaker now is open by running the slow call again, verify it gets 200 back, i.e. fail fast works, and a response from the fallback method.
+#    # Verify that the circuit breaker now is open by running the slow call again, verify it gets 200 back, i.e. fail fast works, and the last known product from the fallback store.
     assertCurl 200 "curl -k https://$HOST:$PORT/product-composite/$PROD_ID_REVS_RECS?delay=3 $AUTH -s"
-    assertEqual "Fallback product2" "$(echo "$RESPONSE" | jq -r .name)"
+    assertEqual "product name C" "$(echo "$RESPONSE" | jq -r .name)"
 #
 #    # Also, verify that the circuit breaker is open by running a normal call, verify it also gets 200 back and a response from the fallback method.
     assertCurl 200 "curl -k https://$HOST:$PORT/product-composite/$PROD_ID_REVS_RECS $AUTH -s"
-    assertEqual "Fallback product2" "$(echo "$RESPONSE" | jq -r .name)"
+    assertEqual "product name C" "$(echo "$RESPONSE" | jq -r .name)"
 #
 #    # Verify that a 404 (Not Found) error is returned for a non existing productId ($PROD_ID_NOT_FOUND) from the fallback method.
     assertCurl 404 "curl -k https://$HOST:$PORT/product-composite/$PROD_ID_NOT_FOUND $AUTH -s"
@@ -0,0 +1,94 @@
+package se.magnus.util.fault;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.properties.bind.Bindable;
+import org.springframework.boot.context.properties.bind.Binder;
+import org.springframework.core.env.Environment;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Injects latency and errors into the reads of the core services, for chaos and latency experiments.
+ *
+ * The faults come from the delay and faultPercent request parameters, or else from the rule configured for the endpoint
+ * under app.fault-injection.rules, which is only applied when app.fault-injection.enabled is set.
+ * Latency is injected with a timer, so delayed calls do not hold a thread, e.g. an event loop thread, while they wait.
+ */
+@Component
+@Slf4j
+public class FaultInjector {
+
+    private final boolean enabled;
+    private final Map<String, FaultRule> rules;
+    private final Random random = new Random();
+
+    @Autowired
+    public FaultInjector(
+            @Value("${app.fault-injection.enabled:false}") boolean enabled,
+            Environment environment) {
+
+        this(enabled, Binder.get(environment)
+                .bind("app.fault-injection.rules", Bindable.mapOf(String.class, FaultRule.class))
+                .orElse(Collections.emptyMap()));
+    }
+
+    public FaultInjector(boolean enabled, Map<String, FaultRule> rules) {
+        this.enabled = enabled;
+        this.rules = rules;
+        if(enabled) log.info("Fault injection enabled for the endpoints: {}", rules.keySet());
+    }
+
+    /**
+     * Applies the faults given by the request parameters, a delay in seconds and a percentage of failed calls,
+     * or the configured rule of the endpoint if no parameter is given.
+     */
+    public <T> Mono<T> inject(String endpoint, int delay, int faultPercent, Mono<T> call) {
+        FaultRule rule = (delay > 0 || faultPercent > 0)
+                ? new FaultRule(LatencyDistribution.FIXED, delay * 1000L, Long.MAX_VALUE, faultPercent)
+                : getRule(endpoint);
+
+        return rule == null ? call : faults(endpoint, rule).then(call);
+    }
+
+    public <T> Flux<T> inject(String endpoint, Flux<T> call) {
+        FaultRule rule = getRule(endpoint);
+        return rule == null ? call : faults(endpoint, rule).thenMany(call);
+    }
+
+    private FaultRule getRule(String endpoint) {
+        if(!enabled) return null;
+        FaultRule rule = rules.get(endpoint);
+        return rule == null || rule.isEmpty() ? null : rule;
+    }
+
+    private Mono<Void> faults(String endpoint, FaultRule rule) {
+        return Mono.defer(() -> {
+            long latencyMs = Math.min(rule.getDistribution().sample(random, rule.getLatencyMs()), rule.getMaxLatencyMs());
+            Mono<Void> error = Mono.fromRunnable(() -> throwErrorIfBadLuck(endpoint, rule.getErrorPercent()));
+
+            if(latencyMs <= 0) return error;
+            log.debug("Delays {} by {} ms", endpoint, latencyMs);
+            return Mono.delay(Duration.ofMillis(latencyMs)).then(error);
+        });
+    }
+
+    private void throwErrorIfBadLuck(String endpoint, int errorPercent) {
+        if(errorPercent <= 0) return;
+
+        int randomThreshold = random.nextInt(100) + 1;
+        if(errorPercent < randomThreshold){
+            log.debug("We got lucky, no error occurred in {}, {} < {}", endpoint, errorPercent, randomThreshold);
+        }else {
+            log.debug("Bad luck, an error occurred in {}, {} >= {}", endpoint, errorPercent, randomThreshold);
+            throw new RuntimeException("Something went wrong...");
+        }
+    }
+}
@@ -0,0 +1,31 @@
+package se.magnus.util.fault;
+
+import lombok.Getter;
+import lombok.Setter;
+
+/**
+ * Faults injected into the calls of one endpoint, configured under app.fault-injection.rules.&lt;endpoint&gt;.
+ */
+@Getter
+@Setter
+public class FaultRule {
+
+    private LatencyDistribution distribution = LatencyDistribution.FIXED;
+    private long latencyMs = 0;
+    private long maxLatencyMs = 10000;
+    private int errorPercent = 0;
+
+    public FaultRule() {
+    }
+
+    public FaultRule(LatencyDistribution distribution, long latencyMs, long maxLatencyMs, int errorPercent) {
+        this.distribution = distribution;
+        this.latencyMs = latencyMs;
+        this.maxLatencyMs = maxLatencyMs;
+        this.errorPercent = errorPercent;
+    }
+
+    boolean isEmpty() {
+        return latencyMs <= 0 && errorPercent <= 0;
+    }
+}
@@ -0,0 +1,34 @@
+package se.magnus.util.fault;
+
+import java.util.Random;
+
+/**
+ * Distributions of the injected latency, all of them with the configured latency as their mean.
+ */
+public enum LatencyDistribution {
+
+    FIXED {
+        @Override
+        long sample(Random random, long meanMs) {
+            return meanMs;
+        }
+    },
+
+    // between 0 and twice the mean
+    UNIFORM {
+        @Override
+        long sample(Random random, long meanMs) {
+            return (long) (random.nextDouble() * 2 * meanMs);
+        }
+    },
+
+    // mostly short delays with a long tail, as seen from a loaded backend
+    EXPONENTIAL {
+        @Override
+        long sample(Random random, long meanMs) {
+            return (long) (-Math.log(1 - random.nextDouble()) * meanMs);
+        }
+    };
+
+    abstract long sample(Random random, long meanMs);
+}
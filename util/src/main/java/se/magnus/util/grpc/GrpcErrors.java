@@ -0,0 +1,59 @@
+package se.magnus.util.grpc;
+
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import se.magnus.util.exceptions.InvalidInputException;
+import se.magnus.util.exceptions.NotFoundException;
+import se.magnus.util.exceptions.ServiceUnavailableException;
+
+/**
+ * Maps the exceptions of the services to gRPC status codes and back, in the same way as the HTTP status codes
+ * of the GlobalControllerExceptionHandler.
+ */
+public final class GrpcErrors {
+
+    private GrpcErrors() {
+    }
+
+    public static StatusRuntimeException toStatusException(Throwable ex) {
+        if(ex instanceof StatusRuntimeException) return (StatusRuntimeException) ex;
+
+        Status status;
+        if(ex instanceof NotFoundException) status = Status.NOT_FOUND;
+        else if(ex instanceof InvalidInputException) status = Status.INVALID_ARGUMENT;
+        else if(ex instanceof ServiceUnavailableException) status = Status.UNAVAILABLE;
+        else status = Status.INTERNAL;
+
+        return status.withDescription(ex.getMessage()).asRuntimeException();
+    }
+
+    /**
+     * Whether the error is a gRPC status telling that the backend is overloaded or too slow, like a 503 or a timeout.
+     */
+    public static boolean isOverload(Throwable ex) {
+        if(!(ex instanceof StatusRuntimeException)) return false;
+
+        switch (((StatusRuntimeException) ex).getStatus().getCode()) {
+            case UNAVAILABLE:
+            case DEADLINE_EXCEEDED:
+            case RESOURCE_EXHAUSTED:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    public static Throwable fromStatusException(Throwable ex) {
+        if(!(ex instanceof StatusRuntimeException)) return ex;
+
+        Status status = ((StatusRuntimeException) ex).getStatus();
+        switch (status.getCode()) {
+            case NOT_FOUND:
+                return new NotFoundException(status.getDescription());
+            case INVALID_ARGUMENT:
+                return new InvalidInputException(status.getDescription());
+            default:
+                return ex;
+        }
+    }
+}
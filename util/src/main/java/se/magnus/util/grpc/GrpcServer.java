@@ -0,0 +1,64 @@
+package se.magnus.util.grpc;
+
+import io.grpc.BindableService;
+import io.grpc.Server;
+import io.grpc.ServerBuilder;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Serves the gRPC services of a core service, its BindableService beans, next to its HTTP server.
+ * The server is only started when app.grpc.server.port is set.
+ */
+@Component
+@Slf4j
+public class GrpcServer {
+
+    private final List<BindableService> services;
+    private final int port;
+    private final long shutdownTimeoutSec;
+    private Server server;
+
+    public GrpcServer(
+            ObjectProvider<BindableService> services,
+            @Value("${app.grpc.server.port:0}") int port,
+            @Value("${app.grpc.server.shutdownTimeoutSec:10}") long shutdownTimeoutSec) {
+
+        this.services = services.orderedStream().collect(Collectors.toList());
+        this.port = port;
+        this.shutdownTimeoutSec = shutdownTimeoutSec;
+    }
+
+    @PostConstruct
+    public void start() throws IOException {
+        if(port <= 0 || services.isEmpty()) return;
+
+        ServerBuilder<?> builder = ServerBuilder.forPort(port);
+        services.forEach(builder::addService);
+        server = builder.build().start();
+        log.info("Started a gRPC server on port {} with {} services", port, services.size());
+    }
+
+    /**
+     * Lets the calls in progress complete, or cancels them after shutdownTimeoutSec.
+     */
+    @PreDestroy
+    public void stop() throws InterruptedException {
+        if(server == null) return;
+
+        server.shutdown();
+        if(!server.awaitTermination(shutdownTimeoutSec, TimeUnit.SECONDS)){
+            log.warn("gRPC calls still running after {} seconds, cancels them", shutdownTimeoutSec);
+            server.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package se.magnus.util.grpc;
+
+import io.grpc.ServerCallHandler;
+import io.grpc.stub.ServerCallStreamObserver;
+import io.grpc.stub.ServerCalls;
+import io.grpc.stub.StreamObserver;
+import org.reactivestreams.Subscription;
+import reactor.core.publisher.BaseSubscriber;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+
+/**
+ * Binds the reactive methods of the service implementations to gRPC calls. A call cancelled by the client,
+ * e.g. on its deadline, cancels the subscription. The demand of the subscription follows the flow control of the call.
+ */
+public final class ReactiveServerCalls {
+
+    private static final int PREFETCH = 32;
+
+    private ReactiveServerCalls() {
+    }
+
+    public static <Q, R> ServerCallHandler<Q, R> unary(Function<Q, Mono<R>> method) {
+        return ServerCalls.asyncUnaryCall((request, observer) -> subscribe(Flux.from(Mono.defer(() -> method.apply(request))), observer));
+    }
+
+    public static <Q, R> ServerCallHandler<Q, R> serverStreaming(Function<Q, Flux<R>> method) {
+        return ServerCalls.asyncServerStreamingCall((request, observer) -> subscribe(Flux.defer(() -> method.apply(request)), observer));
+    }
+
+    /**
+     * Responses are requested one at a time while the call is ready to send, so a slow client is not buffered into memory.
+     * Upstream, limitRate keeps fetching in batches, e.g. from MongoDB, independent of the demand of single responses.
+     */
+    private static <R> void subscribe(Flux<R> responses, StreamObserver<R> observer) {
+        ServerCallStreamObserver<R> call = (ServerCallStreamObserver<R>) observer;
+        ReadySubscriber<R> subscriber = new ReadySubscriber<>(call);
+        call.setOnCancelHandler(subscriber::dispose);
+        call.setOnReadyHandler(subscriber::requestIfReady);
+        responses.limitRate(PREFETCH).subscribe(subscriber);
+    }
+
+    private static class ReadySubscriber<R> extends BaseSubscriber<R> {
+
+        private final ServerCallStreamObserver<R> call;
+        // at most one response is requested at a time, by onNext or by the onReady handler of the call
+        private final AtomicBoolean requested = new AtomicBoolean();
+
+        ReadySubscriber(ServerCallStreamObserver<R> call) {
+            this.call = call;
+        }
+
+        void requestIfReady() {
+            if(call.isReady() && requested.compareAndSet(false, true)) request(1);
+        }
+
+        @Override
+        protected void hookOnSubscribe(Subscription subscription) {
+            requestIfReady();
+        }
+
+        @Override
+        protected void hookOnNext(R value) {
+            requested.set(false);
+            call.onNext(value);
+            requestIfReady();
+        }
+
+        @Override
+        protected void hookOnError(Throwable ex) {
+            call.onError(GrpcErrors.toStatusException(ex));
+        }
+
+        @Override
+        protected void hookOnComplete() {
+            call.onCompleted();
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package se.magnus.util.http;
+
+import org.reactivestreams.Publisher;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.server.reactive.ServerHttpResponseDecorator;
+import org.springframework.stereotype.Component;
+import org.springframework.web.server.ServerWebExchange;
+import org.springframework.web.server.WebFilter;
+import org.springframework.web.server.WebFilterChain;
+import reactor.core.publisher.Mono;
+
+/**
+ * Makes the exchange available to {@link ConditionalRequests} and sends <b>304 - Not Modified</b> responses without a body.
+ *
+ * A not modified read of a list still completes as an empty list, the body written for it is dropped without being encoded.
+ */
+@Component
+public class ConditionalRequestWebFilter implements WebFilter {
+
+    @Override
+    public Mono<Void> filter(ServerWebExchange exchange, WebFilterChain chain) {
+        ServerHttpResponseDecorator response = new ServerHttpResponseDecorator(exchange.getResponse()) {
+            @Override
+            public Mono<Void> writeWith(Publisher<? extends DataBuffer> body) {
+                return getStatusCode() == HttpStatus.NOT_MODIFIED ? setComplete() : super.writeWith(body);
+            }
+
+            @Override
+            public Mono<Void> writeAndFlushWith(Publisher<? extends Publisher<? extends DataBuffer>> body) {
+                return getStatusCode() == HttpStatus.NOT_MODIFIED ? setComplete() : super.writeAndFlushWith(body);
+            }
+        };
+
+        ServerWebExchange decorated = exchange.mutate().response(response).build();
+        return chain.filter(decorated).contextWrite(context -> ConditionalRequests.putInto(context, decorated));
+    }
+}
@@ -0,0 +1,66 @@
+package se.magnus.util.http;
+
+import org.springframework.util.DigestUtils;
+import org.springframework.web.server.ServerWebExchange;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.util.context.Context;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.stream.Collectors;
+
+/**
+ * Conditional GETs for reads whose entity tag is known before the response body is built, e.g. from the versions of the entities.
+ *
+ * The {@link ConditionalRequestWebFilter} puts the exchange of the request in the Reactor context. A read that matches the
+ * If-None-Match header of the request completes empty and the response is sent as <b>304 - Not Modified</b>, otherwise the
+ * entity tag is set as the ETag header of the response. Outside of an HTTP request, e.g. for gRPC calls, the body is always returned.
+ */
+public final class ConditionalRequests {
+
+    private static final Object CONTEXT_KEY = ConditionalRequests.class;
+
+    private ConditionalRequests() {
+    }
+
+    /**
+     * Returns a weak entity tag for the given parts, e.g. the ids and versions of the entities in the response.
+     * The tag is weak since the responses also contain the address of the instance that served them.
+     */
+    public static String weakETag(Object... parts) {
+        String value = Arrays.stream(parts).map(String::valueOf).collect(Collectors.joining("/"));
+        return "W/\"" + DigestUtils.md5DigestAsHex(value.getBytes(StandardCharsets.UTF_8)) + "\"";
+    }
+
+    public static <T> Mono<T> bodyIfModified(String eTag, T body) {
+        return isNotModified(eTag).flatMap(notModified -> notModified ? Mono.<T>empty() : Mono.just(body));
+    }
+
+    /**
+     * Streams the items unless the entity tag matches. The tag is read first, e.g. by a query of the ids and versions only,
+     * so the items are not collected to compute it. Outside of an HTTP request the tag is not read at all.
+     */
+    public static <T> Flux<T> itemsIfModified(Mono<String> eTag, Flux<T> items) {
+        return Flux.deferContextual(context -> context.hasKey(CONTEXT_KEY)
+                ? eTag.flatMap(ConditionalRequests::isNotModified).flatMapMany(notModified -> notModified ? Flux.<T>empty() : items)
+                : items);
+    }
+
+    private static Mono<Boolean> isNotModified(String eTag) {
+        return Mono.deferContextual(context -> Mono.just(context.<ServerWebExchange>getOrEmpty(CONTEXT_KEY)
+                .map(exchange -> exchange.checkNotModified(eTag))
+                .orElse(false)));
+    }
+
+    static Context putInto(Context context, ServerWebExchange exchange) {
+        return context.put(CONTEXT_KEY, exchange);
+    }
+
+    /**
+     * Removes the exchange from the context, for reads done in process on behalf of a request for another resource.
+     */
+    public static Context removeFrom(Context context) {
+        return context.delete(CONTEXT_KEY);
+    }
+}
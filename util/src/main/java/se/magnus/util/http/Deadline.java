@@ -0,0 +1,77 @@
+package se.magnus.util.http;
+
+import reactor.util.context.Context;
+import reactor.util.context.ContextView;
+
+import java.time.Duration;
+import java.util.Optional;
+
+/**
+ * End-to-end deadline of a request, carried in the Reactor context while the request is processed
+ * and propagated to downstream services as the remaining budget in milliseconds in the {@link #HEADER} header.
+ *
+ * A relative budget is propagated instead of an absolute point in time so that clock skew between hosts does not matter.
+ */
+public final class Deadline {
+
+    public static final String HEADER = "X-Deadline-Ms";
+
+    private static final Object CONTEXT_KEY = Deadline.class;
+
+    private final long expiresAtNanos;
+
+    private Deadline(long expiresAtNanos) {
+        this.expiresAtNanos = expiresAtNanos;
+    }
+
+    public static Deadline ofMillis(long budgetMs) {
+        return new Deadline(System.nanoTime() + Duration.ofMillis(budgetMs).toNanos());
+    }
+
+    public static Optional<Deadline> fromContext(ContextView context) {
+        return context.getOrEmpty(CONTEXT_KEY);
+    }
+
+    public Context putInto(Context context) {
+        return context.put(CONTEXT_KEY, this);
+    }
+
+    public long remainingMillis() {
+        return Math.max(0, Duration.ofNanos(expiresAtNanos - System.nanoTime()).toMillis());
+    }
+
+    public Duration remaining() {
+        return Duration.ofMillis(remainingMillis());
+    }
+
+    public boolean isExpired() {
+        return remainingMillis() == 0;
+    }
+
+    /**
+     * Returns a deadline that expires the given number of milliseconds before this one, e.g. to reserve time for aggregation.
+     */
+    public Deadline minusMillis(long reserveMs) {
+        return new Deadline(expiresAtNanos - Duration.ofMillis(reserveMs).toNanos());
+    }
+
+    /**
+     * Returns a deadline that gets the given share, between 0 and 1, of the remaining budget of this one.
+     */
+    public Deadline share(double share) {
+        return ofMillis((long) (remainingMillis() * share));
+    }
+
+    /**
+     * Returns the remaining budget capped by the given duration, e.g. a configured per-call timeout.
+     */
+    public Duration remainingCappedBy(Duration cap) {
+        Duration remaining = remaining();
+        return remaining.compareTo(cap) < 0 ? remaining : cap;
+    }
+
+    @Override
+    public String toString() {
+        return "Deadline{remainingMs=" + remainingMillis() + "}";
+    }
+}
@@ -0,0 +1,52 @@
+package se.magnus.util.http;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Component;
+import org.springframework.web.server.ResponseStatusException;
+import org.springframework.web.server.ServerWebExchange;
+import org.springframework.web.server.WebFilter;
+import org.springframework.web.server.WebFilterChain;
+import reactor.core.publisher.Mono;
+
+/**
+ * Applies the budget of incoming requests carrying the {@link Deadline#HEADER} header.
+ *
+ * Requests whose budget is already spent are rejected with <b>504 - Gateway Timeout</b> without doing any work.
+ * Otherwise the deadline is put in the Reactor context for outgoing calls and the request is answered with a 504
+ * once the budget is spent. Only reactive work is cancelled then, e.g. outgoing calls and MongoDB queries. Blocking
+ * work already running on a scheduler, e.g. the JPA queries of the review service on its jdbcScheduler, is not
+ * interrupted and runs to completion.
+ */
+@Component
+@Slf4j
+public class DeadlineWebFilter implements WebFilter {
+
+    @Override
+    public Mono<Void> filter(ServerWebExchange exchange, WebFilterChain chain) {
+        String budget = exchange.getRequest().getHeaders().getFirst(Deadline.HEADER);
+        if(budget == null) return chain.filter(exchange);
+
+        long budgetMs;
+        try {
+            budgetMs = Long.parseLong(budget.trim());
+        }catch (NumberFormatException e){
+            log.warn("Ignores invalid {} header: {}", Deadline.HEADER, budget);
+            return chain.filter(exchange);
+        }
+
+        String path = exchange.getRequest().getPath().value();
+        if(budgetMs <= 0){
+            log.debug("Rejects request to {}, its deadline has already expired", path);
+            return Mono.error(new ResponseStatusException(HttpStatus.GATEWAY_TIMEOUT, "Deadline expired before processing started"));
+        }
+
+        Deadline deadline = Deadline.ofMillis(budgetMs);
+        return chain.filter(exchange)
+                .contextWrite(deadline::putInto)
+                .timeout(deadline.remaining(), Mono.defer(() -> {
+                    log.debug("Cancels request to {}, its budget of {} ms is spent", path, budgetMs);
+                    return Mono.error(new ResponseStatusException(HttpStatus.GATEWAY_TIMEOUT, "Deadline of " + budgetMs + " ms exceeded"));
+                }));
+    }
+}
@@ -0,0 +1,29 @@
+package se.magnus.util.messaging;
+
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.util.Objects;
+import java.util.function.Function;
+
+/**
+ * Processes a stream of events with bounded concurrency while keeping the order of the events per key, e.g. per product.
+ *
+ * The events are spread over a fixed number of lanes by the hash of their key. Each lane processes one event at a time,
+ * in the order they arrive, and the lanes run concurrently, so at most concurrency events are in process at any time.
+ * The processor must not fail, an error would end the stream.
+ */
+public final class KeyOrderedProcessing {
+
+    private KeyOrderedProcessing() {
+    }
+
+    public static <T> Mono<Void> process(Flux<T> events, Function<? super T, ?> keyOf, int concurrency, Function<? super T, Mono<Void>> processor) {
+        if(concurrency < 1) throw new IllegalArgumentException("Concurrency must be at least 1, got " + concurrency);
+
+        return events
+                .groupBy(event -> Math.floorMod(Objects.hashCode(keyOf.apply(event)), concurrency))
+                .flatMap(lane -> lane.concatMap(processor), concurrency)
+                .then();
+    }
+}
@@ -0,0 +1,60 @@
+package se.magnus.util.messaging;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.cloud.stream.function.StreamBridge;
+import org.springframework.integration.IntegrationMessageHeaderAccessor;
+import org.springframework.messaging.support.MessageBuilder;
+import se.magnus.api.event.Event;
+import se.magnus.api.event.OperationAck;
+
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Publishes an {@link OperationAck} for each processed event of a tracked operation, i.e. with an operationId header.
+ * Failures are acknowledged only on the last delivery attempt, since earlier attempts are retried.
+ * The acks are sent to the output binding. Each core service declares one, with its name as the service of the acks.
+ */
+@Slf4j
+public class OperationAcknowledger {
+
+    private final ObjectProvider<StreamBridge> streamBridge;
+    private final String serviceName;
+    private final int maxAttempts;
+
+    public OperationAcknowledger(ObjectProvider<StreamBridge> streamBridge, String serviceName, int maxAttempts) {
+        this.streamBridge = streamBridge;
+        this.serviceName = serviceName;
+        this.maxAttempts = maxAttempts;
+    }
+
+    public void processed(Map<String, Object> headers) {
+        acknowledge(headers, OperationAck.Status.PROCESSED, null);
+    }
+
+    public void failed(Map<String, Object> headers, RuntimeException exception) {
+        Object attempt = headers.get(IntegrationMessageHeaderAccessor.DELIVERY_ATTEMPT);
+        if(attempt instanceof AtomicInteger && ((AtomicInteger) attempt).get() < maxAttempts) return;
+
+        acknowledge(headers, OperationAck.Status.FAILED, exception.getMessage());
+    }
+
+    /**
+     * Acknowledges a failure whose retries are exhausted, e.g. retried by the processor instead of the binder.
+     */
+    public void exhausted(Map<String, Object> headers, Throwable exception) {
+        acknowledge(headers, OperationAck.Status.FAILED, exception.getMessage());
+    }
+
+    private void acknowledge(Map<String, Object> headers, OperationAck.Status status, String message) {
+        Object operationId = headers.get(Event.OPERATION_ID_HEADER);
+        if(operationId == null) return;
+
+        Object eventId = headers.get(Event.EVENT_ID_HEADER);
+        int expectedEvents = Integer.parseInt(String.valueOf(headers.get(Event.OPERATION_EVENTS_HEADER)));
+        log.debug("Acknowledges event {} of operation {} as {}", eventId, operationId, status);
+        OperationAck ack = new OperationAck(operationId.toString(), eventId == null ? null : eventId.toString(), expectedEvents, status, serviceName, message);
+        streamBridge.getObject().send("output", MessageBuilder.withPayload(ack).build());
+    }
+}
@@ -0,0 +1,69 @@
+package se.magnus.util.fault;
+
+import org.junit.jupiter.api.Test;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.test.StepVerifier;
+
+import java.time.Duration;
+import java.util.Collections;
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class FaultInjectorTests {
+
+    private final FaultInjector noRules = new FaultInjector(true, Collections.emptyMap());
+
+    @Test
+    public void delayDoesNotHoldAThread(){
+        long start = System.nanoTime();
+
+        Long count = Flux.range(1, 1000)
+                .flatMap(i -> noRules.inject("getProduct", 1, 0, Mono.just(i)), 1000)
+                .count()
+                .block();
+
+        assertThat(count).isEqualTo(1000);
+        assertThat(Duration.ofNanos(System.nanoTime() - start)).isLessThan(Duration.ofSeconds(3));
+    }
+
+    @Test
+    public void delayIsAppliedBeforeTheCall(){
+        StepVerifier.withVirtualTime(() -> noRules.inject("getProduct", 3, 0, Mono.just("product")))
+                .expectSubscription()
+                .expectNoEvent(Duration.ofSeconds(3))
+                .expectNext("product")
+                .verifyComplete();
+    }
+
+    @Test
+    public void faultPercentOfHundredAlwaysFails(){
+        StepVerifier.create(noRules.inject("getProduct", 0, 100, Mono.just("product")))
+                .expectErrorMessage("Something went wrong...")
+                .verify();
+    }
+
+    @Test
+    public void configuredRuleIsOnlyAppliedWhenEnabled(){
+        FaultRule rule = new FaultRule(LatencyDistribution.FIXED, 0, 10000, 100);
+
+        StepVerifier.create(new FaultInjector(true, Collections.singletonMap("getReviews", rule)).inject("getReviews", Flux.just(1, 2)))
+                .expectErrorMessage("Something went wrong...")
+                .verify();
+
+        StepVerifier.create(new FaultInjector(false, Collections.singletonMap("getReviews", rule)).inject("getReviews", Flux.just(1, 2)))
+                .expectNext(1, 2)
+                .verifyComplete();
+    }
+
+    @Test
+    public void distributionsHaveTheConfiguredMean(){
+        Random random = new Random(42);
+        for(LatencyDistribution distribution : LatencyDistribution.values()) {
+            double mean = Flux.range(1, 100000).map(i -> distribution.sample(random, 100)).collectList().block()
+                    .stream().mapToLong(Long::longValue).average().getAsDouble();
+            assertThat(mean).as(distribution.name()).isBetween(97.0, 103.0);
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package se.magnus.util.http;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.mock.http.server.reactive.MockServerHttpRequest;
+import org.springframework.mock.web.server.MockServerWebExchange;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.test.StepVerifier;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ConditionalRequestsTests {
+
+    private static final String E_TAG = ConditionalRequests.weakETag(1, 2);
+
+    @Test
+    public void itemsAreStreamedBeforeTheyComplete(){
+        MockServerWebExchange exchange = MockServerWebExchange.from(MockServerHttpRequest.get("/"));
+
+        StepVerifier.create(ConditionalRequests.itemsIfModified(Mono.just(E_TAG), Flux.just("first").concatWith(Flux.never()))
+                        .contextWrite(context -> ConditionalRequests.putInto(context, exchange)))
+                .expectNext("first")
+                .thenCancel()
+                .verify();
+
+        assertThat(exchange.getResponse().getHeaders().getETag()).isEqualTo(E_TAG);
+    }
+
+    @Test
+    public void matchingItemsAreNotRead(){
+        MockServerWebExchange exchange = MockServerWebExchange.from(MockServerHttpRequest.get("/").header(HttpHeaders.IF_NONE_MATCH, E_TAG));
+        AtomicBoolean read = new AtomicBoolean();
+
+        StepVerifier.create(ConditionalRequests.itemsIfModified(Mono.just(E_TAG), Flux.just("first").doOnSubscribe(s -> read.set(true)))
+                        .contextWrite(context -> ConditionalRequests.putInto(context, exchange)))
+                .verifyComplete();
+
+        assertThat(read).isFalse();
+        assertThat(exchange.getResponse().getStatusCode()).isEqualTo(HttpStatus.NOT_MODIFIED);
+    }
+
+    @Test
+    public void eTagIsNotReadOutsideOfARequest(){
+        AtomicBoolean read = new AtomicBoolean();
+
+        StepVerifier.create(ConditionalRequests.itemsIfModified(Mono.fromCallable(() -> {
+                    read.set(true);
+                    return E_TAG;
+                }), Flux.just("first")))
+                .expectNext("first")
+                .verifyComplete();
+
+        assertThat(read).isFalse();
+    }
+}
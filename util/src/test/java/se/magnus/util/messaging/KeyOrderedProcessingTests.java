@@ -0,0 +1,51 @@
+package se.magnus.util.messaging;
+
+import org.junit.jupiter.api.Test;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class KeyOrderedProcessingTests {
+
+    @Test
+    public void eventsOfOneKeyAreProcessedInOrder(){
+        Map<Integer, List<Integer>> processed = new ConcurrentHashMap<>();
+
+        // event i belongs to key i % 10, each key gets its events with increasing sequence numbers
+        KeyOrderedProcessing.process(Flux.range(0, 500), event -> event % 10, 4, event ->
+                Mono.delay(Duration.ofMillis(event % 3))
+                        .doOnNext(tick -> processed.computeIfAbsent(event % 10, key -> Collections.synchronizedList(new ArrayList<>())).add(event))
+                        .then())
+                .block(Duration.ofSeconds(30));
+
+        assertThat(processed).hasSize(10);
+        processed.forEach((key, events) -> assertThat(events)
+                .containsExactlyElementsOf(IntStream.range(0, 500).filter(i -> i % 10 == key).boxed().collect(Collectors.toList())));
+    }
+
+    @Test
+    public void concurrencyIsBounded(){
+        AtomicInteger inProcess = new AtomicInteger();
+        AtomicInteger maxInProcess = new AtomicInteger();
+
+        KeyOrderedProcessing.process(Flux.range(0, 200), event -> event, 8, event ->
+                Mono.fromRunnable(() -> maxInProcess.accumulateAndGet(inProcess.incrementAndGet(), Math::max))
+                        .then(Mono.delay(Duration.ofMillis(5)))
+                        .doOnTerminate(inProcess::decrementAndGet)
+                        .then())
+                .block(Duration.ofSeconds(30));
+
+        assertThat(maxInProcess.get()).isGreaterThan(1).isLessThanOrEqualTo(8);
+    }
+}